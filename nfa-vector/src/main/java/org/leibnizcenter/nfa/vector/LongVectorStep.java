@@ -0,0 +1,35 @@
+package org.leibnizcenter.nfa.vector;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorSpecies;
+import org.leibnizcenter.nfa.BitSetNFA;
+
+/**
+ * ORs every mask into the next set a vector of words at a time, using the widest vectors the platform supports. Masks
+ * that are shorter than one vector are ORed word by word, like {@link BitSetNFA#SCALAR_STEP} does. Only loaded if the
+ * Vector API is available; see {@link VectorSteps#best()}.
+ */
+final class LongVectorStep implements BitSetNFA.MaskStep {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    @Override
+    public void step(long[] words, int[] offsets, int[] firstWord, long[] active, long[] next) {
+        final int lanes = SPECIES.length();
+        for (int word = 0; word < active.length; word++) {
+            long bits = active[word];
+            while (bits != 0L) {
+                final int state = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                final int start = offsets[state];
+                final int end = offsets[state + 1];
+                final int shift = firstWord[state] - start;
+                int i = start;
+                for (final int bound = start + SPECIES.loopBound(end - start); i < bound; i += lanes)
+                    LongVector.fromArray(SPECIES, words, i)
+                            .or(LongVector.fromArray(SPECIES, next, shift + i))
+                            .intoArray(next, shift + i);
+                for (; i < end; i++) next[shift + i] |= words[i];
+            }
+        }
+    }
+}
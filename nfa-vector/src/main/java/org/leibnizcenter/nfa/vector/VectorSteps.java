@@ -0,0 +1,26 @@
+package org.leibnizcenter.nfa.vector;
+
+import org.leibnizcenter.nfa.BitSetNFA;
+
+/**
+ * Picks a {@link BitSetNFA.MaskStep} that ORs masks with the incubating Java Vector API. The API is only available if
+ * the JVM runs with <code>--add-modules jdk.incubator.vector</code>; otherwise {@link BitSetNFA#SCALAR_STEP} is used.
+ */
+public final class VectorSteps {
+    private VectorSteps() {
+    }
+
+    /**
+     * @return Whether the Vector API module is loaded
+     */
+    public static boolean isVectorApiAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    /**
+     * @return A step that ORs with vectors if the Vector API is available, or the scalar step otherwise
+     */
+    public static BitSetNFA.MaskStep best() {
+        return isVectorApiAvailable() ? new LongVectorStep() : BitSetNFA.SCALAR_STEP;
+    }
+}
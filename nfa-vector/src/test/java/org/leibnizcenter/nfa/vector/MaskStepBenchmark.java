@@ -0,0 +1,49 @@
+package org.leibnizcenter.nfa.vector;
+
+import org.leibnizcenter.nfa.BitSetNFA;
+import org.leibnizcenter.nfa.NFA;
+
+import java.util.*;
+
+/**
+ * Compares step throughput of {@link BitSetNFA} with {@link BitSetNFA#SCALAR_STEP} and with {@link LongVectorStep},
+ * for masks of a few words up to tens of words. Not a unit test; run its main method with the test classpath and
+ * <code>--add-modules jdk.incubator.vector</code>.
+ */
+public class MaskStepBenchmark {
+    private static final int STATES = 4096;
+    private static final int STEPS = 20_000;
+
+    public static void main(String[] args) {
+        System.out.println("Vector step: " + VectorSteps.best().getClass().getSimpleName());
+        final List<Wide.Node> nodes = Wide.nodes(STATES);
+        for (int window : new int[]{64, 512, 2048}) {
+            final Random random = new Random(43);
+            final NFA<Wide.Node, Wide.Step> nfa = Wide.nfa(nodes, window, random);
+            final List<Wide.Step> input = new ArrayList<>(STEPS);
+            for (int i = 0; i < STEPS; i++) input.add(Wide.Step.values()[random.nextInt(Wide.Step.values().length)]);
+
+            final Map<String, BitSetNFA<Wide.Node, Wide.Step>> steps = new LinkedHashMap<>();
+            steps.put("scalar", new BitSetNFA<>(nfa, nodes, BitSetNFA.SCALAR_STEP));
+            steps.put("vector", new BitSetNFA<>(nfa, nodes, VectorSteps.best()));
+            System.out.println("Successor window " + window + " states, "
+                    + steps.get("scalar").numberOfMaskWords() + " mask words");
+            for (int round = 0; round < 3; round++) {
+                System.out.println("  Round " + (round + 1));
+                steps.forEach((name, bitSetNFA) -> {
+                    final Random restarts = new Random(48);
+                    BitSetNFA<Wide.Node, Wide.Step>.Run run = bitSetNFA.start(Collections.singleton(nodes.get(0)));
+                    long activeStates = 0L;
+                    final long start = System.nanoTime();
+                    for (Wide.Step step : input) {
+                        activeStates += run.andThen(step).numberOfActiveStates();
+                        if (run.isEmpty()) run = bitSetNFA.start(Collections.singleton(nodes.get(restarts.nextInt(STATES))));
+                    }
+                    final long elapsed = System.nanoTime() - start;
+                    System.out.printf("    %-8s %10.1f ns/step, %7.1f active states/step%n",
+                            name, (double) elapsed / STEPS, (double) activeStates / STEPS);
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.leibnizcenter.nfa.vector;
+
+import org.junit.Test;
+import org.leibnizcenter.nfa.BitSetNFA;
+import org.leibnizcenter.nfa.NFA;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VectorStepsTest {
+    @Test
+    public void sameStatesAsScalarStep() {
+        // Surefire runs with the Vector API module
+        assertTrue(VectorSteps.isVectorApiAvailable());
+        assertTrue(VectorSteps.best() instanceof LongVectorStep);
+
+        final Random random = new Random(43);
+        final List<Wide.Node> nodes = Wide.nodes(1024);
+        final NFA<Wide.Node, Wide.Step> nfa = Wide.nfa(nodes, 640, random);
+        final BitSetNFA<Wide.Node, Wide.Step> scalar = new BitSetNFA<>(nfa, nodes);
+        final BitSetNFA<Wide.Node, Wide.Step> vector = new BitSetNFA<>(nfa, nodes, VectorSteps.best());
+        for (int restart = 0; restart < 20; restart++) {
+            final Wide.Node start = nodes.get(random.nextInt(nodes.size()));
+            final BitSetNFA<Wide.Node, Wide.Step>.Run scalarRun = scalar.start(Collections.singleton(start));
+            final BitSetNFA<Wide.Node, Wide.Step>.Run vectorRun = vector.start(Collections.singleton(start));
+            for (int i = 0; i < 50; i++) {
+                final Wide.Step step = Wide.Step.values()[random.nextInt(Wide.Step.values().length)];
+                assertEquals(scalarRun.andThen(step).getStates(), vectorRun.andThen(step).getStates());
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.leibnizcenter.nfa.vector;
+
+import org.leibnizcenter.nfa.Event;
+import org.leibnizcenter.nfa.NFA;
+import org.leibnizcenter.nfa.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * NFA whose states have successors spread over a wide window ahead of them, so that successor masks span many words
+ */
+final class Wide {
+    private Wide() {
+    }
+
+    static List<Node> nodes(int numberOfStates) {
+        final List<Node> nodes = new ArrayList<>(numberOfStates);
+        for (int i = 0; i < numberOfStates; i++) nodes.add(new Node());
+        return nodes;
+    }
+
+    /**
+     * @param window Successors of state i are among the next window states
+     */
+    static NFA<Node, Step> nfa(List<Node> nodes, int window, Random random) {
+        final NFA.Builder<Node, Step> builder = new NFA.Builder<>();
+        for (int i = 0; i < nodes.size(); i++)
+            for (Step step : Step.values()) {
+                if (random.nextInt(3) == 0) continue;
+                // Nearest and farthest successor, so that the mask spans the whole window
+                builder.addTransition(nodes.get(i), step, nodes.get((i + 1) % nodes.size()));
+                builder.addTransition(nodes.get(i), step, nodes.get((i + window) % nodes.size()));
+                for (int j = random.nextInt(4); j > 0; j--)
+                    builder.addTransition(nodes.get(i), step, nodes.get((i + 1 + random.nextInt(window)) % nodes.size()));
+            }
+        return builder.build();
+    }
+
+    static final class Node implements State {
+    }
+
+    enum Step implements Event<Node> {
+        A, B, C;
+
+        @Override
+        public void accept(Node from, Node to) {
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package org.leibnizcenter.nfa;
+
+import java.util.*;
+
+/**
+ * Decides whether the number of paths that an NFA can take from a start state is bounded, regardless of the input. A
+ * run that fires side effects once per path can then be replaced by a deterministic transducer whose states are the
+ * reachable multisets of NFA states.
+ * <p>
+ * Uses the criteria of Weber &amp; Seidl (On the degree of ambiguity of finite automata), where every state that is
+ * reachable from the start state counts as useful: the number of paths is unbounded iff there is a state with two
+ * distinct cycles on the same input (EDA), or there are distinct states p and q with an input v that leads from p to
+ * p, from p to q and from q to q (IDA). Like the twins property test of Allauzen &amp; Mohri, both are checked on
+ * products of the automaton with itself.
+ */
+final class Ambiguity<S extends State, E extends Event<S>> {
+    private final NFA<S, E> nfa;
+    private final List<S> states = new ArrayList<>();
+    private final Map<S, Integer> ids = new HashMap<>();
+
+    private Ambiguity(NFA<S, E> nfa, S start) {
+        this.nfa = nfa;
+        getId(start);
+        for (int i = 0; i < states.size(); i++)
+            for (Transition<S, E> transition : transitionsFrom(states.get(i))) getId(transition.getTo());
+    }
+
+    /**
+     * Runs in O(|Q|<sup>2</sup> * |Δ|<sup>3</sup>) in the worst case, for Q the states and Δ the transitions that are
+     * reachable from the start state
+     *
+     * @return Whether the number of paths from the given start state is bounded by a constant for all inputs
+     */
+    static <S extends State, E extends Event<S>> boolean isFinitelyAmbiguous(NFA<S, E> nfa, S start) {
+        final Ambiguity<S, E> ambiguity = new Ambiguity<>(nfa, start);
+        return !ambiguity.hasEda() && !ambiguity.hasIda();
+    }
+
+    private int getId(S state) {
+        Integer id = ids.get(state);
+        if (id == null) {
+            id = states.size();
+            states.add(state);
+            ids.put(state, id);
+        }
+        return id;
+    }
+
+    private Iterable<Transition<S, E>> transitionsFrom(S state) {
+        final Map<E, ? extends Set<Transition<S, E>>> eventMap = nfa.transitions.get(state);
+        if (eventMap == null) return Collections.emptyList();
+        final List<Transition<S, E>> result = new ArrayList<>();
+        eventMap.values().forEach(result::addAll);
+        return result;
+    }
+
+    /**
+     * @return For every combination of transitions on the same event from the given states, the tuple of target
+     * states
+     */
+    private List<int[]> successors(int[] tuple) {
+        Set<E> events = null;
+        for (int state : tuple) {
+            final Map<E, ? extends Set<Transition<S, E>>> eventMap = nfa.transitions.get(states.get(state));
+            if (eventMap == null) return Collections.emptyList();
+            if (events == null) events = new HashSet<>(eventMap.keySet());
+            else events.retainAll(eventMap.keySet());
+        }
+        final List<int[]> successors = new ArrayList<>();
+        for (E event : events) {
+            List<int[]> partial = Collections.singletonList(new int[0]);
+            for (int state : tuple) {
+                final List<int[]> extended = new ArrayList<>();
+                for (int[] prefix : partial)
+                    for (Transition<S, E> transition : nfa.getTransitions(states.get(state), event)) {
+                        final int[] next = Arrays.copyOf(prefix, prefix.length + 1);
+                        next[prefix.length] = ids.get(transition.getTo());
+                        extended.add(next);
+                    }
+                partial = extended;
+            }
+            successors.addAll(partial);
+        }
+        return successors;
+    }
+
+    private long key(int[] tuple) {
+        long key = 0L;
+        for (int state : tuple) key = key * states.size() + state;
+        return key;
+    }
+
+    /**
+     * Explores the product of the automaton with itself from the pairs on the diagonal, and looks for a strongly
+     * connected component that holds both a diagonal and a non-diagonal pair
+     */
+    private boolean hasEda() {
+        final Graph pairs = new Graph();
+        for (int state = 0; state < states.size(); state++) pairs.explore(new int[]{state, state});
+        final int[] components = pairs.stronglyConnectedComponents();
+        final Set<Integer> diagonalInComponent = new HashSet<>();
+        final Set<Integer> nonDiagonalInComponent = new HashSet<>();
+        for (int node = 0; node < pairs.size(); node++) {
+            final int[] pair = pairs.tuples.get(node);
+            if (pair[0] == pair[1]) diagonalInComponent.add(components[node]);
+            else nonDiagonalInComponent.add(components[node]);
+        }
+        diagonalInComponent.retainAll(nonDiagonalInComponent);
+        return !diagonalInComponent.isEmpty();
+    }
+
+    /**
+     * For all distinct p and q that lie on cycles, with q reachable from p, explores the product of the automaton with
+     * itself twice from (p, p, q), and looks for (p, q, q)
+     */
+    private boolean hasIda() {
+        final Graph single = new Graph();
+        for (int state = 0; state < states.size(); state++) single.explore(new int[]{state});
+        final int[] components = single.stronglyConnectedComponents();
+        final boolean[] onCycle = new boolean[single.size()];
+        final int[] componentSize = new int[single.size()];
+        for (int node = 0; node < single.size(); node++) componentSize[components[node]]++;
+        for (int node = 0; node < single.size(); node++) {
+            if (componentSize[components[node]] > 1) onCycle[node] = true;
+            else for (int successor : single.edges.get(node)) if (successor == node) onCycle[node] = true;
+        }
+
+        for (int p = 0; p < single.size(); p++) {
+            if (!onCycle[p]) continue;
+            final boolean[] reachable = single.reachableFrom(p);
+            for (int q = 0; q < single.size(); q++) {
+                if (q == p || !onCycle[q] || !reachable[q]) continue;
+                final int sp = single.tuples.get(p)[0];
+                final int sq = single.tuples.get(q)[0];
+                final Graph triples = new Graph();
+                triples.explore(new int[]{sp, sp, sq});
+                if (triples.contains(new int[]{sp, sq, sq})) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Graph of state tuples that is explored breadth-first from given roots
+     */
+    private class Graph {
+        private final List<int[]> tuples = new ArrayList<>();
+        private final List<int[]> edges = new ArrayList<>();
+        private final Map<Long, Integer> nodes = new HashMap<>();
+
+        int size() {
+            return tuples.size();
+        }
+
+        boolean contains(int[] tuple) {
+            return nodes.containsKey(key(tuple));
+        }
+
+        private int getNode(int[] tuple) {
+            final long key = key(tuple);
+            Integer node = nodes.get(key);
+            if (node == null) {
+                node = tuples.size();
+                tuples.add(tuple);
+                edges.add(null);
+                nodes.put(key, node);
+            }
+            return node;
+        }
+
+        void explore(int[] root) {
+            final Queue<Integer> queue = new ArrayDeque<>();
+            final int rootNode = getNode(root);
+            if (edges.get(rootNode) != null) return;
+            queue.add(rootNode);
+            while (!queue.isEmpty()) {
+                final int node = queue.remove();
+                if (edges.get(node) != null) continue;
+                final List<int[]> successors = successors(tuples.get(node));
+                final int[] targets = new int[successors.size()];
+                for (int i = 0; i < targets.length; i++) {
+                    targets[i] = getNode(successors.get(i));
+                    if (edges.get(targets[i]) == null) queue.add(targets[i]);
+                }
+                edges.set(node, targets);
+            }
+        }
+
+        boolean[] reachableFrom(int root) {
+            final boolean[] reached = new boolean[size()];
+            final Deque<Integer> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty())
+                for (int successor : edges.get(stack.pop()))
+                    if (!reached[successor]) {
+                        reached[successor] = true;
+                        stack.push(successor);
+                    }
+            return reached;
+        }
+
+        /**
+         * Iterative version of Tarjan's algorithm
+         *
+         * @return Component id for every node
+         */
+        int[] stronglyConnectedComponents() {
+            final int n = size();
+            final int[] index = new int[n];
+            final int[] lowLink = new int[n];
+            final int[] component = new int[n];
+            final boolean[] onStack = new boolean[n];
+            Arrays.fill(index, -1);
+            final Deque<Integer> stack = new ArrayDeque<>();
+            final Deque<int[]> callStack = new ArrayDeque<>();
+            int counter = 0;
+            int components = 0;
+            for (int root = 0; root < n; root++) {
+                if (index[root] >= 0) continue;
+                callStack.push(new int[]{root, 0});
+                while (!callStack.isEmpty()) {
+                    final int[] frame = callStack.peek();
+                    final int node = frame[0];
+                    if (frame[1] == 0) {
+                        index[node] = lowLink[node] = counter++;
+                        stack.push(node);
+                        onStack[node] = true;
+                    }
+                    final int[] successors = edges.get(node);
+                    if (frame[1] < successors.length) {
+                        final int successor = successors[frame[1]++];
+                        if (index[successor] < 0) callStack.push(new int[]{successor, 0});
+                        else if (onStack[successor]) lowLink[node] = Math.min(lowLink[node], index[successor]);
+                        continue;
+                    }
+                    callStack.pop();
+                    if (!callStack.isEmpty()) {
+                        final int parent = callStack.peek()[0];
+                        lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+                    }
+                    if (lowLink[node] == index[node]) {
+                        int member;
+                        do {
+                            member = stack.pop();
+                            onStack[member] = false;
+                            component[member] = components;
+                        } while (member != node);
+                        components++;
+                    }
+                }
+            }
+            return component;
+        }
+    }
+}
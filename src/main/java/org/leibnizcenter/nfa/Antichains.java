@@ -0,0 +1,192 @@
+package org.leibnizcenter.nfa;
+
+import java.util.*;
+
+/**
+ * Language checks for NFAs that explore sets of states breadth-first, keeping only sets that are minimal with respect to
+ * set inclusion. Any sequence that is rejected from some set of states is also rejected from all of its subsets, so a
+ * superset never has to be explored once one of its subsets has been.
+ * <p>
+ * See De Wulf, Doyen, Henzinger &amp; Raskin: Antichains: A New Algorithm for Checking Universality of Finite Automata
+ */
+final class Antichains {
+    private Antichains() {
+    }
+
+    /**
+     * Runs in O(transitions.numberOfBranches())
+     */
+    static <S extends State, E extends Event<S>> Optional<List<E>> findAcceptedSequence(NFA<S, E> nfa, Collection<S> start) {
+        final Map<S, Node<S, E>> visited = new HashMap<>();
+        final Queue<Node<S, E>> queue = new ArrayDeque<>();
+        for (S state : start)
+            if (!visited.containsKey(state)) {
+                final Node<S, E> node = new Node<>(state, null, null, null);
+                visited.put(state, node);
+                queue.add(node);
+            }
+
+        while (!queue.isEmpty()) {
+            final Node<S, E> node = queue.remove();
+            if (nfa.isAccepting(node.state)) return Optional.of(node.getEvents());
+
+            final Map<E, ? extends Set<Transition<S, E>>> eventsForState = nfa.transitions.get(node.state);
+            if (eventsForState != null) eventsForState.forEach((event, transitions) -> {
+                for (Transition<S, E> transition : transitions)
+                    if (!visited.containsKey(transition.getTo())) {
+                        final Node<S, E> next = new Node<>(transition.getTo(), null, node, event);
+                        visited.put(transition.getTo(), next);
+                        queue.add(next);
+                    }
+            });
+        }
+        return Optional.empty();
+    }
+
+    static <S extends State, E extends Event<S>> Optional<List<E>> findRejectedSequence(NFA<S, E> nfa, Collection<S> start, Collection<E> alphabet) {
+        final StateIndex<S, E> index = new StateIndex<>(nfa);
+        final Antichain<Object> antichain = new Antichain<>();
+        final Object key = new Object();
+
+        final Node<Object, E> initial = new Node<>(key, index.getIds(start), null, null);
+        if (!index.containsAccepting(initial.macrostate)) return Optional.of(initial.getEvents());
+        antichain.insert(key, initial.macrostate);
+
+        final Queue<Node<Object, E>> queue = new ArrayDeque<>();
+        queue.add(initial);
+        while (!queue.isEmpty()) {
+            final Node<Object, E> node = queue.remove();
+            for (E event : alphabet) {
+                final Node<Object, E> next = new Node<>(key, index.post(node.macrostate, event), node, event);
+                if (!index.containsAccepting(next.macrostate)) return Optional.of(next.getEvents());
+                if (antichain.insert(key, next.macrostate)) queue.add(next);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return Shortest sequence that is accepted by a, but not by b
+     */
+    static <S extends State, E extends Event<S>> Optional<List<E>> findSequenceNotIncluded(NFA<S, E> a, Collection<S> startA,
+                                                                                          NFA<S, E> b, Collection<S> startB) {
+        final StateIndex<S, E> index = new StateIndex<>(b);
+        final Antichain<S> antichain = new Antichain<>();
+        final BitSet initialMacrostate = index.getIds(startB);
+
+        final Queue<Node<S, E>> queue = new ArrayDeque<>();
+        for (S state : startA) {
+            final Node<S, E> node = new Node<>(state, initialMacrostate, null, null);
+            if (a.isAccepting(state) && !index.containsAccepting(initialMacrostate)) return Optional.of(node.getEvents());
+            if (antichain.insert(state, initialMacrostate)) queue.add(node);
+        }
+
+        while (!queue.isEmpty()) {
+            final Node<S, E> node = queue.remove();
+            final Map<E, ? extends Set<Transition<S, E>>> eventsForState = a.transitions.get(node.state);
+            if (eventsForState == null) continue;
+            for (Map.Entry<E, ? extends Set<Transition<S, E>>> entry : eventsForState.entrySet()) {
+                final E event = entry.getKey();
+                final BitSet post = index.post(node.macrostate, event);
+                final boolean postAccepts = index.containsAccepting(post);
+                for (Transition<S, E> transition : entry.getValue()) {
+                    final Node<S, E> next = new Node<>(transition.getTo(), post, node, event);
+                    if (!postAccepts && a.isAccepting(next.state)) return Optional.of(next.getEvents());
+                    if (antichain.insert(next.state, post)) queue.add(next);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Dense ids for the states of an NFA, so that sets of states can be represented as bit sets
+     */
+    private static class StateIndex<S extends State, E extends Event<S>> {
+        private final NFA<S, E> nfa;
+        private final Map<S, Integer> ids;
+        private final List<S> states;
+        private final BitSet accepting;
+
+        StateIndex(NFA<S, E> nfa) {
+            this.nfa = nfa;
+            this.ids = new HashMap<>(nfa.states.size());
+            this.states = new ArrayList<>(nfa.states);
+            this.accepting = new BitSet(states.size());
+            for (int i = 0; i < states.size(); i++) {
+                ids.put(states.get(i), i);
+                if (nfa.isAccepting(states.get(i))) accepting.set(i);
+            }
+        }
+
+        BitSet getIds(Collection<S> states) {
+            final BitSet set = new BitSet(this.states.size());
+            for (S state : states) {
+                final Integer id = ids.get(state);
+                if (id != null) set.set(id);
+            }
+            return set;
+        }
+
+        boolean containsAccepting(BitSet macrostate) {
+            return macrostate.intersects(accepting);
+        }
+
+        /**
+         * @return All states that can be reached from the given states through the given event
+         */
+        BitSet post(BitSet macrostate, E event) {
+            final BitSet post = new BitSet(states.size());
+            for (int i = macrostate.nextSetBit(0); i >= 0; i = macrostate.nextSetBit(i + 1))
+                for (Transition<S, E> transition : nfa.getTransitions(states.get(i), event))
+                    post.set(ids.get(transition.getTo()));
+            return post;
+        }
+    }
+
+    /**
+     * For every key, a collection of sets that are pairwise incomparable with respect to set inclusion
+     */
+    private static class Antichain<K> {
+        private final Map<K, List<BitSet>> elements = new HashMap<>();
+
+        /**
+         * @return False if a subset of the given set was already present, so the given set need not be explored
+         */
+        boolean insert(K key, BitSet set) {
+            final List<BitSet> sets = elements.computeIfAbsent(key, ignored -> new ArrayList<>());
+            for (BitSet existing : sets) if (isSubset(existing, set)) return false;
+            sets.removeIf(existing -> isSubset(set, existing));
+            sets.add(set);
+            return true;
+        }
+
+        private static boolean isSubset(BitSet a, BitSet b) {
+            for (int i = a.nextSetBit(0); i >= 0; i = a.nextSetBit(i + 1)) if (!b.get(i)) return false;
+            return true;
+        }
+    }
+
+    private static class Node<K, E> {
+        final K state;
+        final BitSet macrostate;
+        final Node<K, E> parent;
+        final E event;
+
+        Node(K state, BitSet macrostate, Node<K, E> parent, E event) {
+            this.state = state;
+            this.macrostate = macrostate;
+            this.parent = parent;
+            this.event = event;
+        }
+
+        /**
+         * @return Events that lead from the root to this node
+         */
+        List<E> getEvents() {
+            final LinkedList<E> events = new LinkedList<>();
+            for (Node<K, E> node = this; node.parent != null; node = node.parent) events.addFirst(node.event);
+            return events;
+        }
+    }
+}
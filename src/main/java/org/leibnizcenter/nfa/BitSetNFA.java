@@ -0,0 +1,268 @@
+package org.leibnizcenter.nfa;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * An NFA for stepping sets of active states as bitsets, for automata with hundreds to a few thousand states. States
+ * are numbered, and for every state and event the set of successors is stored as a mask of 64-bit words. A step ORs
+ * together the masks of the active states, word by word, so it takes O(active states * mask words) word operations
+ * rather than one set operation per transition. By default the words are ORed one at a time by {@link #SCALAR_STEP}:
+ * the JIT does not vectorize that loop, because its bounds depend on which states are active. A {@link MaskStep} that
+ * ORs several words per instruction, like the one in the nfa-vector module for Java 17 and later, can be passed to
+ * the constructor instead.
+ * <p>
+ * Masks only span the words between their first and last set bit, so states whose successors are numbered close
+ * together have short masks. The masks for an event are packed into one array in state order. Numbering states with
+ * {@link StateOrder}, so that states that are active together get nearby numbers, therefore shortens masks and keeps the
+ * masks of hot states next to each other in memory.
+ * <p>
+ * A run keeps a set, not one entry per path, so side effects are not fired.
+ */
+@SuppressWarnings("WeakerAccess")
+public class BitSetNFA<S extends State, E extends Event<S>> {
+    /**
+     * ORs the masks word by word
+     */
+    public static final MaskStep SCALAR_STEP = (words, offsets, firstWord, active, next) -> {
+        for (int word = 0; word < active.length; word++) {
+            long bits = active[word];
+            while (bits != 0L) {
+                final int state = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                final int start = offsets[state];
+                final int end = offsets[state + 1];
+                final int shift = firstWord[state] - start;
+                for (int i = start; i < end; i++) next[shift + i] |= words[i];
+            }
+        }
+    };
+
+    private final MaskStep maskStep;
+    private final StateOrder.Profile<S> profile;
+    private final List<S> states;
+    private final Map<S, Integer> stateIds;
+    private final Map<E, Masks> masksByEvent;
+    private final long[] accepting;
+    private final int words;
+
+    /**
+     * Numbers states in the order set with {@link NFA.Builder#setStateOrder(List)}, if any
+     */
+    public BitSetNFA(NFA<S, E> nfa) {
+        this(nfa, nfa.getStateOrder());
+    }
+
+    /**
+     * @param order States in the order in which they are numbered, for instance from {@link StateOrder}; states that
+     *              are not in the list are numbered after those that are
+     */
+    public BitSetNFA(NFA<S, E> nfa, List<S> order) {
+        this(nfa, order, SCALAR_STEP);
+    }
+
+    /**
+     * @param order    States in the order in which they are numbered, for instance from {@link StateOrder}; states
+     *                 that are not in the list are numbered after those that are
+     * @param maskStep Step that ORs the successor masks of the active states
+     */
+    public BitSetNFA(NFA<S, E> nfa, List<S> order, MaskStep maskStep) {
+        this.maskStep = maskStep;
+        this.profile = nfa.getProfile();
+        final Set<S> allStates = new LinkedHashSet<>(order);
+        allStates.addAll(nfa.states);
+        nfa.transitions.forEach((from, eventMap) -> {
+            allStates.add(from);
+            eventMap.values().forEach(transitions -> transitions.forEach(transition -> allStates.add(transition.getTo())));
+        });
+        this.states = new ArrayList<>(allStates);
+        this.stateIds = new HashMap<>(states.size() * 2);
+        for (int i = 0; i < states.size(); i++) stateIds.put(states.get(i), i);
+        this.words = Math.max(1, (states.size() + 63) >>> 6);
+
+        this.accepting = new long[words];
+        for (S state : nfa.acceptingStates) set(accepting, stateIds.get(state));
+
+        this.masksByEvent = new HashMap<>();
+        nfa.transitions.forEach((from, eventMap) -> eventMap.forEach((event, transitions) -> {
+            final long[] mask = new long[words];
+            for (Transition<S, E> transition : transitions) set(mask, stateIds.get(transition.getTo()));
+            masksByEvent.computeIfAbsent(event, ignored -> new Masks(states.size()))
+                    .put(stateIds.get(from), mask);
+        }));
+        masksByEvent.values().forEach(Masks::pack);
+    }
+
+    private static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static boolean intersects(long[] a, long[] b) {
+        for (int i = 0; i < a.length; i++) if ((a[i] & b[i]) != 0L) return true;
+        return false;
+    }
+
+    public int numberOfStates() {
+        return states.size();
+    }
+
+    /**
+     * @return Total number of words in all successor masks; a step reads the masks of its active states
+     */
+    public long numberOfMaskWords() {
+        long words = 0L;
+        for (Masks masks : masksByEvent.values()) words += masks.words.length;
+        return words;
+    }
+
+    /**
+     * @return States in the order in which they are numbered
+     */
+    public List<S> getStates() {
+        return Collections.unmodifiableList(states);
+    }
+
+    public Run start(S state) {
+        return start(Collections.singleton(state));
+    }
+
+    /**
+     * @param initialStates States to start in; states that do not occur in the NFA are ignored, because they have no
+     *                      transitions
+     */
+    public Run start(Collection<S> initialStates) {
+        final long[] active = new long[words];
+        for (S state : initialStates) {
+            final Integer id = stateIds.get(state);
+            if (id != null) set(active, id);
+        }
+        return new Run(active);
+    }
+
+    /**
+     * Successor masks of all states for one event. Every mask is stored from the word of its lowest successor to
+     * the word of its highest successor, and all masks are packed into one array, in state order.
+     */
+    private static final class Masks {
+        /**
+         * Masks by state, until they are packed
+         */
+        private long[][] unpacked;
+        private final int[] firstWord;
+        /**
+         * Mask of state i is at words[offsets[i]] up to words[offsets[i + 1]]
+         */
+        private final int[] offsets;
+        private long[] words;
+
+        Masks(int numberOfStates) {
+            this.unpacked = new long[numberOfStates][];
+            this.firstWord = new int[numberOfStates];
+            this.offsets = new int[numberOfStates + 1];
+        }
+
+        void put(int state, long[] mask) {
+            int first = 0;
+            while (first < mask.length && mask[first] == 0L) first++;
+            int last = mask.length - 1;
+            while (last >= first && mask[last] == 0L) last--;
+            if (first > last) return;
+            firstWord[state] = first;
+            unpacked[state] = Arrays.copyOfRange(mask, first, last + 1);
+        }
+
+        void pack() {
+            for (int state = 0; state < unpacked.length; state++)
+                offsets[state + 1] = offsets[state] + (unpacked[state] == null ? 0 : unpacked[state].length);
+            words = new long[offsets[unpacked.length]];
+            for (int state = 0; state < unpacked.length; state++)
+                if (unpacked[state] != null)
+                    System.arraycopy(unpacked[state], 0, words, offsets[state], unpacked[state].length);
+            unpacked = null;
+        }
+
+        /**
+         * ORs the successors of all active states into the next set
+         */
+        void step(MaskStep maskStep, long[] active, long[] next) {
+            maskStep.step(words, offsets, firstWord, active, next);
+        }
+    }
+
+    /**
+     * ORs the successor masks of all active states for one event into the next set of states. Every mask covers a
+     * range of words of a state set, so an implementation may OR several words at once.
+     */
+    @FunctionalInterface
+    public interface MaskStep {
+        /**
+         * @param words     Masks of all states, packed in state order
+         * @param offsets   The mask of state i is at words[offsets[i]] up to words[offsets[i + 1]]
+         * @param firstWord The first word of the mask of state i is ORed into next[firstWord[i]]
+         * @param active    Active states, one bit per state
+         * @param next      Set to OR the successors into, as long as active
+         */
+        void step(long[] words, int[] offsets, int[] firstWord, long[] active, long[] next);
+    }
+
+    /**
+     * Set of active states of a run. Not thread-safe, but runs of the same NFA may be used concurrently.
+     */
+    public class Run {
+        private long[] active;
+        private long[] next;
+
+        private Run(long[] active) {
+            this.active = active;
+            this.next = new long[active.length];
+        }
+
+        /**
+         * Runs in O(words + active states * mask words), plus O(active states) if the NFA has a profile
+         */
+        public Run andThen(E e) {
+            Arrays.fill(next, 0L);
+            final Masks masks = masksByEvent.get(e);
+            if (masks != null) masks.step(maskStep, active, next);
+            final long[] swap = active;
+            active = next;
+            next = swap;
+            if (profile != null) forEachActiveState(profile::visit);
+            return this;
+        }
+
+        public boolean isEmpty() {
+            for (long word : active) if (word != 0L) return false;
+            return true;
+        }
+
+        /**
+         * @return Whether any active state is accepting
+         */
+        public boolean isAccepting() {
+            return intersects(active, accepting);
+        }
+
+        public int numberOfActiveStates() {
+            int count = 0;
+            for (long word : active) count += Long.bitCount(word);
+            return count;
+        }
+
+        public Set<S> getStates() {
+            final Set<S> result = new LinkedHashSet<>();
+            forEachActiveState(result::add);
+            return result;
+        }
+
+        private void forEachActiveState(Consumer<S> action) {
+            for (int word = 0; word < active.length; word++) {
+                long bits = active[word];
+                while (bits != 0L) {
+                    action.accept(states.get((word << 6) + Long.numberOfTrailingZeros(bits)));
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.leibnizcenter.nfa;
+
+/**
+ * What {@link NFA#apply(State, java.util.LinkedList)} does when precomputing paths would exceed the memory budget of
+ * the NFA
+ *
+ * @see NFA.Builder#setMemoryBudget(long, BudgetPolicy)
+ */
+public enum BudgetPolicy {
+    /**
+     * Throw a {@link MemoryBudgetExceededException}
+     */
+    FAIL,
+    /**
+     * Step through the input with a run that counts paths per state, which uses memory in the number of distinct
+     * states instead of the number of paths. Only memory is saved, and the call behaves differently:
+     * <ul>
+     * <li>Side effects fire eagerly, for every step before the call returns, rather than when the resulting stream is
+     * consumed.</li>
+     * <li>Within a step, side effects are grouped by transition: each transition fires once for every path that takes
+     * it, one transition after the other, instead of path by path.</li>
+     * <li>Firing effects still takes time in the number of paths.</li>
+     * <li>The resulting stream expands the counts again, into one end state for every path.
+     * {@link NFA#getEndStateMultiplicities(State, Iterable)} returns the counts instead.</li>
+     * </ul>
+     */
+    STREAM
+}
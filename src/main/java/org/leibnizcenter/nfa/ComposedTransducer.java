@@ -0,0 +1,261 @@
+package org.leibnizcenter.nfa;
+
+import com.google.common.collect.ImmutableList;
+import org.leibnizcenter.nfa.util.WeakInterner;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Lazy composition of NFAs into a pipeline of transducers, where every transition of one stage outputs a list of
+ * events that are read by the next stage. A composed state is a tuple with one state per stage, and composed states
+ * are created on demand, as they are reached, and interned weakly like product states in {@link ProductNFA}, so the
+ * table of composed states only holds those that are still in use.
+ * <p>
+ * An input event is pushed through the stages depth-first: as soon as a stage takes a transition, its output events
+ * are read by the next stage, so no intermediate event lists are built, and memory depends on the number of live
+ * composed states rather than on the length of intermediate outputs. A transition that outputs no events leaves the
+ * later stages where they are.
+ * <p>
+ * Side effects of a stage fire when the stage takes a transition, once for every partial path that reaches it, like
+ * in {@link NFA.StateContainer#andThen(Event)}.
+ *
+ * @param <S> State type of the first stage
+ * @param <E> Event type of the first stage, which is the input of the pipeline
+ */
+@SuppressWarnings({"WeakerAccess", "unchecked"})
+public class ComposedTransducer<S extends State, E extends Event<S>> {
+    private final List<NFA<State, Event<State>>> stages;
+    private final List<Function<Transition<State, Event<State>>, List<Event<State>>>> outputs;
+
+    private final WeakInterner<List<State>, ComposedState> internedStates = new WeakInterner<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    /**
+     * A composed transition is identified by the state it reaches; side effects fire while it is computed
+     */
+    private final RunEngine<ComposedState, E, ComposedState> engine = new RunEngine<>((from, event) -> {
+        final List<ComposedState> reached = new ArrayList<>();
+        step(from, event, reached);
+        return reached;
+    }, Function.identity());
+
+    private ComposedTransducer(List<NFA<State, Event<State>>> stages, List<Function<Transition<State, Event<State>>, List<Event<State>>>> outputs) {
+        this.stages = ImmutableList.copyOf(stages);
+        this.outputs = ImmutableList.copyOf(outputs);
+    }
+
+    /**
+     * @param first First stage of the pipeline, which reads the input
+     */
+    public static <S extends State, E extends Event<S>> Builder<S, E, S, E> from(NFA<S, E> first) {
+        return new Builder<>(first);
+    }
+
+    public int numberOfStages() {
+        return stages.size();
+    }
+
+    /**
+     * Runs in O(1) amortized
+     *
+     * @param states One state for every stage
+     * @return The unique composed state for the given tuple of states
+     */
+    public ComposedState getState(List<? extends State> states) {
+        if (states.size() != stages.size())
+            throw new IllegalArgumentException("Expected " + stages.size() + " states, but got " + states.size());
+        final ComposedState state = internedStates.get(states);
+        if (state != null) return state;
+        return internedStates.intern(ImmutableList.copyOf(states), key -> new ComposedState(nextId.getAndIncrement(), key));
+    }
+
+    /**
+     * Runs in O(|interned states|)
+     *
+     * @return All composed states that have been reached and are still in use
+     */
+    public List<ComposedState> getReachedStates() {
+        return internedStates.values();
+    }
+
+    /**
+     * @return Number of composed states that have been created so far, including those that are no longer in use
+     */
+    public int numberOfCreatedStates() {
+        return nextId.get();
+    }
+
+    public StateContainer start(List<? extends State> states) {
+        return new StateContainer(Collections.singletonList(getState(states)), false);
+    }
+
+    /**
+     * @param mergePaths Whether to keep one path per composed state after every step, instead of one per path. Stages
+     *                   with many transitions that output nothing, or the same events, lead to many paths that end in
+     *                   the same composed state; merging them keeps the number of live paths bounded by the number of
+     *                   composed states. Every step then starts once from every distinct composed state, and side
+     *                   effects fire once per path within the step, from that state on. Paths that were merged in
+     *                   earlier steps do not fire separately any more.
+     */
+    public StateContainer start(List<? extends State> states, boolean mergePaths) {
+        return new StateContainer(Collections.singletonList(getState(states)), mergePaths);
+    }
+
+    /**
+     * Pushes one event through the stages, starting from the given composed state. The search keeps an explicit stack
+     * of frames rather than recursing, because its depth grows with the total length of the intermediate outputs.
+     *
+     * @param onReached Called with every composed state that is reached, once per path
+     */
+    private void step(ComposedState from, E event, Collection<ComposedState> onReached) {
+        final State[] current = from.states.toArray(new State[stages.size()]);
+        final Deque<Frame> frames = new ArrayDeque<>();
+        read(0, Collections.singletonList((Event<State>) event), 0, null, current, frames, onReached);
+        while (!frames.isEmpty()) {
+            final Frame frame = frames.peek();
+            if (frame.transitions.hasNext()) {
+                final Transition<State, Event<State>> transition = frame.transitions.next();
+                frame.events.get(frame.index).accept(transition.getFrom(), transition.getTo());
+                current[frame.stage] = transition.getTo();
+                // Feed the output of the transition to the next stage before reading the next event
+                if (frame.stage + 1 < stages.size())
+                    read(frame.stage + 1, outputs.get(frame.stage).apply(transition), 0, frame, current, frames, onReached);
+                else read(frame.stage, frame.events, frame.index + 1, frame.parent, current, frames, onReached);
+            } else {
+                current[frame.stage] = frame.saved;
+                frames.pop();
+            }
+        }
+    }
+
+    /**
+     * Lets a stage read the given events from the given index on, by pushing a frame for the event at that index. Once
+     * all events have been read, the stage that output them resumes at its next event instead, and once the first stage
+     * has read its event, the composed state is reached.
+     *
+     * @param parent Frame of the previous stage whose transition output the given events, or null for the first stage
+     */
+    private void read(int stage, List<Event<State>> events, int index, Frame parent, State[] current,
+                      Deque<Frame> frames, Collection<ComposedState> onReached) {
+        while (index >= events.size()) {
+            if (parent == null) {
+                onReached.add(getState(Arrays.asList(current)));
+                return;
+            }
+            stage = parent.stage;
+            events = parent.events;
+            index = parent.index + 1;
+            parent = parent.parent;
+        }
+        final Event<State> event = events.get(index);
+        frames.push(new Frame(stage, events, index, parent, current[stage],
+                stages.get(stage).getTransitions(current[stage], event).iterator()));
+    }
+
+    /**
+     * A stage reading one event of a list of events, trying its transitions one by one
+     */
+    private static final class Frame {
+        private final int stage;
+        private final List<Event<State>> events;
+        private final int index;
+        private final Frame parent;
+        /**
+         * State of the stage before reading the event, restored once all transitions have been tried
+         */
+        private final State saved;
+        private final Iterator<Transition<State, Event<State>>> transitions;
+
+        private Frame(int stage, List<Event<State>> events, int index, Frame parent, State saved,
+                      Iterator<Transition<State, Event<State>>> transitions) {
+            this.stage = stage;
+            this.events = events;
+            this.index = index;
+            this.parent = parent;
+            this.saved = saved;
+            this.transitions = transitions;
+        }
+    }
+
+    /**
+     * A tuple of states, one for every stage
+     */
+    public static class ComposedState implements State {
+        /**
+         * Unique among the composed states of the same transducer; not reused once a state is no longer in use
+         */
+        public final int id;
+        public final List<State> states;
+
+        private ComposedState(int id, List<State> states) {
+            this.id = id;
+            this.states = states;
+        }
+
+        @Override
+        public String toString() {
+            return states.toString();
+        }
+    }
+
+    /**
+     * Builds a pipeline stage by stage, keeping track of the state and event types of the last stage
+     *
+     * @param <S>  State type of the first stage
+     * @param <E>  Event type of the first stage
+     * @param <LS> State type of the last stage so far
+     * @param <LE> Event type of the last stage so far
+     */
+    public static class Builder<S extends State, E extends Event<S>, LS extends State, LE extends Event<LS>> {
+        private final List<NFA<State, Event<State>>> stages = new ArrayList<>();
+        private final List<Function<Transition<State, Event<State>>, List<Event<State>>>> outputs = new ArrayList<>();
+
+        private Builder(NFA<S, E> first) {
+            stages.add((NFA<State, Event<State>>) (NFA<?, ?>) first);
+        }
+
+        private Builder(Builder<S, E, ?, ?> previous) {
+            stages.addAll(previous.stages);
+            outputs.addAll(previous.outputs);
+        }
+
+        /**
+         * @param output Events that a transition of the last stage outputs to the next stage, in order; may be empty
+         * @param next   Next stage
+         */
+        public <NS extends State, NE extends Event<NS>> Builder<S, E, NS, NE> then(
+                Function<Transition<LS, LE>, List<NE>> output, NFA<NS, NE> next) {
+            final Builder<S, E, NS, NE> builder = new Builder<>(this);
+            builder.outputs.add((Function<Transition<State, Event<State>>, List<Event<State>>>) (Function<?, ?>) output);
+            builder.stages.add((NFA<State, Event<State>>) (NFA<?, ?>) next);
+            return builder;
+        }
+
+        public ComposedTransducer<S, E> build() {
+            return new ComposedTransducer<>(stages, outputs);
+        }
+    }
+
+    public class StateContainer {
+        private final boolean mergePaths;
+        public Collection<ComposedState> states;
+
+        private StateContainer(Collection<ComposedState> states, boolean mergePaths) {
+            this.states = states;
+            this.mergePaths = mergePaths;
+        }
+
+        public StateContainer andThen(E e) {
+            final Collection<ComposedState> next = mergePaths ? new LinkedHashSet<>() : new ArrayList<>();
+            states = engine.paths(states, e, (reached, times) -> {
+            }, next);
+            return this;
+        }
+
+        public Stream<ComposedState> getState() {
+            return states.stream();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.leibnizcenter.nfa;
+
+import java.util.*;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Multiset of states, stored as a count per distinct state. Iterates in insertion order. Read-only for users; only the
+ * NFA adds to it while stepping.
+ */
+class CountedStates<S> extends AbstractCollection<S> {
+    /**
+     * Counts are boxed in a one-element array, so that they can be incremented without reboxing
+     */
+    private final Map<S, long[]> counts;
+    private long size;
+
+    CountedStates(int expectedSize) {
+        this.counts = new LinkedHashMap<>(Math.max(16, expectedSize * 2));
+    }
+
+    static <S> CountedStates<S> of(Collection<S> states) {
+        final CountedStates<S> result = new CountedStates<>(states.size());
+        for (S state : states) result.add(state, 1L);
+        return result;
+    }
+
+    /**
+     * @throws ArithmeticException If the number of paths overflows a long
+     */
+    void add(S state, long count) {
+        final long[] countForState = counts.computeIfAbsent(state, ignored -> new long[1]);
+        countForState[0] = Math.addExact(countForState[0], count);
+        size = Math.addExact(size, count);
+    }
+
+    void forEachCount(ObjLongConsumer<S> action) {
+        counts.forEach((state, count) -> action.accept(state, count[0]));
+    }
+
+    int numberOfDistinctStates() {
+        return counts.size();
+    }
+
+    long numberOfPaths() {
+        return size;
+    }
+
+    @Override
+    public Iterator<S> iterator() {
+        final Iterator<Map.Entry<S, long[]>> entries = counts.entrySet().iterator();
+        return new Iterator<S>() {
+            private S state;
+            private long remaining;
+
+            @Override
+            public boolean hasNext() {
+                while (remaining <= 0) {
+                    if (!entries.hasNext()) return false;
+                    final Map.Entry<S, long[]> entry = entries.next();
+                    state = entry.getKey();
+                    remaining = entry.getValue()[0];
+                }
+                return true;
+            }
+
+            @Override
+            public S next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                remaining--;
+                return state;
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+}
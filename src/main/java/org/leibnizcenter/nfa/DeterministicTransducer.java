@@ -0,0 +1,146 @@
+package org.leibnizcenter.nfa;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Deterministic counterpart of an NFA run from a fixed start state. Every state of the transducer is a multiset of NFA
+ * states, holding the number of paths that end in each state, so there is at most one transition per state and event.
+ * A transition remembers which NFA transitions fire and how often, so {@link Run#andThen(Event)} fires exactly the
+ * side effects that {@link NFA.StateContainer#andThen(Event)} would, with one hash lookup per event and no branching.
+ * <p>
+ * Only exists if the number of paths is bounded; see {@link NFA#isDeterminizable(State)}. Building one is opt-in
+ * through {@link NFA#determinize(State)}: NFA runs do not switch to a transducer by themselves, because the
+ * construction costs far more than a single run.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DeterministicTransducer<S extends State, E extends Event<S>> {
+    private final List<Map<S, Long>> states = new ArrayList<>();
+    private final List<Map<E, Step<S, E>>> steps = new ArrayList<>();
+
+    private DeterministicTransducer() {
+    }
+
+    /**
+     * Runs in O(|transducer states| * |events| * |transitions|)
+     *
+     * @throws ArithmeticException If the number of paths into some state overflows a long
+     * @param maxStates Give up once the transducer would have more states than this
+     * @return Deterministic transducer that starts in the given state, or empty if the number of paths is unbounded or
+     * there would be too many states
+     */
+    static <S extends State, E extends Event<S>> Optional<DeterministicTransducer<S, E>> create(NFA<S, E> nfa, S start, int maxStates) {
+        if (!Ambiguity.isFinitelyAmbiguous(nfa, start)) return Optional.empty();
+
+        final DeterministicTransducer<S, E> transducer = new DeterministicTransducer<>();
+        final Map<Map<S, Long>, Integer> ids = new HashMap<>();
+        final Map<S, Long> initial = Collections.singletonMap(start, 1L);
+        ids.put(initial, 0);
+        transducer.states.add(initial);
+        for (int id = 0; id < transducer.states.size(); id++) {
+            final Map<S, Long> current = transducer.states.get(id);
+            final Map<E, Step<S, E>> stepsForState = new HashMap<>();
+            for (E event : eventsFrom(nfa, current.keySet())) {
+                final Map<S, Long> next = new HashMap<>();
+                final List<Transition<S, E>> fired = new ArrayList<>();
+                final List<Long> times = new ArrayList<>();
+                current.forEach((from, count) -> {
+                    for (Transition<S, E> transition : nfa.getTransitions(from, event)) {
+                        fired.add(transition);
+                        times.add(count);
+                        next.merge(transition.getTo(), count, Math::addExact);
+                    }
+                });
+
+                Integer target = ids.get(next);
+                if (target == null) {
+                    if (transducer.states.size() >= maxStates) return Optional.empty();
+                    target = transducer.states.size();
+                    ids.put(next, target);
+                    transducer.states.add(Collections.unmodifiableMap(next));
+                }
+                stepsForState.put(event, new Step<>(target, fired, times));
+            }
+            transducer.steps.add(stepsForState);
+        }
+        return Optional.of(transducer);
+    }
+
+    private static <S extends State, E extends Event<S>> Set<E> eventsFrom(NFA<S, E> nfa, Set<S> states) {
+        final Set<E> events = new HashSet<>();
+        for (S state : states) {
+            final Map<E, ? extends Set<Transition<S, E>>> eventMap = nfa.transitions.get(state);
+            if (eventMap != null) events.addAll(eventMap.keySet());
+        }
+        return events;
+    }
+
+    public int numberOfStates() {
+        return states.size();
+    }
+
+    public Run start() {
+        return new Run();
+    }
+
+    private static final class Step<S extends State, E extends Event<S>> {
+        private final int target;
+        private final Transition<S, E>[] transitions;
+        private final long[] times;
+
+        @SuppressWarnings("unchecked")
+        Step(int target, List<Transition<S, E>> transitions, List<Long> times) {
+            this.target = target;
+            this.transitions = (Transition<S, E>[]) transitions.toArray(new Transition<?, ?>[transitions.size()]);
+            this.times = new long[times.size()];
+            for (int i = 0; i < this.times.length; i++) this.times[i] = times.get(i);
+        }
+    }
+
+    /**
+     * Current state of a run. Not thread-safe.
+     */
+    public class Run {
+        /**
+         * Negative once no path is left
+         */
+        private int state;
+
+        private Run() {
+        }
+
+        /**
+         * Runs in O(1) lookups, and fires the side effect of every NFA transition of the step once through
+         * {@link Event#accept(State, State, long)}
+         */
+        public Run andThen(E e) {
+            if (state < 0) return this;
+            final Step<S, E> step = steps.get(state).get(e);
+            if (step == null) {
+                state = -1;
+                return this;
+            }
+            for (int i = 0; i < step.transitions.length; i++) {
+                final Transition<S, E> transition = step.transitions[i];
+                e.accept(transition.from, transition.to, step.times[i]);
+            }
+            state = step.target;
+            return this;
+        }
+
+        /**
+         * @return For every current state, the number of paths that end in it
+         */
+        public Map<S, Long> getStateCounts() {
+            return state < 0 ? Collections.emptyMap() : states.get(state);
+        }
+
+        /**
+         * @return Current states, one for every path
+         */
+        public Stream<S> getState() {
+            return getStateCounts().entrySet().stream()
+                    .flatMap(entry -> Stream.generate(entry::getKey).limit(entry.getValue()));
+        }
+    }
+}
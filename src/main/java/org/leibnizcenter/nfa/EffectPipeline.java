@@ -0,0 +1,242 @@
+package org.leibnizcenter.nfa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Runs side effects of transitions off the matching thread. Runs that are started with
+ * {@link NFA#start(State, EffectPipeline.Session)} push the transitions they take into a bounded ring buffer instead of
+ * calling {@link Event#accept(Object, Object)} themselves, so matching does not wait on slow side effects.
+ * <p>
+ * There is one buffer per lane, and each lane is drained by its own thread, in batches of at most
+ * <code>maxBatchSize</code>. A session always uses the same lane, so the side effects of a session run in the order
+ * in which its transitions were taken; sessions on different lanes run concurrently. If a buffer is full, the run that
+ * pushes to it blocks until the lane catches up.
+ * <p>
+ * If a side effect throws, the pipeline fails: the failure is rethrown from every later call to
+ * {@link Session#submit(Transition)}, {@link #flush()} and {@link #close()}, and transitions that are still buffered or
+ * submitted concurrently are discarded without running their side effects.
+ * <p>
+ * A thread that is interrupted while it waits for room in a buffer, or for the lanes to stop, gives up: it keeps its
+ * interrupt flag and gets a {@link CancellationException}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class EffectPipeline<S extends State, E extends Event<S>> implements AutoCloseable {
+    private final BatchExecutor<S, E> executor;
+    private final int maxBatchSize;
+    private final List<Lane> lanes;
+    private final AtomicInteger sessions = new AtomicInteger();
+    /**
+     * Submitting holds the read lock, so that closing waits for submissions that are under way
+     */
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+    private volatile Throwable failure;
+
+    /**
+     * Fires side effects by calling {@link Event#accept(Object, Object)} on one lane
+     */
+    public EffectPipeline(int capacityPerLane) {
+        this(capacityPerLane, 1, 64, EffectPipeline::accept);
+    }
+
+    /**
+     * @param capacityPerLane Number of transitions that can be buffered per lane before runs block
+     * @param lanes           Number of consumer threads
+     * @param maxBatchSize    Maximum number of transitions that are passed to the executor at once
+     * @param executor        Fires side effects for a batch of transitions, in order
+     */
+    public EffectPipeline(int capacityPerLane, int lanes, int maxBatchSize, BatchExecutor<S, E> executor) {
+        if (capacityPerLane < 1 || lanes < 1 || maxBatchSize < 1) throw new IllegalArgumentException();
+        this.executor = executor;
+        this.maxBatchSize = maxBatchSize;
+        this.lanes = new ArrayList<>(lanes);
+        for (int i = 0; i < lanes; i++) {
+            final Lane lane = new Lane(capacityPerLane);
+            lane.thread = new Thread(lane, "nfa-effects-" + i);
+            lane.thread.setDaemon(true);
+            this.lanes.add(lane);
+            lane.thread.start();
+        }
+    }
+
+    private static <S extends State, E extends Event<S>> void accept(List<Transition<S, E>> batch) {
+        for (Transition<S, E> transition : batch) transition.getEvent().accept(transition.getFrom(), transition.getTo());
+    }
+
+    /**
+     * @return New session, assigned to a lane round-robin
+     */
+    public Session newSession() {
+        return new Session(lanes.get(Math.floorMod(sessions.getAndIncrement(), lanes.size())));
+    }
+
+    /**
+     * Blocks until all side effects that were submitted before this call have run
+     *
+     * @throws CompletionException If a side effect has thrown
+     */
+    public void flush() throws InterruptedException {
+        for (Lane lane : lanes) lane.awaitCompleted(lane.submitted());
+        checkFailure();
+    }
+
+    private void checkFailure() {
+        final Throwable failure = this.failure;
+        if (failure != null) throw new CompletionException(failure);
+    }
+
+    /**
+     * Runs the side effects that are still buffered, and stops the consumer threads. Later submissions throw. Closing
+     * again only waits for the consumer threads. If the calling thread is interrupted while waiting, the consumer
+     * threads are interrupted too, so they stop without running the side effects that are still buffered.
+     *
+     * @throws CompletionException   If a side effect has thrown
+     * @throws CancellationException If the calling thread was interrupted; its interrupt flag is set
+     */
+    @Override
+    public void close() {
+        final boolean wasClosed;
+        closing.writeLock().lock();
+        try {
+            wasClosed = closed;
+            closed = true;
+        } finally {
+            closing.writeLock().unlock();
+        }
+        try {
+            if (!wasClosed) for (Lane lane : lanes) lane.put(lane.stop);
+            for (Lane lane : lanes) lane.thread.join();
+        } catch (InterruptedException e) {
+            for (Lane lane : lanes) lane.thread.interrupt();
+            throw interrupted(e);
+        }
+        checkFailure();
+    }
+
+    /**
+     * Restores the interrupt flag of the current thread
+     */
+    private static CancellationException interrupted(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        final CancellationException cancellation = new CancellationException("Interrupted while waiting for side effects");
+        cancellation.initCause(e);
+        return cancellation;
+    }
+
+    /**
+     * Fires side effects for a batch of transitions
+     */
+    @FunctionalInterface
+    public interface BatchExecutor<S extends State, E extends Event<S>> {
+        void execute(List<Transition<S, E>> batch);
+    }
+
+    /**
+     * Ordered stream of transitions, for example of a single run
+     */
+    public class Session {
+        private final Lane lane;
+
+        private Session(Lane lane) {
+            this.lane = lane;
+        }
+
+        /**
+         * Blocks while the buffer of this session's lane is full
+         *
+         * @throws IllegalStateException If the pipeline is closed
+         * @throws CompletionException   If a side effect has thrown
+         * @throws CancellationException If the calling thread was interrupted while the buffer was full; the
+         *                               transition is not submitted, and the interrupt flag is set
+         */
+        public void submit(Transition<S, E> transition) {
+            closing.readLock().lock();
+            try {
+                if (closed) throw new IllegalStateException("Pipeline is closed");
+                checkFailure();
+                lane.put(transition);
+            } catch (InterruptedException e) {
+                throw interrupted(e);
+            } finally {
+                closing.readLock().unlock();
+            }
+        }
+    }
+
+    private class Lane implements Runnable {
+        private final BlockingQueue<Object> buffer;
+        private final Object stop = new Object();
+        private Thread thread;
+        private long submitted;
+        private long completed;
+
+        Lane(int capacity) {
+            this.buffer = new ArrayBlockingQueue<>(capacity);
+        }
+
+        synchronized long submitted() {
+            return submitted;
+        }
+
+        /**
+         * Only waits, and so only throws, if the buffer is full
+         */
+        void put(Object element) throws InterruptedException {
+            synchronized (this) {
+                if (element != stop) submitted++;
+            }
+            if (buffer.offer(element)) return;
+            try {
+                buffer.put(element);
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    if (element != stop) submitted--;
+                }
+                throw e;
+            }
+        }
+
+        synchronized void awaitCompleted(long count) throws InterruptedException {
+            while (completed < count && thread.isAlive()) wait(10L);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            final List<Object> drained = new ArrayList<>(maxBatchSize);
+            final List<Transition<S, E>> batch = new ArrayList<>(maxBatchSize);
+            try {
+                while (true) {
+                    drained.add(buffer.take());
+                    buffer.drainTo(drained, maxBatchSize - 1);
+                    boolean stopped = false;
+                    for (Object element : drained)
+                        if (element == stop) stopped = true;
+                        else batch.add((Transition<S, E>) element);
+                    try {
+                        if (!batch.isEmpty() && failure == null) executor.execute(batch);
+                    } catch (RuntimeException | Error e) {
+                        failure = e;
+                    }
+                    synchronized (this) {
+                        completed += batch.size();
+                        notifyAll();
+                    }
+                    drained.clear();
+                    batch.clear();
+                    if (stopped && buffer.isEmpty()) return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.leibnizcenter.nfa;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics that an {@link NFA} collects about its own runs, and that drive its choice of {@link ExecutionStrategy}.
+ * Static properties are computed once per NFA; run statistics are updated concurrently by all runs. Until runs have
+ * taken {@link #MIN_STEPS_TO_ADAPT} steps, a new run picks its strategy from the static properties; after that, from
+ * how many paths earlier runs had, and how often those paths met in the same state.
+ */
+@SuppressWarnings("WeakerAccess")
+public class EngineMetrics {
+    /**
+     * Number of recorded steps after which new runs pick their strategy from observed run behaviour
+     */
+    static final long MIN_STEPS_TO_ADAPT = 1024L;
+    /**
+     * Counting pays off once paths arrive in the same state this many times on average
+     */
+    private static final double MIN_BRANCHING_TO_COUNT = 2.0;
+
+    private final int numberOfStates;
+    private final int rows;
+    private final int deterministicRows;
+    private final double determinismRatio;
+    private final boolean deterministic;
+    private final LongAdder[] steps = new LongAdder[ExecutionStrategy.values().length];
+    private final LongAdder strategySwitches = new LongAdder();
+    private final LongAdder activeStates = new LongAdder();
+    private final LongAdder paths = new LongAdder();
+    /**
+     * Distinct states and paths after steps that count paths, which are the only steps that see paths meet
+     */
+    private final LongAdder countedActiveStates = new LongAdder();
+    private final LongAdder countedPaths = new LongAdder();
+    private final LongAdder parallelApplies = new LongAdder();
+    private final LongAdder sequentialApplies = new LongAdder();
+    private final LongAdder budgetExceeded = new LongAdder();
+    private final LongAdder streamingFallbacks = new LongAdder();
+
+    /**
+     * @param rows              Number of (state, event) pairs with transitions
+     * @param deterministicRows Number of (state, event) pairs with exactly one transition
+     */
+    EngineMetrics(int numberOfStates, int rows, int deterministicRows) {
+        this.numberOfStates = numberOfStates;
+        this.rows = rows;
+        this.deterministicRows = deterministicRows;
+        this.determinismRatio = rows == 0 ? 1.0 : (double) deterministicRows / rows;
+        this.deterministic = rows == deterministicRows;
+        for (int i = 0; i < steps.length; i++) steps[i] = new LongAdder();
+    }
+
+    /**
+     * Runs in O(1)
+     *
+     * @param rowsDelta              Change in the number of (state, event) pairs with transitions
+     * @param deterministicRowsDelta Change in the number of (state, event) pairs with exactly one transition
+     * @return Static properties of an NFA that differs from this one by the given changes, with no runs yet
+     */
+    EngineMetrics derive(int numberOfStates, int rowsDelta, int deterministicRowsDelta) {
+        return new EngineMetrics(numberOfStates, rows + rowsDelta, deterministicRows + deterministicRowsDelta);
+    }
+
+    void recordStep(ExecutionStrategy strategy, long activeStates, long paths) {
+        steps[strategy.ordinal()].increment();
+        this.activeStates.add(activeStates);
+        this.paths.add(paths);
+        if (strategy != ExecutionStrategy.PATHS) {
+            countedActiveStates.add(activeStates);
+            countedPaths.add(paths);
+        }
+    }
+
+    /**
+     * Runs in O(1)
+     *
+     * @return {@link ExecutionStrategy#COUNTS} if earlier runs averaged more paths than a run lists before it switches
+     * to counts, or if their paths met in the same state at least twice on average; {@link ExecutionStrategy#PATHS}
+     * otherwise; null if fewer than {@link #MIN_STEPS_TO_ADAPT} steps were recorded
+     */
+    ExecutionStrategy getObservedStrategy() {
+        final long steps = getTotalSteps();
+        if (steps < MIN_STEPS_TO_ADAPT) return null;
+        if ((double) paths.sum() / steps > NFA.MAX_PATHS_TO_LIST) return ExecutionStrategy.COUNTS;
+        final long counted = countedActiveStates.sum();
+        if (counted > 0L && (double) countedPaths.sum() / counted >= MIN_BRANCHING_TO_COUNT)
+            return ExecutionStrategy.COUNTS;
+        return ExecutionStrategy.PATHS;
+    }
+
+    void recordSwitch() {
+        strategySwitches.increment();
+    }
+
+    void recordApply(boolean parallel) {
+        (parallel ? parallelApplies : sequentialApplies).increment();
+    }
+
+    void recordBudgetExceeded() {
+        budgetExceeded.increment();
+    }
+
+    void recordStreamingFallback() {
+        streamingFallbacks.increment();
+    }
+
+    public int getNumberOfStates() {
+        return numberOfStates;
+    }
+
+    /**
+     * @return Fraction of (state, event) pairs with transitions that have exactly one transition
+     */
+    public double getDeterminismRatio() {
+        return determinismRatio;
+    }
+
+    /**
+     * @return Whether no (state, event) pair has more than one transition
+     */
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    public long getSteps(ExecutionStrategy strategy) {
+        return steps[strategy.ordinal()].sum();
+    }
+
+    public long getStrategySwitches() {
+        return strategySwitches.sum();
+    }
+
+    /**
+     * @return Average number of states after a step. For {@link ExecutionStrategy#PATHS}, states that are reached
+     * through several paths are counted once per path.
+     */
+    public double getAverageActiveStates() {
+        final long steps = getTotalSteps();
+        return steps == 0 ? 0.0 : (double) activeStates.sum() / steps;
+    }
+
+    /**
+     * @return Average number of paths per active state after a step; 1.0 means no two paths met
+     */
+    public double getAverageBranching() {
+        final long activeStates = this.activeStates.sum();
+        return activeStates == 0 ? 0.0 : (double) paths.sum() / activeStates;
+    }
+
+    public long getParallelApplies() {
+        return parallelApplies.sum();
+    }
+
+    public long getSequentialApplies() {
+        return sequentialApplies.sum();
+    }
+
+    /**
+     * @return Number of times that precomputing paths was stopped because it exceeded the memory budget
+     */
+    public long getBudgetExceeded() {
+        return budgetExceeded.sum();
+    }
+
+    /**
+     * @return Number of times that {@link NFA#apply(State, java.util.LinkedList)} streamed through the input because
+     * precomputing paths exceeded the memory budget
+     */
+    public long getStreamingFallbacks() {
+        return streamingFallbacks.sum();
+    }
+
+    private long getTotalSteps() {
+        long total = 0L;
+        for (LongAdder adder : steps) total += adder.sum();
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("EngineMetrics{states=").append(numberOfStates)
+                .append(", determinismRatio=").append(determinismRatio);
+        for (ExecutionStrategy strategy : ExecutionStrategy.values())
+            sb.append(", ").append(strategy).append('=').append(getSteps(strategy));
+        return sb.append(", switches=").append(getStrategySwitches())
+                .append(", parallelApplies=").append(getParallelApplies())
+                .append(", sequentialApplies=").append(getSequentialApplies())
+                .append(", budgetExceeded=").append(getBudgetExceeded())
+                .append(", streamingFallbacks=").append(getStreamingFallbacks())
+                .append('}').toString();
+    }
+}
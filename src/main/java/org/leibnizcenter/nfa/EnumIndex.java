@@ -0,0 +1,236 @@
+package org.leibnizcenter.nfa;
+
+import com.github.krukow.clj_ds.PersistentMap;
+import com.github.krukow.clj_ds.TransientMap;
+import com.github.krukow.clj_ds.Transients;
+import com.google.common.collect.ImmutableList;
+
+import java.util.*;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Transition table for NFAs whose states are constants of a single enum, indexed by ordinal. If the events are
+ * constants of a single enum too, rows are looked up by event ordinal as well; otherwise there is one hash lookup per
+ * event, and none per state.
+ * <p>
+ * Immutable: {@link #with(State, Event, Collection)} returns a patched copy that shares all rows but one.
+ */
+final class EnumIndex<S extends State, E extends Event<S>> {
+    final S[] states;
+    /**
+     * Indexed by event ordinal, then by state ordinal. Null if events are not enum constants.
+     */
+    private final List<Transition<S, E>>[][] byEventOrdinal;
+    /**
+     * Indexed by state ordinal. Null if events are enum constants.
+     */
+    private final PersistentMap<E, List<Transition<S, E>>[]> byEvent;
+    /**
+     * Constants of the event enum, by ordinal. Null if events are not enum constants.
+     */
+    private final Object[] events;
+
+    private EnumIndex(S[] states, Object[] events, List<Transition<S, E>>[][] byEventOrdinal, PersistentMap<E, List<Transition<S, E>>[]> byEvent) {
+        this.states = states;
+        this.events = events;
+        this.byEventOrdinal = byEventOrdinal;
+        this.byEvent = byEvent;
+    }
+
+    /**
+     * Runs in O(transitions.numberOfBranches())
+     *
+     * @return Index for the given NFA, or null if its states are not all constants of the same enum
+     */
+    static <S extends State, E extends Event<S>> EnumIndex<S, E> create(NFA<S, E> nfa) {
+        final Class<?> stateClass = getEnumClass(nfa.states);
+        if (stateClass == null) return null;
+        @SuppressWarnings("unchecked") final S[] states = (S[]) stateClass.getEnumConstants();
+
+        final Set<E> events = nfa.statesThatAllowEvent.keySet();
+        final Class<?> eventClass = getEnumClass(events);
+        final List<Transition<S, E>>[][] byEventOrdinal = eventClass == null ? null : newRows(eventClass.getEnumConstants().length);
+        final Map<E, List<Transition<S, E>>[]> byEvent = eventClass == null ? new HashMap<>(events.size() * 2) : null;
+
+        nfa.transitions.forEach((from, eventMap) -> eventMap.forEach((event, transitions) -> {
+            final List<Transition<S, E>>[] row;
+            if (byEventOrdinal != null) {
+                final int ordinal = ordinal(event);
+                if (byEventOrdinal[ordinal] == null) byEventOrdinal[ordinal] = newRow(states.length);
+                row = byEventOrdinal[ordinal];
+            } else row = byEvent.computeIfAbsent(event, ignored -> newRow(states.length));
+            row[ordinal(from)] = ImmutableList.copyOf(transitions);
+        }));
+
+        PersistentMap<E, List<Transition<S, E>>[]> persistentByEvent = null;
+        if (byEvent != null) {
+            TransientMap<E, List<Transition<S, E>>[]> transientByEvent = Transients.transientHashMap();
+            for (Map.Entry<E, List<Transition<S, E>>[]> entry : byEvent.entrySet())
+                transientByEvent = transientByEvent.plus(entry.getKey(), entry.getValue());
+            persistentByEvent = transientByEvent.persist();
+        }
+        return new EnumIndex<>(states, eventClass == null ? null : eventClass.getEnumConstants(), byEventOrdinal, persistentByEvent);
+    }
+
+    /**
+     * Runs in O(|state constants| + |event constants| + |transitions|) if events are enum constants, and in
+     * O(|state constants| + log |events| + |transitions|) otherwise, whatever the size of the NFA
+     *
+     * @param transitions All transitions from the state on the event after an update, which may be none
+     * @return Index that differs from this one only in the transitions from the given state on the given event, or
+     * null if the state, a target state or the event can't be indexed by this index
+     */
+    EnumIndex<S, E> with(S from, E event, Collection<Transition<S, E>> transitions) {
+        if (!contains(from)) return null;
+        for (Transition<S, E> transition : transitions) if (!contains(transition.getTo())) return null;
+        final List<Transition<S, E>> cell = transitions.isEmpty() ? null : ImmutableList.copyOf(transitions);
+
+        if (byEventOrdinal != null) {
+            if (!(event instanceof Enum)) return null;
+            final int eventOrdinal = ordinal(event);
+            if (eventOrdinal >= events.length || events[eventOrdinal] != event) return null;
+            final List<Transition<S, E>>[][] rows = byEventOrdinal.clone();
+            rows[eventOrdinal] = patch(rows[eventOrdinal], from, cell);
+            return new EnumIndex<>(states, events, rows, null);
+        } else return new EnumIndex<>(states, null, null, byEvent.plus(event, patch(byEvent.get(event), from, cell)));
+    }
+
+    private List<Transition<S, E>>[] patch(List<Transition<S, E>>[] row, S from, List<Transition<S, E>> cell) {
+        final List<Transition<S, E>>[] patched = row == null ? newRow(states.length) : row.clone();
+        patched[ordinal(from)] = cell;
+        return patched;
+    }
+
+    /**
+     * @return The enum class of which all given objects are constants, or null if there is no such class
+     */
+    private static Class<?> getEnumClass(Collection<?> objects) {
+        Class<?> enumClass = null;
+        for (Object o : objects) {
+            if (!(o instanceof Enum)) return null;
+            final Class<?> declaringClass = ((Enum<?>) o).getDeclaringClass();
+            if (enumClass == null) enumClass = declaringClass;
+            else if (enumClass != declaringClass) return null;
+        }
+        return enumClass;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <S extends State, E extends Event<S>> List<Transition<S, E>>[][] newRows(int size) {
+        return (List<Transition<S, E>>[][]) new List<?>[size][];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <S extends State, E extends Event<S>> List<Transition<S, E>>[] newRow(int size) {
+        return (List<Transition<S, E>>[]) new List<?>[size];
+    }
+
+    static int ordinal(Object enumConstant) {
+        return ((Enum<?>) enumConstant).ordinal();
+    }
+
+    /**
+     * Runs in O(1)
+     *
+     * @return Transitions by state ordinal for the given event, or null if no state allows the event. Entries for
+     * states that don't allow the event are null.
+     */
+    List<Transition<S, E>>[] getRow(E event) {
+        if (byEventOrdinal != null) {
+            if (!(event instanceof Enum)) return null;
+            final int ordinal = ordinal(event);
+            return ordinal < events.length && events[ordinal] == event ? byEventOrdinal[ordinal] : null;
+        } else return byEvent.get(event);
+    }
+
+    /**
+     * Runs in O(1)
+     */
+    Collection<Transition<S, E>> getTransitions(S from, E event) {
+        final List<Transition<S, E>>[] row = getRow(event);
+        if (row == null || !contains(from)) return Collections.emptyList();
+        final List<Transition<S, E>> transitions = row[ordinal(from)];
+        return transitions == null ? Collections.emptyList() : transitions;
+    }
+
+    /**
+     * Whether the given state is a constant of the indexed enum
+     */
+    boolean contains(S state) {
+        if (!(state instanceof Enum)) return false;
+        final int ordinal = ordinal(state);
+        return ordinal < states.length && states[ordinal] == state;
+    }
+
+    /**
+     * Read-only view on a multiset of states, stored as a count per state ordinal. Iterates in ordinal order.
+     */
+    static class Multiset<S> extends AbstractCollection<S> {
+        private final S[] states;
+        private final long[] counts;
+        private final long size;
+        private final int numberOfDistinctStates;
+
+        /**
+         * @throws ArithmeticException If the number of paths overflows a long
+         */
+        Multiset(S[] states, long[] counts) {
+            this.states = states;
+            this.counts = counts;
+            long size = 0L;
+            int distinct = 0;
+            for (long count : counts) {
+                size = Math.addExact(size, count);
+                if (count > 0L) distinct++;
+            }
+            this.size = size;
+            this.numberOfDistinctStates = distinct;
+        }
+
+        long[] getCounts() {
+            return counts;
+        }
+
+        void forEachCount(ObjLongConsumer<S> action) {
+            for (int ordinal = 0; ordinal < counts.length; ordinal++)
+                if (counts[ordinal] > 0L) action.accept(states[ordinal], counts[ordinal]);
+        }
+
+        int numberOfDistinctStates() {
+            return numberOfDistinctStates;
+        }
+
+        long numberOfPaths() {
+            return size;
+        }
+
+        @Override
+        public Iterator<S> iterator() {
+            return new Iterator<S>() {
+                private int ordinal = -1;
+                private long remaining;
+
+                @Override
+                public boolean hasNext() {
+                    while (remaining <= 0) {
+                        if (++ordinal >= counts.length) return false;
+                        remaining = counts[ordinal];
+                    }
+                    return true;
+                }
+
+                @Override
+                public S next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    remaining--;
+                    return states[ordinal];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(Integer.MAX_VALUE, size);
+        }
+    }
+}
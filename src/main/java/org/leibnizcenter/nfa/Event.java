@@ -6,4 +6,14 @@ import java.util.function.BiConsumer;
  * Created by maarten on 16-6-16.
  */
 public interface Event<S extends State> extends BiConsumer<S, S> {
+    /**
+     * Fires the side effect of a transition once for every path that takes it. Runs that count paths call this once
+     * per transition and step instead of calling {@link #accept(Object, Object)} once per path, so an event that
+     * overrides this to account for all paths at once lets those runs step in time independent of the number of paths.
+     *
+     * @param times Number of paths that take the transition; positive
+     */
+    default void accept(S from, S to, long times) {
+        for (long i = 0L; i < times; i++) accept(from, to);
+    }
 }
@@ -0,0 +1,27 @@
+package org.leibnizcenter.nfa;
+
+/**
+ * How a {@link NFA.StateContainer} represents the current states of a run. All strategies have the same semantics:
+ * there is one current state per path, and side effects fire once per path. Counting strategies fire the effect of a
+ * transition through {@link Event#accept(State, State, long)}, once per step, so they only save time over listing
+ * paths if events override that method; otherwise they save memory, but a step still takes time in the number of
+ * paths.
+ */
+public enum ExecutionStrategy {
+    /**
+     * A list with one entry per path. Cheapest if the automaton is (nearly) deterministic, because there are then
+     * only a few paths.
+     */
+    PATHS,
+    /**
+     * A count of paths per distinct state. Paths that arrive in the same state are merged, so memory grows with the
+     * number of distinct states rather than with the number of paths. A step throws an {@link ArithmeticException}
+     * if the number of paths overflows a long.
+     */
+    COUNTS,
+    /**
+     * A count of paths per state ordinal, stored in an array, with the same overflow check as {@link #COUNTS}. Only
+     * available if all states are constants of one enum.
+     */
+    ORDINAL_COUNTS
+}
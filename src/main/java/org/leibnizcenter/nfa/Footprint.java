@@ -0,0 +1,71 @@
+package org.leibnizcenter.nfa;
+
+/**
+ * Estimated heap usage of the structures of an {@link NFA}. Estimates assume a 64-bit JVM with compressed references,
+ * and count the objects that a structure owns, but not states and events, which are shared with the caller. Sizes of
+ * hash maps and sets, persistent or not, are estimated per entry, including the amortized share of their nodes or
+ * tables.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class Footprint {
+    private static final long OBJECT_HEADER = 12L;
+    private static final long REFERENCE = 4L;
+    private static final long MAP = 48L;
+    private static final long MAP_ENTRY = 32L;
+    static final long TRANSITION = align(OBJECT_HEADER + 3 * REFERENCE);
+    /**
+     * One {@link PossibleStateTransitionPaths}: five references and two ints
+     */
+    static final long PATHS = align(OBJECT_HEADER + 5 * REFERENCE + 2 * 4L);
+    /**
+     * One cell of the persistent list that holds the input suffix of a layer
+     */
+    static final long LIST_CELL = align(OBJECT_HEADER + 2 * REFERENCE + 2 * 4L);
+
+    public final long transitionsBytes;
+    public final long statesThatAllowEventBytes;
+    public final long statesBytes;
+
+    Footprint(long transitionsBytes, long statesThatAllowEventBytes, long statesBytes) {
+        this.transitionsBytes = transitionsBytes;
+        this.statesThatAllowEventBytes = statesThatAllowEventBytes;
+        this.statesBytes = statesBytes;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7L) & ~7L;
+    }
+
+    static long map(long entries) {
+        return MAP + entries * MAP_ENTRY;
+    }
+
+    /**
+     * @param numberOfPaths Number of states at the position, each with its own paths
+     * @return Bytes taken by the paths for one input position, including the map that the previous position looks
+     * them up in
+     */
+    static long layer(long numberOfPaths) {
+        return numberOfPaths * PATHS + map(numberOfPaths) + LIST_CELL;
+    }
+
+    /**
+     * @param numberOfPaths Number of states at the position
+     * @param newStates     Number of those states that have no paths at later positions
+     * @return Bytes taken by one input position of {@link NFA#precomputePaths(java.util.LinkedList)}, which also files
+     * the paths of every state under their input suffix, in a map per state
+     */
+    static long precomputedLayer(long numberOfPaths, long newStates) {
+        return layer(numberOfPaths) + numberOfPaths * MAP_ENTRY + newStates * (MAP + MAP_ENTRY);
+    }
+
+    public long getTotalBytes() {
+        return transitionsBytes + statesThatAllowEventBytes + statesBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "Footprint{transitions=" + transitionsBytes + ", statesThatAllowEvent=" + statesThatAllowEventBytes
+                + ", states=" + statesBytes + '}';
+    }
+}
@@ -0,0 +1,134 @@
+package org.leibnizcenter.nfa;
+
+import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.leibnizcenter.nfa.util.MemoCache;
+import org.leibnizcenter.nfa.util.Pair;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * NFA whose transitions are computed on demand by a {@link TransitionFunction}. Only states that are reached by a run
+ * are ever touched, and computed rows of transitions are kept in a bounded {@link MemoCache}, so memory stays bounded
+ * however large the state space is.
+ * <p>
+ * Unlike {@link NFA#precomputePaths(LinkedList)}, which starts from every state that allows an event, paths are
+ * computed from the states that are reachable from the start state, and transitions into dead ends are pruned.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ImplicitNFA<S extends State, E extends Event<S>> implements TransitionFunction<S, E> {
+    public final TransitionFunction<S, E> transitionFunction;
+    private final MemoCache<Map.Entry<S, E>, List<Transition<S, E>>> rows;
+    private final RunEngine<S, E, Transition<S, E>> engine = RunEngine.of(this);
+
+    /**
+     * @param maxCachedRows Maximum number of (state, event) pairs for which transitions are cached
+     */
+    public ImplicitNFA(TransitionFunction<S, E> transitionFunction, int maxCachedRows) {
+        this.transitionFunction = transitionFunction;
+        this.rows = new MemoCache<>(maxCachedRows);
+    }
+
+    /**
+     * Runs in O(1) on a cache hit
+     */
+    @Override
+    public List<Transition<S, E>> getTransitions(S from, E event) {
+        return rows.get(new Pair<>(from, event), key ->
+                Collections.unmodifiableList(new ArrayList<>(transitionFunction.getTransitions(from, event))));
+    }
+
+    /**
+     * Runs in O(|successors|) on a cache hit
+     */
+    @Override
+    public Collection<S> getSuccessors(S from, E event) {
+        return Collections2.transform(getTransitions(from, event), Transition::getTo);
+    }
+
+    @Override
+    public boolean isAccepting(S state) {
+        return transitionFunction.isAccepting(state);
+    }
+
+    /**
+     * @return Cache of transition rows, with hit and eviction statistics
+     */
+    public MemoCache<Map.Entry<S, E>, List<Transition<S, E>>> getCache() {
+        return rows;
+    }
+
+    /**
+     * Computes the states that are reachable at every input position with a forward pass, and then the paths with a
+     * backward pass over those states. Runs in O(|events| * |reachable transitions|).
+     *
+     * @return All complete paths from the start state, or empty if there are none
+     */
+    public Optional<PossibleStateTransitionPaths<S, E>> getTransitions(S start, List<E> events) {
+        final List<E> input = ImmutableList.copyOf(events);
+        if (input.isEmpty()) return Optional.empty();
+
+        final List<Set<S>> reachable = new ArrayList<>(input.size());
+        Set<S> current = Collections.singleton(start);
+        for (E event : input) {
+            reachable.add(current);
+            final Set<S> next = new HashSet<>();
+            for (S state : current) for (Transition<S, E> transition : getTransitions(state, event)) next.add(transition.getTo());
+            current = next;
+        }
+
+        Map<S, PossibleStateTransitionPaths<S, E>> further = null;
+        for (int position = input.size() - 1; position >= 0; position--) {
+            final List<E> postFixPath = input.subList(position, input.size());
+            final ImmutableMap.Builder<S, PossibleStateTransitionPaths<S, E>> paths = ImmutableMap.builder();
+            for (S state : reachable.get(position)) {
+                final List<Transition<S, E>> alive = new ArrayList<>();
+                for (Transition<S, E> transition : getTransitions(state, input.get(position)))
+                    if (further == null || further.containsKey(transition.getTo())) alive.add(transition);
+                if (alive.isEmpty()) continue;
+
+                Map<S, PossibleStateTransitionPaths<S, E>> restPaths = null;
+                if (further != null) {
+                    restPaths = new HashMap<>();
+                    for (Transition<S, E> transition : alive) restPaths.put(transition.getTo(), further.get(transition.getTo()));
+                }
+                paths.put(state, new PossibleStateTransitionPaths<>(state, alive, postFixPath, restPaths));
+            }
+            further = paths.build();
+        }
+        return Optional.ofNullable(further.get(start));
+    }
+
+    /**
+     * @return A stream of end states, one for every complete path. Side effects fire as the stream is consumed.
+     */
+    public Stream<State> apply(S start, List<E> events) {
+        return getTransitions(start, events).map(PossibleStateTransitionPaths::applyRecursive).orElseGet(Stream::empty);
+    }
+
+    public StateContainer start(S state) {
+        return new StateContainer(Collections.singletonList(state));
+    }
+
+    public class StateContainer {
+        public Collection<S> states;
+
+        /**
+         * @param states Initial states, one for every path; copied
+         */
+        public StateContainer(Collection<S> states) {
+            this.states = new ArrayList<>(states);
+        }
+
+        public StateContainer andThen(E e) {
+            states = engine.paths(states, e, (transition, times) -> e.accept(transition.getFrom(), transition.getTo()));
+            return this;
+        }
+
+        public Stream<S> getState() {
+            return states.stream();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.leibnizcenter.nfa;
+
+/**
+ * Thrown when precomputing paths would take more memory than the budget of an NFA allows
+ *
+ * @see NFA.Builder#setMemoryBudget(long, BudgetPolicy)
+ */
+@SuppressWarnings("WeakerAccess")
+public class MemoryBudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final long budget;
+    private final long estimatedBytes;
+
+    public MemoryBudgetExceededException(long budget, long estimatedBytes) {
+        super("Precomputed paths take an estimated " + estimatedBytes + " bytes, but the budget is " + budget + " bytes");
+        this.budget = budget;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return Estimated bytes used when the budget was exceeded
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+}
@@ -1,44 +1,127 @@
 package org.leibnizcenter.nfa;
 
-import com.github.krukow.clj_ds.PersistentList;
-import com.google.common.collect.*;
+import com.github.krukow.clj_ds.*;
+import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.leibnizcenter.nfa.util.MemoCache;
+import org.leibnizcenter.nfa.util.Pair;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 /**
  * Immutable NFA
  * <p>
+ * All maps are persistent, so {@link #withTransition(Transition)} and {@link #withoutTransition(Transition)} return
+ * a new NFA in O(log n) that shares all untouched structure with this one. Its ordinal index and metrics are patched
+ * rather than rebuilt, so the first run of a derived NFA does not scan its transitions either. Readers of an existing
+ * instance always see a consistent snapshot.
+ * <p>
  * Created by maarten on 15-6-16.
  */
 @SuppressWarnings("WeakerAccess")
-public class NFA<S extends State, E extends Event<S>> {
-    public final Map<S, Multimap<E, Transition<S, E>>> transitions;
-    public final Set<S> states;
-    public final Multimap<E, S> statesThatAllowEvent;
+public class NFA<S extends State, E extends Event<S>> implements TransitionFunction<S, E> {
+    /**
+     * Runs with more paths than this switch from {@link ExecutionStrategy#PATHS} to {@link ExecutionStrategy#COUNTS}
+     */
+    static final int MAX_PATHS_TO_LIST = 64;
+    /**
+     * Automata with a lower determinism ratio start out with {@link ExecutionStrategy#COUNTS}
+     */
+    private static final double MIN_DETERMINISM_RATIO_TO_LIST = 0.5;
+    /**
+     * {@link #apply(State, LinkedList)} precomputes paths in parallel if some event is allowed by this many states
+     */
+    private static final int MIN_STATES_PER_POSITION_TO_PARALLELIZE = 1024;
 
-    private NFA(Builder<S, E> builder) {
-        this.states = ImmutableSet.copyOf(builder.states);
+    /**
+     * Transitions by from state and event. Persistent, so that derived NFAs share structure with this one.
+     * <p>
+     * This used to be a map to Guava multimaps, so the type change breaks source compatibility, and a state without
+     * transitions now maps to null rather than to an empty multimap, as does an event that the state does not allow.
+     * Use {@link #getTransitions(State, Event)}, which returns an empty collection for both.
+     */
+    public final PersistentMap<S, PersistentMap<E, PersistentSet<Transition<S, E>>>> transitions;
+    public final PersistentSet<S> states;
+    public final PersistentSet<S> acceptingStates;
+    /**
+     * States that have transitions on an event. Persistent, so that derived NFAs share structure with this one.
+     * <p>
+     * This used to be a Guava multimap, so the type change breaks source compatibility, and an event that no state
+     * allows now maps to null rather than to an empty collection. Use {@link #getStatesThatAllowEvent(Event)}, which
+     * returns an empty collection.
+     */
+    public final PersistentMap<E, PersistentSet<S>> statesThatAllowEvent;
+    /**
+     * Ordinal-indexed transition table if all states are constants of one enum. Built eagerly by the builder, and
+     * patched for NFAs derived through {@link #withTransition(Transition)}, in time independent of the number of
+     * transitions. A derived NFA only has an index if the NFA it is derived from has one and the update fits in it.
+     */
+    private volatile EnumIndex<S, E> enumIndex;
+    private volatile boolean enumIndexComputed;
+    private volatile EngineMetrics metrics;
+    private volatile TransitionGraph<S, E> transitionGraph;
+    /**
+     * Paths for every state that allows the head of an input suffix, keyed by the head and the id of the rest of the
+     * suffix, and bounded by estimated bytes. Null if caching is disabled.
+     */
+    private final MemoCache<Map.Entry<E, Long>, PathLayer<S, E>> pathCache;
+    private final AtomicLong nextSuffixId = new AtomicLong(1L);
+    /**
+     * Maximum estimated bytes of the paths that one call precomputes; Long.MAX_VALUE if there is no budget
+     */
+    private final long memoryBudget;
+    private final BudgetPolicy budgetPolicy;
+    /**
+     * Order in which {@link TransitionGraph} and, by default, {@link BitSetNFA} number states
+     */
+    private final List<S> stateOrder;
+    /**
+     * Records the states of every step of runs and applies, or null
+     */
+    private final StateOrder.Profile<S> profile;
+    private final RunEngine<S, E, Transition<S, E>> engine = RunEngine.of(this);
 
-        ImmutableMap.Builder<S, Multimap<E, Transition<S, E>>> immTransitions = new ImmutableMap.Builder<>();
+    private NFA(Builder<S, E> builder) {
+        this.pathCache = newPathCache(builder.pathCacheBytes);
+        this.memoryBudget = builder.memoryBudget;
+        this.budgetPolicy = builder.budgetPolicy;
+        this.stateOrder = builder.stateOrder;
+        this.profile = builder.profile;
+        this.states = Persistents.hashSet(builder.states);
+        this.acceptingStates = Persistents.hashSet(builder.acceptingStates);
 
         // O(transitions.numberOfBranches())
-        builder.transitions.forEach((state, eventToTransitionMap) -> {
-            final ImmutableMultimap.Builder<E, Transition<S, E>> eventToTransitionMapBuilder = new ImmutableMultimap.Builder<>();
-            eventToTransitionMap.forEach(eventToTransitionMapBuilder::putAll);
-            immTransitions.put(state, eventToTransitionMapBuilder.build());
-        });
-        this.transitions = immTransitions.build();
+        TransientMap<S, PersistentMap<E, PersistentSet<Transition<S, E>>>> immTransitions = Transients.transientHashMap();
+        Map<E, Set<S>> statesThatAllowEvent = new HashMap<>();
+        for (Map.Entry<S, Map<E, Set<Transition<S, E>>>> stateEntry : builder.transitions.entrySet()) {
+            final S state = stateEntry.getKey();
+            TransientMap<E, PersistentSet<Transition<S, E>>> eventToTransitionMap = Transients.transientHashMap();
+            for (Map.Entry<E, Set<Transition<S, E>>> eventEntry : stateEntry.getValue().entrySet()) {
+                eventToTransitionMap = eventToTransitionMap.plus(eventEntry.getKey(), Persistents.hashSet(eventEntry.getValue()));
+                statesThatAllowEvent.computeIfAbsent(eventEntry.getKey(), ignored -> new HashSet<>()).add(state);
+            }
+            immTransitions = immTransitions.plus(state, eventToTransitionMap.persist());
+        }
+        this.transitions = immTransitions.persist();
 
         // O(transitions.numberOfBranches())
-        ImmutableMultimap.Builder<E, S> immStatesThatAllowEvent = new ImmutableMultimap.Builder<>();
-        builder.transitions.forEach((state, eventMap) ->
-                eventMap.forEach((event, transitions) ->
-                        immStatesThatAllowEvent.put(event, state)
-                )
-        );
-        statesThatAllowEvent = immStatesThatAllowEvent.build();
+        TransientMap<E, PersistentSet<S>> immStatesThatAllowEvent = Transients.transientHashMap();
+        for (Map.Entry<E, Set<S>> entry : statesThatAllowEvent.entrySet())
+            immStatesThatAllowEvent = immStatesThatAllowEvent.plus(entry.getKey(), Persistents.hashSet(entry.getValue()));
+        this.statesThatAllowEvent = immStatesThatAllowEvent.persist();
+        getEnumIndex();
+        getMetrics();
 
         //
         // Sanity check:
@@ -55,60 +138,466 @@ public class NFA<S extends State, E extends Event<S>> {
         );
     }
 
+    /**
+     * @param from             State whose transitions on the event changed
+     * @param previousCellSize Number of transitions from the state on the event before the change
+     * @param cell             Transitions from the state on the event after the change
+     */
+    private NFA(PersistentSet<S> states,
+                PersistentSet<S> acceptingStates,
+                PersistentMap<S, PersistentMap<E, PersistentSet<Transition<S, E>>>> transitions,
+                PersistentMap<E, PersistentSet<S>> statesThatAllowEvent,
+                NFA<S, E> derivedFrom,
+                S from, E event, int previousCellSize, Collection<Transition<S, E>> cell) {
+        this.pathCache = newPathCache(derivedFrom.pathCache == null ? 0L : derivedFrom.pathCache.maxWeight());
+        this.memoryBudget = derivedFrom.memoryBudget;
+        this.budgetPolicy = derivedFrom.budgetPolicy;
+        this.stateOrder = derivedFrom.stateOrder;
+        this.profile = derivedFrom.profile;
+        this.states = states;
+        this.acceptingStates = acceptingStates;
+        this.transitions = transitions;
+        this.statesThatAllowEvent = statesThatAllowEvent;
+
+        final EnumIndex<S, E> parentIndex = derivedFrom.getEnumIndex();
+        this.enumIndex = parentIndex == null ? null : parentIndex.with(from, event, cell);
+        this.enumIndexComputed = true;
+        this.metrics = derivedFrom.getMetrics().derive(states.size(),
+                (cell.isEmpty() ? 0 : 1) - (previousCellSize == 0 ? 0 : 1),
+                (cell.size() == 1 ? 1 : 0) - (previousCellSize == 1 ? 1 : 0));
+    }
+
+    /**
+     * Runs in O(log n), plus O(|enum constants|) if transitions are indexed by ordinal. This NFA is left untouched.
+     *
+     * @param from  From state
+     * @param event Transition event
+     * @param to    To state
+     * @return NFA that has the given transition in addition to the transitions of this NFA
+     */
+    public NFA<S, E> withTransition(S from, E event, S to) {
+        return withTransition(new Transition<>(event, from, to));
+    }
+
+    /**
+     * Runs in O(log n), plus O(|enum constants|) if transitions are indexed by ordinal. This NFA is left untouched.
+     * Implicit states will be added if necessary.
+     *
+     * @param transition Transition to add
+     * @return NFA that has the given transition in addition to the transitions of this NFA
+     */
+    public NFA<S, E> withTransition(Transition<S, E> transition) {
+        final S from = transition.from;
+        final E event = transition.event;
+
+        final PersistentMap<E, PersistentSet<Transition<S, E>>> eventsForState = transitions.getOrDefault(from, Persistents.hashMap());
+        final PersistentSet<Transition<S, E>> transitionsForEvent = eventsForState.getOrDefault(event, Persistents.hashSet());
+        if (transitionsForEvent.contains(transition)) return this;
+
+        final PersistentSet<S> allowingStates = statesThatAllowEvent.getOrDefault(event, Persistents.hashSet());
+        final PersistentSet<Transition<S, E>> cell = transitionsForEvent.plus(transition);
+        return new NFA<>(
+                states.plus(from).plus(transition.to),
+                acceptingStates,
+                transitions.plus(from, eventsForState.plus(event, cell)),
+                allowingStates.contains(from) ? statesThatAllowEvent : statesThatAllowEvent.plus(event, allowingStates.plus(from)),
+                this, from, event, transitionsForEvent.size(), cell
+        );
+    }
+
+    /**
+     * Runs in O(log n), plus O(|enum constants|) if transitions are indexed by ordinal. This NFA is left untouched.
+     *
+     * @param from  From state
+     * @param event Transition event
+     * @param to    To state
+     * @return NFA that has the transitions of this NFA, except the given transition
+     */
+    public NFA<S, E> withoutTransition(S from, E event, S to) {
+        return withoutTransition(new Transition<>(event, from, to));
+    }
+
+    /**
+     * Runs in O(log n), plus O(|enum constants|) if transitions are indexed by ordinal. This NFA is left untouched.
+     * States are kept, even if they are no longer part of any transition.
+     *
+     * @param transition Transition to remove
+     * @return NFA that has the transitions of this NFA, except the given transition
+     */
+    public NFA<S, E> withoutTransition(Transition<S, E> transition) {
+        final S from = transition.from;
+        final E event = transition.event;
+
+        final PersistentMap<E, PersistentSet<Transition<S, E>>> eventsForState = transitions.get(from);
+        if (eventsForState == null) return this;
+        final PersistentSet<Transition<S, E>> transitionsForEvent = eventsForState.get(event);
+        if (transitionsForEvent == null || !transitionsForEvent.contains(transition)) return this;
+
+        final PersistentSet<Transition<S, E>> remainingTransitions = transitionsForEvent.minus(transition);
+        if (!remainingTransitions.isEmpty())
+            return new NFA<>(states, acceptingStates, transitions.plus(from, eventsForState.plus(event, remainingTransitions)), statesThatAllowEvent,
+                    this, from, event, transitionsForEvent.size(), remainingTransitions);
+
+        // No transitions left from this state for this event
+        final PersistentMap<E, PersistentSet<Transition<S, E>>> remainingEvents = eventsForState.minus(event);
+        final PersistentSet<S> remainingAllowingStates = statesThatAllowEvent.get(event).minus(from);
+        return new NFA<>(
+                states,
+                acceptingStates,
+                remainingEvents.isEmpty() ? transitions.minus(from) : transitions.plus(from, remainingEvents),
+                remainingAllowingStates.isEmpty() ? statesThatAllowEvent.minus(event) : statesThatAllowEvent.plus(event, remainingAllowingStates),
+                this, from, event, transitionsForEvent.size(), remainingTransitions
+        );
+    }
+
+    /**
+     * Precomputes paths in parallel if many states are active at some input position, and sequentially otherwise.
+     * <p>
+     * If the path cache is enabled, paths are cached per input suffix across calls, so a call only computes the
+     * positions before the longest suffix of its input that was seen before. The given events are left untouched.
+     *
+     * @throws MemoryBudgetExceededException If the paths that this call computes exceed the memory budget
+     * @see Builder#setPathCacheBytes(long)
+     * @see Builder#setMemoryBudget(long, BudgetPolicy)
+     */
     @SuppressWarnings("unused")
     public PossibleStateTransitionPaths<S, E> getTransitions(S start, LinkedList<E> events) {
         final List<E> events1 = ImmutableList.copyOf(events); // O(n)
-        return precomputePaths(events)
+        boolean parallel = false;
+        if (ForkJoinPool.getCommonPoolParallelism() > 1)
+            for (E event : events1)
+                if (getStatesThatAllowEvent(event).size() >= MIN_STATES_PER_POSITION_TO_PARALLELIZE) {
+                    parallel = true;
+                    break;
+                }
+        getMetrics().recordApply(parallel);
+        if (pathCache != null) return getCachedPaths(events1, parallel).get(start);
+        return (parallel ? precomputePathsInParallel(events1) : precomputePaths(new LinkedList<>(events1)))
                 .get(start)
                 .get(events1);
     }
 
+    /**
+     * Walks the input from the end, and looks up the paths for every suffix by its head event and the id of the rest of
+     * the suffix. Only suffixes that miss are computed. Runs in O(|events|) on a full hit.
+     *
+     * @return Paths along the whole input, for every state that allows the first event
+     */
+    private Map<S, PossibleStateTransitionPaths<S, E>> getCachedPaths(List<E> events, boolean parallel) {
+        PersistentList<E> postFixPath = com.github.krukow.clj_lang.PersistentList.create((Iterable<? extends E>) new ArrayList<E>(0)); // O(1)
+        long suffixId = 0L;
+        Map<S, PossibleStateTransitionPaths<S, E>> furtherPaths = Collections.emptyMap();
+        PathLayer<S, E> builtOn = null;
+        long usedBytes = 0L;
+        for (int position = events.size() - 1; position >= 0; position--) {
+            final E event = events.get(position);
+            postFixPath = postFixPath.plus(event);
+            final Map.Entry<E, Long> key = new Pair<>(event, suffixId);
+            PathLayer<S, E> layer = pathCache.getIfPresent(key);
+            if (layer == null) {
+                usedBytes = chargeLayer(usedBytes, getStatesThatAllowEvent(event).size());
+                layer = cache(key, new PathLayer<>(nextSuffixId.getAndIncrement(),
+                        computeLayer(postFixPath, furtherPaths, parallel)), builtOn);
+            }
+            builtOn = layer;
+            suffixId = layer.suffixId;
+            furtherPaths = layer.paths;
+        }
+        return furtherPaths;
+    }
+
+    /**
+     * @param maxBytes Maximum estimated bytes of cached layers, or 0 to disable caching
+     * @return Path cache that weighs layers by {@link Footprint#layer(long)}, or null if caching is disabled
+     */
+    private MemoCache<Map.Entry<E, Long>, PathLayer<S, E>> newPathCache(long maxBytes) {
+        if (maxBytes <= 0L) return null;
+        return new MemoCache<>(maxBytes, (key, layer) -> layer.bytes, (key, layer) -> dropDependents(layer));
+    }
+
+    /**
+     * Caches a layer unless the layer it is built on has been evicted in the meantime, or another thread has cached a
+     * layer for the same suffix first. Longer suffixes must then be built on the cached layer, because layers built on
+     * one that is not cached would never be hit or evicted.
+     *
+     * @param builtOn Layer for the rest of the suffix, or null if the suffix has one event
+     * @return The layer that is cached for the suffix, or the given layer if none is
+     */
+    private PathLayer<S, E> cache(Map.Entry<E, Long> key, PathLayer<S, E> layer, PathLayer<S, E> builtOn) {
+        if (builtOn != null && !builtOn.addDependent(key)) {
+            // Not cached, so neither are the layers built on it
+            layer.evict();
+            return layer;
+        }
+        final PathLayer<S, E> existing = pathCache.putIfAbsent(key, layer);
+        if (existing != null) return existing;
+        if (builtOn != null && builtOn.isEvicted()) {
+            // Evicted between registering and caching, so the eviction may have missed this layer
+            final PathLayer<S, E> removed = pathCache.remove(key);
+            if (removed != null) dropDependents(removed);
+        }
+        return layer;
+    }
+
+    /**
+     * Removes the layers that are built on an evicted layer, and the layers built on those in turn. They can only be
+     * found through the suffix id of the evicted layer, so they would never be hit again, while their paths keep the
+     * paths of the evicted layer alive.
+     */
+    private void dropDependents(PathLayer<S, E> evicted) {
+        final Deque<PathLayer<S, E>> worklist = new ArrayDeque<>();
+        worklist.push(evicted);
+        while (!worklist.isEmpty())
+            for (Map.Entry<E, Long> key : worklist.pop().evict()) {
+                final PathLayer<S, E> dependent = pathCache.remove(key);
+                if (dependent != null) worklist.push(dependent);
+            }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <S extends State, E extends Event<S>> PossibleStateTransitionPaths<S, E>[] newPathsArray(int length) {
+        return (PossibleStateTransitionPaths<S, E>[]) new PossibleStateTransitionPaths<?, ?>[length];
+    }
+
+    private Map<S, PossibleStateTransitionPaths<S, E>> computeLayer(PersistentList<E> postFixPath,
+                                                                    Map<S, PossibleStateTransitionPaths<S, E>> furtherPaths,
+                                                                    boolean parallel) {
+        final List<S> statesAtPosition = new ArrayList<>(getStatesThatAllowEvent(postFixPath.get(0)));
+        final PossibleStateTransitionPaths<S, E>[] pathsAtPosition = newPathsArray(statesAtPosition.size());
+        final PositionTask task = new PositionTask(statesAtPosition, pathsAtPosition, postFixPath, furtherPaths::get, 0, pathsAtPosition.length);
+        if (parallel) ForkJoinPool.commonPool().invoke(task);
+        else task.compute();
+
+        final Map<S, PossibleStateTransitionPaths<S, E>> layer = new HashMap<>(pathsAtPosition.length * 2);
+        for (int i = 0; i < pathsAtPosition.length; i++) layer.put(statesAtPosition.get(i), pathsAtPosition[i]);
+        return Collections.unmodifiableMap(layer);
+    }
+
+    /**
+     * Checks the budget before a layer of paths is computed, so that a call fails before it allocates more than one
+     * layer beyond the budget
+     *
+     * @return Estimated bytes used by the call so far, including the layer
+     * @throws MemoryBudgetExceededException If the layer does not fit in the budget
+     */
+    private long chargeLayer(long usedBytes, int numberOfPaths) {
+        return charge(usedBytes, Footprint.layer(numberOfPaths));
+    }
+
+    /**
+     * Like {@link #chargeLayer(long, int)}, for a layer that is also filed in the map of paths per state that
+     * {@link #precomputePaths(LinkedList)} returns
+     *
+     * @param statesAtPosition States that get paths at the position
+     * @param precomputedPaths Paths per state for the later positions
+     */
+    private long chargePrecomputedLayer(long usedBytes, Collection<S> statesAtPosition, Map<S, ?> precomputedPaths) {
+        int newStates = 0;
+        for (S state : statesAtPosition) if (!precomputedPaths.containsKey(state)) newStates++;
+        return charge(usedBytes, Footprint.precomputedLayer(statesAtPosition.size(), newStates));
+    }
+
+    private long charge(long usedBytes, long bytes) {
+        final long total = usedBytes + bytes;
+        if (total > memoryBudget) {
+            getMetrics().recordBudgetExceeded();
+            throw new MemoryBudgetExceededException(memoryBudget, total);
+        }
+        return total;
+    }
+
+    /**
+     * Runs in O(|transitions|)
+     *
+     * @return Estimated heap usage of the transition tables of this NFA
+     */
+    public Footprint estimateFootprint() {
+        final long[] transitionsBytes = {Footprint.map(transitions.size())};
+        transitions.forEach((from, eventMap) -> {
+            transitionsBytes[0] += Footprint.map(eventMap.size());
+            eventMap.values().forEach(set -> transitionsBytes[0] += Footprint.map(set.size()) + set.size() * Footprint.TRANSITION);
+        });
+        final long[] allowBytes = {Footprint.map(statesThatAllowEvent.size())};
+        statesThatAllowEvent.values().forEach(set -> allowBytes[0] += Footprint.map(set.size()));
+        return new Footprint(transitionsBytes[0], allowBytes[0], Footprint.map(states.size()) + Footprint.map(acceptingStates.size()));
+    }
+
+    /**
+     * @return Cache of paths per input suffix, weighed in estimated bytes, with hit and eviction statistics, or null if
+     * caching is disabled
+     */
+    public MemoCache<Map.Entry<E, Long>, ?> getPathCache() {
+        return pathCache;
+    }
+
+    /**
+     * If this NFA is deterministic, there is at most one path, which is followed directly without precomputing
+     * anything. Otherwise, paths are precomputed with {@link #getTransitions(State, LinkedList)}, unless they exceed the
+     * memory budget and the {@link BudgetPolicy} is to stream. Streaming changes when and in what order side effects
+     * fire, and how the result is built; see {@link BudgetPolicy#STREAM}.
+     *
+     * @throws MemoryBudgetExceededException If precomputed paths exceed the memory budget, and the policy is to fail
+     */
     public Stream<State> apply(S start, LinkedList<E> events) {
-        final PossibleStateTransitionPaths<S, E> transitions = getTransitions(start, events);
-        return transitions.applyRecursive();
+        return apply(start, events, NFA::fire);
+    }
+
+    /**
+     * Like {@link #apply(State, LinkedList)}, but side effects are submitted to the given session of an
+     * {@link EffectPipeline} instead of being fired on the calling thread
+     */
+    public Stream<State> apply(S start, LinkedList<E> events, EffectPipeline<S, E>.Session session) {
+        return apply(start, events, session::submit);
+    }
+
+    private Stream<State> apply(S start, LinkedList<E> events, Consumer<Transition<S, E>> effects) {
+        if (isDeterministic()) return applyDeterministic(start, events, effects);
+        final PossibleStateTransitionPaths<S, E> transitions;
+        try {
+            transitions = getTransitions(start, events);
+        } catch (MemoryBudgetExceededException e) {
+            if (budgetPolicy != BudgetPolicy.STREAM) throw e;
+            getMetrics().recordStreamingFallback();
+            return applyStreaming(start, events, effects);
+        }
+        if (profile != null) recordProfile(start, events);
+        return transitions.applyRecursive(effects);
+    }
+
+    /**
+     * Runs in O(|events| * |transitions|)
+     */
+    private void recordProfile(S start, List<E> events) {
+        Set<S> current = Collections.singleton(start);
+        for (E event : events) {
+            final Set<S> next = new HashSet<>();
+            for (S state : current) next.addAll(getSuccessors(state, event));
+            profile.record(next);
+            current = next;
+            if (current.isEmpty()) break;
+        }
+    }
+
+    /**
+     * Uses memory in the number of distinct states, but still takes time in the number of paths, because effects fire
+     * once per path and the result has one element per path
+     */
+    private Stream<State> applyStreaming(S start, List<E> events, Consumer<Transition<S, E>> effects) {
+        final StateContainer run = new StateContainer(Collections.singletonList(start), ExecutionStrategy.COUNTS, perPath(effects));
+        for (E event : events) run.andThen(event);
+        return run.getState().map(State.class::cast);
+    }
+
+    private static <S extends State, E extends Event<S>> void fire(Transition<S, E> transition) {
+        transition.getEvent().accept(transition.getFrom(), transition.getTo());
+    }
+
+    private static <S extends State, E extends Event<S>> void fire(Transition<S, E> transition, long times) {
+        transition.getEvent().accept(transition.getFrom(), transition.getTo(), times);
+    }
+
+    /**
+     * @return Effects that pass the transition to the given consumer once per path
+     */
+    private static <S extends State, E extends Event<S>> ObjLongConsumer<Transition<S, E>> perPath(Consumer<Transition<S, E>> effects) {
+        return (transition, times) -> {
+            for (long c = 0L; c < times; c++) effects.accept(transition);
+        };
+    }
+
+    /**
+     * Runs in O(|events|)
+     */
+    private Stream<State> applyDeterministic(S start, List<E> events, Consumer<Transition<S, E>> effects) {
+        final List<Transition<S, E>> path = new ArrayList<>(events.size());
+        S state = start;
+        for (E event : events) {
+            final Collection<Transition<S, E>> transitions = getTransitions(state, event);
+            if (transitions.isEmpty()) return Stream.empty();
+            final Transition<S, E> transition = transitions.iterator().next();
+            path.add(transition);
+            state = transition.getTo();
+            if (profile != null) profile.record(Collections.singleton(state));
+        }
+        final S end = state;
+        // Side effects fire when the stream is consumed, like in PossibleStateTransitionPaths#applyRecursive
+        return Stream.of(path).map(transitions -> {
+            transitions.forEach(effects);
+            return end;
+        });
+    }
+
+    /**
+     * Set-semantics counterpart of {@link #apply(State, LinkedList)}: computes the distinct end states by dynamic
+     * programming over the input, without enumerating paths. Runs in O(|events| * |transitions|). Side effects are
+     * not fired.
+     *
+     * @param start  Start state
+     * @param events Input events
+     * @return For every reachable end state, the number of paths that lead to it
+     * @throws ArithmeticException If a number of paths overflows a long
+     */
+    public Map<S, Long> getEndStateMultiplicities(S start, Iterable<E> events) {
+        return getEndStateWeights(start, events, 1L, (numberOfPaths, transition) -> numberOfPaths, Math::addExact);
+    }
+
+    /**
+     * Computes the distinct end states by dynamic programming over the input, without enumerating paths. The weight
+     * of a path is obtained by extending the start weight with each of its transitions, and the weights of all paths
+     * that lead to the same state are combined. For the result to be the same as for enumerating all paths, extend
+     * must distribute over combine (that is, weights form a semiring). Runs in O(|events| * |transitions|). Side
+     * effects are not fired.
+     *
+     * @param start       Start state
+     * @param events      Input events
+     * @param startWeight Weight of the empty path
+     * @param extend      Computes the weight of a path extended with a transition
+     * @param combine     Combines the weights of two paths that lead to the same state
+     * @return For every reachable end state, the combined weight of all paths that lead to it
+     */
+    public <W> Map<S, W> getEndStateWeights(S start, Iterable<E> events, W startWeight,
+                                            BiFunction<W, Transition<S, E>, W> extend,
+                                            BinaryOperator<W> combine) {
+        Map<S, W> current = new HashMap<>();
+        current.put(start, startWeight);
+        for (E event : events) {
+            final Map<S, W> next = new HashMap<>(current.size() * 2);
+            current.forEach((from, weight) -> {
+                for (Transition<S, E> transition : getTransitions(from, event))
+                    next.merge(transition.getTo(), extend.apply(weight, transition), combine);
+            });
+            current = next;
+            if (current.isEmpty()) break;
+        }
+        return current;
     }
 
     /**
      * O(path.numberOfBranches() * states.numberOfBranches() * transitions.numberOfBranches())
      *
-     * @param event Input events to use for computing all possible paths along the NFA
+     * @param event Input events to use for computing all possible paths along the NFA; consumed from the end, so the
+     *              list is empty afterwards
      * @return A map from starting states to a map of input events to an enumeration of possible branches
+     * @throws MemoryBudgetExceededException If the paths exceed the memory budget, whatever the {@link BudgetPolicy}
      */
     public Map<S, Map<List<E>, PossibleStateTransitionPaths<S, E>>> precomputePaths(LinkedList<E> event) {
         PersistentList<E> postFixPath = com.github.krukow.clj_lang.PersistentList.create((Iterable<? extends E>) new ArrayList<E>(0)); // O(1)
         Map<S, Map<List<E>, PossibleStateTransitionPaths<S, E>>> precomputedPaths = new HashMap<>(states.size());// O(1)
+        long usedBytes = 0L;
 
         while (event.size() > 0) { // O(path.numberOfBranches()) *
             E lastEvent = event.removeLast(); // O(1)
+            usedBytes = chargePrecomputedLayer(usedBytes, getStatesThatAllowEvent(lastEvent), precomputedPaths);
 
             postFixPath = postFixPath.plus(lastEvent); // O(1)
 
             // TODO filter only those states that *can* be reached through the previous action
-            for (S state : statesThatAllowEvent.get(lastEvent)) { // O(states.numberOfBranches()) *
+            for (S state : getStatesThatAllowEvent(lastEvent)) { // O(states.numberOfBranches()) *
                 Map<List<E>, PossibleStateTransitionPaths<S, E>> pathsForEvents = precomputedPaths.getOrDefault(state, new HashMap<>());//O(1)
-                final Collection<Transition<S, E>> possibleTransitions = getTransitions(state, lastEvent); // O(1)
-
-                PossibleStateTransitionPaths<S, E> possibleBranches;
-                if (postFixPath.size() == 1) {
-                    possibleBranches = new PossibleStateTransitionPaths<>(state, possibleTransitions, postFixPath, null); // O(1)
-                } else {
-                    final PersistentList<E> furtherEvents = postFixPath.minus();
-                    ImmutableMap.Builder<S, PossibleStateTransitionPaths<S, E>> restPaths = ImmutableMap.builder(); // O(1)
-                    possibleTransitions.stream() // O(possibleTransitions.numberOfBranches())
-                            .map(Transition::getTo)
-                            .distinct()
-                            .forEach(possibleTargetState -> {
-                                PossibleStateTransitionPaths<S, E> restBranches = precomputedPaths.get(possibleTargetState).get(furtherEvents);
-                                assert restBranches != null : "Possible branches must have been calculated for state " + possibleTargetState;
-                                restPaths.put(possibleTargetState, restBranches);
-                            });
-                    possibleBranches = new PossibleStateTransitionPaths<>(
-                            state,
-                            possibleTransitions,
-                            postFixPath,
-                            restPaths.build()
-                    ); // O(possibleTransitions.numberOfBranches())
-                }
+                final PersistentList<E> furtherEvents = postFixPath.minus();
+                final PossibleStateTransitionPaths<S, E> possibleBranches = computePaths(state, postFixPath,
+                        possibleTargetState -> precomputedPaths.get(possibleTargetState).get(furtherEvents)
+                );
                 assert !pathsForEvents.containsKey(postFixPath) : "Already computed possible paths for " + postFixPath + "?!";
                 pathsForEvents.put(postFixPath, possibleBranches); // O(1)
                 precomputedPaths.putIfAbsent(state, pathsForEvents);// O(1)
@@ -117,34 +606,496 @@ public class NFA<S extends State, E extends Event<S>> {
         return precomputedPaths;
     }
 
+    /**
+     * Like {@link #precomputePaths(LinkedList)}, but stores the possible transitions per input position outside the
+     * Java heap, so that very long inputs can be handled with flat memory usage. Keeps 1 MiB of the most recent layers
+     * in memory.
+     *
+     * @param start  Start state
+     * @param events Input events
+     * @return Trellis of all transitions on complete paths. Should be closed after use.
+     * @see #buildTrellis(State, Iterable, int)
+     */
+    public Trellis<S, E> buildTrellis(S start, Iterable<E> events) {
+        return buildTrellis(start, events, 1 << 20);
+    }
+
+    /**
+     * Runs in O(|events| * |transitions|)
+     *
+     * @param start          Start state
+     * @param events         Input events
+     * @param hotBufferBytes Bytes of the most recent layers to keep in memory before spilling to a memory-mapped file
+     * @return Trellis of all transitions on complete paths. Should be closed after use.
+     */
+    public Trellis<S, E> buildTrellis(S start, Iterable<E> events, int hotBufferBytes) {
+        return new Trellis<>(this, start, events, hotBufferBytes);
+    }
+
+    /**
+     * Same as {@link #precomputePaths(LinkedList)}, but all states at one input position are handled concurrently on
+     * the common fork-join pool. The given events are left untouched.
+     */
+    public Map<S, Map<List<E>, PossibleStateTransitionPaths<S, E>>> precomputePathsInParallel(List<E> events) {
+        return precomputePathsInParallel(events, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Same as {@link #precomputePaths(LinkedList)}, but all states at one input position are handled concurrently on
+     * the given fork-join pool. Each position writes its results into its own array, and only reads the (by then
+     * immutable) results of the position after it, so no locking is needed. The given events are left untouched.
+     *
+     * @param events Input events to use for computing all possible paths along the NFA
+     * @param pool   Pool to run on
+     * @return A map from starting states to a map of input events to an enumeration of possible branches
+     */
+    public Map<S, Map<List<E>, PossibleStateTransitionPaths<S, E>>> precomputePathsInParallel(List<E> events, ForkJoinPool pool) {
+        final List<E> eventList = new ArrayList<>(events);
+        PersistentList<E> postFixPath = com.github.krukow.clj_lang.PersistentList.create((Iterable<? extends E>) new ArrayList<E>(0)); // O(1)
+        Map<S, PossibleStateTransitionPaths<S, E>> nextPosition = Collections.emptyMap();
+        Map<S, Map<List<E>, PossibleStateTransitionPaths<S, E>>> precomputedPaths = new HashMap<>(states.size());
+        long usedBytes = 0L;
+
+        for (int position = eventList.size() - 1; position >= 0; position--) {
+            postFixPath = postFixPath.plus(eventList.get(position));
+            usedBytes = chargePrecomputedLayer(usedBytes, getStatesThatAllowEvent(eventList.get(position)), precomputedPaths);
+
+            final List<S> statesAtPosition = new ArrayList<>(getStatesThatAllowEvent(eventList.get(position)));
+            final PossibleStateTransitionPaths<S, E>[] pathsAtPosition = newPathsArray(statesAtPosition.size());
+            pool.invoke(new PositionTask(statesAtPosition, pathsAtPosition, postFixPath, nextPosition::get, 0, pathsAtPosition.length));
+
+            final Map<S, PossibleStateTransitionPaths<S, E>> currentPosition = new HashMap<>(pathsAtPosition.length * 2);
+            for (int i = 0; i < pathsAtPosition.length; i++) {
+                currentPosition.put(statesAtPosition.get(i), pathsAtPosition[i]);
+                precomputedPaths.computeIfAbsent(statesAtPosition.get(i), ignored -> new HashMap<>()).put(postFixPath, pathsAtPosition[i]);
+            }
+            nextPosition = currentPosition;
+        }
+        return precomputedPaths;
+    }
+
+    /**
+     * O(possibleTransitions.numberOfBranches())
+     *
+     * @param state        State to start from
+     * @param postFixPath  Events to follow, starting with the event to take from the given state
+     * @param furtherPaths Possible paths from a state along the tail of postFixPath. Not used if the tail is empty.
+     * @return All possible paths from the given state along the given events
+     */
+    private PossibleStateTransitionPaths<S, E> computePaths(S state, PersistentList<E> postFixPath,
+                                                            Function<S, PossibleStateTransitionPaths<S, E>> furtherPaths) {
+        final Collection<Transition<S, E>> possibleTransitions = getTransitions(state, postFixPath.get(0)); // O(1)
+        if (postFixPath.size() == 1)
+            return new PossibleStateTransitionPaths<>(state, possibleTransitions, postFixPath, null); // O(1)
+
+        ImmutableMap.Builder<S, PossibleStateTransitionPaths<S, E>> restPaths = ImmutableMap.builder(); // O(1)
+        possibleTransitions.stream() // O(possibleTransitions.numberOfBranches())
+                .map(Transition::getTo)
+                .distinct()
+                .forEach(possibleTargetState -> {
+                    PossibleStateTransitionPaths<S, E> restBranches = furtherPaths.apply(possibleTargetState);
+                    assert restBranches != null : "Possible branches must have been calculated for state " + possibleTargetState;
+                    restPaths.put(possibleTargetState, restBranches);
+                });
+        return new PossibleStateTransitionPaths<>(
+                state,
+                possibleTransitions,
+                postFixPath,
+                restPaths.build()
+        ); // O(possibleTransitions.numberOfBranches())
+    }
+
+    /**
+     * Only computed on demand if neither the builder nor a derivation has set it. Racing threads may both compute the
+     * index, but the result is the same.
+     *
+     * @return Enum index, or null if states are not all constants of one enum
+     */
+    EnumIndex<S, E> getEnumIndex() {
+        if (!enumIndexComputed) {
+            enumIndex = EnumIndex.create(this);
+            enumIndexComputed = true;
+        }
+        return enumIndex;
+    }
+
+    /**
+     * Runs in O(1). If all states are constants of one enum, looks up transitions by ordinal.
+     */
+    @Override
     public Collection<Transition<S, E>> getTransitions(S from, E event) {
-        final Multimap<E, Transition<S, E>> eventTransitionMultimap = transitions.get(from);
-        if (eventTransitionMultimap != null) return eventTransitionMultimap.get(event);
-        else return Collections.emptySet();
+        final EnumIndex<S, E> enumIndex = getEnumIndex();
+        if (enumIndex != null) return enumIndex.getTransitions(from, event);
+
+        final Map<E, PersistentSet<Transition<S, E>>> eventTransitionMap = transitions.get(from);
+        if (eventTransitionMap != null) {
+            final Set<Transition<S, E>> transitionsForEvent = eventTransitionMap.get(event);
+            if (transitionsForEvent != null) return transitionsForEvent;
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * Runs in O(1)
+     *
+     * @return View of the targets of {@link #getTransitions(State, Event)}, which are distinct
+     */
+    @Override
+    public Collection<S> getSuccessors(S from, E event) {
+        return Collections2.transform(getTransitions(from, event), Transition::getTo);
     }
 
     public Set<S> getStates() {
         return states;
     }
 
+    public Set<S> getAcceptingStates() {
+        return acceptingStates;
+    }
+
+    @Override
+    public boolean isAccepting(S state) {
+        return acceptingStates.contains(state);
+    }
+
+    /**
+     * Runs in O(transitions.numberOfBranches()), but exits as soon as an accepting state is found.
+     *
+     * @param start Start states
+     * @return Whether no accepting state can be reached from the given start states
+     */
+    public boolean isEmpty(Collection<S> start) {
+        return !findAcceptedSequence(start).isPresent();
+    }
+
+    /**
+     * @param start Start states
+     * @return A shortest event sequence that leads from the given start states to an accepting state, if any exists
+     */
+    public Optional<List<E>> findAcceptedSequence(Collection<S> start) {
+        return Antichains.findAcceptedSequence(this, start);
+    }
+
+    /**
+     * Decides whether some path leads from one state to another on the given input, without enumerating paths. Runs a
+     * bidirectional breadth-first search over the input, in O(|events| * |transitions|) in the worst case.
+     */
+    public boolean isReachable(S from, List<E> events, S to) {
+        return getTransitionGraph().isReachable(from, events, to);
+    }
+
+    /**
+     * Runs in O(|states| + |transitions|)
+     *
+     * @return A shortest sequence of events that leads from one state to another, or empty if there is none
+     */
+    public Optional<List<E>> findShortestSequence(S from, S to) {
+        return findShortestSequence(from, to::equals, null);
+    }
+
+    /**
+     * Runs in O(|states| + |transitions|), plus sorting the transitions of each visited state if an order is given
+     *
+     * @param target Whether a state is a target
+     * @param order  Order of events, or null for an arbitrary order
+     * @return Of the shortest sequences of events that lead from the given state to a target state, the first in
+     * lexicographic order, or empty if there is none
+     */
+    public Optional<List<E>> findShortestSequence(S from, Predicate<S> target, Comparator<? super E> order) {
+        return getTransitionGraph().findShortestSequence(from, target, order);
+    }
+
+    /**
+     * @return States in the order set with {@link Builder#setStateOrder(List)}, or an empty list
+     */
+    List<S> getStateOrder() {
+        return stateOrder;
+    }
+
+    /**
+     * @return Profile set with {@link Builder#setProfile(StateOrder.Profile)}, or null
+     */
+    StateOrder.Profile<S> getProfile() {
+        return profile;
+    }
+
+    private TransitionGraph<S, E> getTransitionGraph() {
+        TransitionGraph<S, E> graph = transitionGraph;
+        if (graph == null) synchronized (this) {
+            if (transitionGraph == null) transitionGraph = new TransitionGraph<>(this, stateOrder);
+            graph = transitionGraph;
+        }
+        return graph;
+    }
+
+    /**
+     * Uses all events that appear on some transition as the alphabet.
+     *
+     * @param start Start states
+     * @return Whether all event sequences are accepted from the given start states
+     * @see #isUniversal(Collection, Collection)
+     */
+    public boolean isUniversal(Collection<S> start) {
+        return isUniversal(start, statesThatAllowEvent.keySet());
+    }
+
+    /**
+     * Explores sets of states forward from the start states, but only keeps sets that are minimal with respect to
+     * set inclusion (an antichain), because any sequence rejected from a superset is also rejected from a subset.
+     * Exits as soon as a rejected sequence is found.
+     *
+     * @param start    Start states
+     * @param alphabet Events to consider
+     * @return Whether all event sequences over the given alphabet are accepted from the given start states
+     */
+    public boolean isUniversal(Collection<S> start, Collection<E> alphabet) {
+        return !findRejectedSequence(start, alphabet).isPresent();
+    }
+
+    /**
+     * @param start    Start states
+     * @param alphabet Events to consider
+     * @return A shortest event sequence over the given alphabet that is rejected from the given start states, if any
+     * exists
+     * @see #isUniversal(Collection, Collection)
+     */
+    public Optional<List<E>> findRejectedSequence(Collection<S> start, Collection<E> alphabet) {
+        return Antichains.findRejectedSequence(this, start, alphabet);
+    }
+
+    /**
+     * Explores pairs of a state of the other NFA and a set of states of this NFA, and only keeps pairs whose sets are
+     * minimal with respect to set inclusion (an antichain). Exits as soon as a counterexample is found.
+     *
+     * @param start      Start states of this NFA
+     * @param other      Other NFA
+     * @param otherStart Start states of the other NFA
+     * @return Whether every event sequence accepted by the other NFA is also accepted by this NFA
+     */
+    public boolean includes(Collection<S> start, NFA<S, E> other, Collection<S> otherStart) {
+        return !findSequenceNotIncluded(start, other, otherStart).isPresent();
+    }
+
+    /**
+     * @param start      Start states of this NFA
+     * @param other      Other NFA
+     * @param otherStart Start states of the other NFA
+     * @return A shortest event sequence that is accepted by the other NFA, but not by this NFA, if any exists
+     * @see #includes(Collection, NFA, Collection)
+     */
+    public Optional<List<E>> findSequenceNotIncluded(Collection<S> start, NFA<S, E> other, Collection<S> otherStart) {
+        return Antichains.findSequenceNotIncluded(other, otherStart, this, start);
+    }
+
+    /**
+     * @param start      Start states of this NFA
+     * @param other      Other NFA
+     * @param otherStart Start states of the other NFA
+     * @return Whether both NFAs accept exactly the same event sequences
+     * @see #includes(Collection, NFA, Collection)
+     */
+    public boolean isEquivalent(Collection<S> start, NFA<S, E> other, Collection<S> otherStart) {
+        return includes(start, other, otherStart) && other.includes(otherStart, this, start);
+    }
+
+    /**
+     * Starts a run that picks its {@link ExecutionStrategy} based on {@link #getMetrics()}, and switches strategy as
+     * the number of paths changes. The first runs pick from the structure of the automaton; once runs have taken
+     * {@link EngineMetrics#MIN_STEPS_TO_ADAPT} steps, new runs pick from how many paths those runs had, and how often
+     * their paths met.
+     * <p>
+     * Runs never switch to a {@link DeterministicTransducer} by themselves: deciding whether one exists takes
+     * O(|Q|<sup>2</sup> * |Δ|<sup>3</sup>) and building it may take exponentially many states, which would stall the
+     * first step of every run. Callers that start many runs from the same state can call {@link #determinize(State)}
+     * once and reuse its runs instead.
+     */
     public StateContainer start(S state) {
         return new StateContainer(Collections.singletonList(state));
     }
 
-    @SuppressWarnings("unused")
+    /**
+     * Starts a run that always uses the given strategy
+     *
+     * @throws IllegalArgumentException If the strategy is {@link ExecutionStrategy#ORDINAL_COUNTS}, but states are not
+     *                                  all constants of one enum
+     */
+    public StateContainer start(S state, ExecutionStrategy strategy) {
+        return new StateContainer(Collections.singletonList(state), strategy);
+    }
+
+    /**
+     * Starts a run that submits side effects to the given session of an {@link EffectPipeline}, in the order in which
+     * {@link StateContainer#andThen(Event)} would fire them. Steps throw what {@link EffectPipeline.Session#submit(Transition)}
+     * throws once the pipeline is closed or has failed.
+     */
+    public StateContainer start(S state, EffectPipeline<S, E>.Session session) {
+        return new StateContainer(Collections.singletonList(state), null, perPath(session::submit));
+    }
+
+    /**
+     * @param states Paths, {@link CountedStates} or an {@link EnumIndex.Multiset}, which are kept as they are
+     */
+    StateContainer restore(Collection<S> states, ExecutionStrategy fixedStrategy) {
+        return new StateContainer(states, fixedStrategy, NFA::fire, false);
+    }
+
+    /**
+     * Runs in O(1); determinism is detected when the NFA is built
+     *
+     * @return Whether no state has more than one transition on the same event
+     */
+    public boolean isDeterministic() {
+        return getMetrics().isDeterministic();
+    }
+
+    /**
+     * Checks whether {@link #start(State)} runs from the given state can be replaced by a deterministic transducer.
+     * Because side effects are opaque and fire once per path, this is the case iff the number of paths is bounded for
+     * all inputs, which is decided on products of this NFA with itself.
+     * <p>
+     * Runs in O(|Q|<sup>2</sup> * |Δ|<sup>3</sup>) in the worst case, for Q the states and Δ the transitions that are
+     * reachable from the start state
+     */
+    public boolean isDeterminizable(S start) {
+        return isDeterministic() || Ambiguity.isFinitelyAmbiguous(this, start);
+    }
+
+    /**
+     * Gives up after 65536 transducer states
+     *
+     * @see #determinize(State, int)
+     */
+    public Optional<DeterministicTransducer<S, E>> determinize(S start) {
+        return determinize(start, 1 << 16);
+    }
+
+    /**
+     * Never called by {@link #start(State)} or {@link #apply(State, LinkedList)}; see {@link #start(State)}. The
+     * transducer fires effects once per transition with a count, as {@link ExecutionStrategy#COUNTS} does. Build it
+     * once and reuse it for many runs from the same start state.
+     *
+     * @param maxStates Maximum number of transducer states; the subset construction may blow up exponentially
+     * @return Transducer that fires the same side effects and reaches the same states as {@link #start(State)}, or
+     * empty if the number of paths from the start state is unbounded or the transducer would be too large
+     */
+    public Optional<DeterministicTransducer<S, E>> determinize(S start, int maxStates) {
+        return DeterministicTransducer.create(this, start, maxStates);
+    }
+
+    /**
+     * Runs in O(1): metrics are computed by the builder, and patched for derived NFAs
+     *
+     * @return Statistics about this NFA and its runs so far. Derived NFAs start without run statistics.
+     */
+    public EngineMetrics getMetrics() {
+        EngineMetrics metrics = this.metrics;
+        if (metrics == null) {
+            int rows = 0;
+            int deterministicRows = 0;
+            for (Map<E, PersistentSet<Transition<S, E>>> eventMap : transitions.values())
+                for (Set<Transition<S, E>> transitionsForEvent : eventMap.values()) {
+                    rows++;
+                    if (transitionsForEvent.size() == 1) deterministicRows++;
+                }
+            synchronized (this) {
+                if (this.metrics == null)
+                    this.metrics = new EngineMetrics(states.size(), rows, deterministicRows);
+                metrics = this.metrics;
+            }
+        }
+        return metrics;
+    }
+
     public Collection<S> getStatesThatAllowEvent(E e) {
-        return statesThatAllowEvent.get(e);
+        final Set<S> states = statesThatAllowEvent.get(e);
+        return states != null ? states : Collections.emptySet();
+    }
+
+    /**
+     * Runs in O(1): product states are only constructed when they are reached.
+     *
+     * @param others NFAs to run in lockstep with this one
+     * @return Lazy product of this NFA with the given NFAs
+     */
+    @SafeVarargs
+    public final ProductNFA<S, E> intersect(NFA<S, E>... others) {
+        final List<NFA<S, E>> components = new ArrayList<>(others.length + 1);
+        components.add(this);
+        for (NFA<S, E> other : others) components.add(other);
+        return new ProductNFA<>(components);
     }
 
     public static class Builder<S extends State, E extends Event<S>> {
         private final Set<S> states;
+        private final Set<S> acceptingStates;
         private final Map<S, Map<E, Set<Transition<S, E>>>> transitions;
+        private long pathCacheBytes = 0L;
+        private long memoryBudget = Long.MAX_VALUE;
+        private BudgetPolicy budgetPolicy = BudgetPolicy.FAIL;
+        private List<S> stateOrder = Collections.emptyList();
+        private StateOrder.Profile<S> profile;
 
         public Builder() {
             this.states = new HashSet<>(50);
+            this.acceptingStates = new HashSet<>();
             transitions = new HashMap<>(50);
         }
 
+        /**
+         * Lets {@link NFA#getTransitions(State, LinkedList)} keep paths per input suffix across calls, which pays off
+         * when inputs share long suffixes. Layers of paths are evicted least recently used first, together with the
+         * layers that were built on them. Caching is disabled by default.
+         *
+         * @param maxBytes Maximum estimated bytes of cached paths, as in {@link Footprint}, or 0 to disable caching
+         */
+        public Builder<S, E> setPathCacheBytes(long maxBytes) {
+            if (maxBytes < 0L) throw new IllegalArgumentException("Cache size must not be negative");
+            this.pathCacheBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Limits the estimated heap usage of the paths that one call to {@link NFA#getTransitions(State, LinkedList)},
+         * {@link NFA#apply(State, LinkedList)} or {@link NFA#precomputePaths(LinkedList)} computes. The budget is
+         * checked before every input position, so a call fails before it has used much more. Paths that are reused
+         * from the path cache are not counted. There is no budget by default.
+         *
+         * @param maxBytes Maximum estimated bytes, as in {@link Footprint}
+         * @param policy   What {@link NFA#apply(State, LinkedList)} does when the budget is exceeded; other methods
+         *                 fail
+         */
+        public Builder<S, E> setMemoryBudget(long maxBytes, BudgetPolicy policy) {
+            if (maxBytes <= 0L) throw new IllegalArgumentException("Memory budget must be positive");
+            this.memoryBudget = maxBytes;
+            this.budgetPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Numbers states in the given order in the tables that graph queries like
+         * {@link NFA#isReachable(State, List, State)} use, and in a {@link BitSetNFA} built without an order of its
+         * own. Does not change any result. By default states are numbered in hash order.
+         *
+         * @param order States in the order in which to number them, for instance from {@link StateOrder}; states that
+         *              are not in the list are numbered after those that are
+         */
+        public Builder<S, E> setStateOrder(List<S> order) {
+            this.stateOrder = new ArrayList<>(order);
+            return this;
+        }
+
+        /**
+         * Records the distinct states after every step of every run of the NFA, including runs of a {@link BitSetNFA}
+         * built from it, and after every input position of {@link NFA#apply(State, LinkedList)}, so that
+         * {@link StateOrder#byFrequency(NFA, Map)} can order states by how often they are active. Recording takes
+         * time in the number of distinct states per step, except for runs that keep one entry per path. Applies that
+         * precompute paths record by stepping the input once more. Not set by default.
+         */
+        public Builder<S, E> setProfile(StateOrder.Profile<S> profile) {
+            this.profile = profile;
+            return this;
+        }
+
         @SuppressWarnings("unused")
         public Builder<S, E> addStates(Collection<S> states) {
             this.states.addAll(states);
@@ -157,6 +1108,26 @@ public class NFA<S extends State, E extends Event<S>> {
             return this;
         }
 
+        /**
+         * Will automatically add the state if it's not been added separately.
+         *
+         * @param state State in which a sequence of events is accepted
+         * @return This builder
+         */
+        @SuppressWarnings("UnusedReturnValue")
+        public Builder<S, E> addAcceptingState(S state) {
+            this.states.add(state);
+            this.acceptingStates.add(state);
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder<S, E> addAcceptingStates(Collection<S> states) {
+            this.states.addAll(states);
+            this.acceptingStates.addAll(states);
+            return this;
+        }
+
         /**
          * Will automatically add states if they've not been added separately.
          *
@@ -217,25 +1188,285 @@ public class NFA<S extends State, E extends Event<S>> {
         }
     }
 
+    /**
+     * Paths for every state that allows the head of an input suffix
+     */
+    private static final class PathLayer<S extends State, E extends Event<S>> {
+        private final long suffixId;
+        private final Map<S, PossibleStateTransitionPaths<S, E>> paths;
+        /**
+         * Estimated bytes of the paths that this layer adds to the layer it is built on
+         */
+        private final long bytes;
+        /**
+         * Keys of the cached layers that are built on this one; guarded by this layer
+         */
+        private final List<Map.Entry<E, Long>> dependents = new ArrayList<>();
+        private boolean evicted;
+
+        PathLayer(long suffixId, Map<S, PossibleStateTransitionPaths<S, E>> paths) {
+            this.suffixId = suffixId;
+            this.paths = paths;
+            this.bytes = Footprint.layer(paths.size());
+        }
+
+        /**
+         * @return Whether the dependent was added; false if this layer has been evicted
+         */
+        synchronized boolean addDependent(Map.Entry<E, Long> key) {
+            if (evicted) return false;
+            dependents.add(key);
+            return true;
+        }
+
+        synchronized boolean isEvicted() {
+            return evicted;
+        }
+
+        /**
+         * @return Keys of the dependents, which are forgotten
+         */
+        synchronized List<Map.Entry<E, Long>> evict() {
+            evicted = true;
+            final List<Map.Entry<E, Long>> keys = new ArrayList<>(dependents);
+            dependents.clear();
+            return keys;
+        }
+    }
+
+    /**
+     * Computes the possible paths for a range of states at one input position, splitting the range until it is small
+     * enough to handle sequentially
+     */
+    @SuppressWarnings("serial")
+    private class PositionTask extends RecursiveAction {
+        private static final int THRESHOLD = 64;
+        private final List<S> states;
+        private final PossibleStateTransitionPaths<S, E>[] result;
+        private final PersistentList<E> postFixPath;
+        private final Function<S, PossibleStateTransitionPaths<S, E>> furtherPaths;
+        private final int from;
+        private final int to;
+
+        PositionTask(List<S> states, PossibleStateTransitionPaths<S, E>[] result, PersistentList<E> postFixPath,
+                     Function<S, PossibleStateTransitionPaths<S, E>> furtherPaths, int from, int to) {
+            this.states = states;
+            this.result = result;
+            this.postFixPath = postFixPath;
+            this.furtherPaths = furtherPaths;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++) result[i] = computePaths(states.get(i), postFixPath, furtherPaths);
+            } else {
+                final int mid = (from + to) >>> 1;
+                invokeAll(
+                        new PositionTask(states, result, postFixPath, furtherPaths, from, mid),
+                        new PositionTask(states, result, postFixPath, furtherPaths, mid, to)
+                );
+            }
+        }
+    }
+
+    /**
+     * Current states of a run, one for every path taken so far. If the NFA is deterministic, a run holds at most one
+     * state and steps with a single lookup.
+     * <p>
+     * Depending on the {@link ExecutionStrategy}, {@link #states} is a plain list, or a read-only view on a count per
+     * state. Counting merges paths that arrive in the same state, and if all states are constants of one enum, counts
+     * are kept in an array indexed by ordinal, so that a step walks arrays without hashing or boxing. Side effects fire
+     * just as often with each strategy, but when counting they are grouped by state rather than in path order, and
+     * fire through {@link Event#accept(State, State, long)} once per transition and step.
+     * <p>
+     * Unless a strategy is given, the run picks one from {@link #getMetrics()}, and switches between
+     * {@link ExecutionStrategy#PATHS} and {@link ExecutionStrategy#COUNTS} as the number of paths changes.
+     */
     public class StateContainer {
-        public Collection<S> states;
+        /**
+         * Replaced, never modified, by every step, so that other threads can read a consistent set of states
+         */
+        public volatile Collection<S> states;
+        /**
+         * Null if the strategy is picked adaptively
+         */
+        private final ExecutionStrategy fixedStrategy;
+        /**
+         * Fires the effect of a transition for the given number of paths
+         */
+        private final ObjLongConsumer<Transition<S, E>> effects;
 
+        /**
+         * @param ses Initial states, one for every path; copied
+         */
         public StateContainer(Collection<S> ses) {
-            states = ses;
+            this(ses, null);
+        }
+
+        /**
+         * @param ses Initial states, one for every path; copied
+         */
+        public StateContainer(Collection<S> ses, ExecutionStrategy strategy) {
+            this(new ArrayList<>(ses), strategy, NFA::fire);
+        }
+
+        private StateContainer(Collection<S> ses, ExecutionStrategy strategy, ObjLongConsumer<Transition<S, E>> effects) {
+            this(ses, strategy, effects, true);
+        }
+
+        /**
+         * @param pickStrategy Whether to convert the states to the initial strategy; if not, the states keep the
+         *                     representation they have, like when restoring a run
+         */
+        private StateContainer(Collection<S> ses, ExecutionStrategy strategy, ObjLongConsumer<Transition<S, E>> effects, boolean pickStrategy) {
+            this.fixedStrategy = strategy;
+            this.effects = effects;
+            this.states = ses;
+            if (!pickStrategy) return;
+            final ExecutionStrategy initialStrategy = strategy != null ? strategy : pickInitialStrategy(ses);
+            if (initialStrategy != getStrategy()) states = convert(ses, initialStrategy);
+        }
+
+        /**
+         * Picks from the behaviour of earlier runs once there were enough steps, and from the structure of the
+         * automaton before that
+         */
+        private ExecutionStrategy pickInitialStrategy(Collection<S> ses) {
+            final EnumIndex<S, E> enumIndex = getEnumIndex();
+            if (isDeterministic() && ses.size() <= 1) return ExecutionStrategy.PATHS;
+            final ExecutionStrategy observed = getMetrics().getObservedStrategy();
+            if (observed == ExecutionStrategy.PATHS && ses.size() <= MAX_PATHS_TO_LIST) return ExecutionStrategy.PATHS;
+            if (enumIndex != null && ses.stream().allMatch(enumIndex::contains)) return ExecutionStrategy.ORDINAL_COUNTS;
+            if (observed == ExecutionStrategy.COUNTS) return ExecutionStrategy.COUNTS;
+            if (getMetrics().getDeterminismRatio() < MIN_DETERMINISM_RATIO_TO_LIST) return ExecutionStrategy.COUNTS;
+            return ExecutionStrategy.PATHS;
+        }
+
+        private Collection<S> convert(Collection<S> ses, ExecutionStrategy strategy) {
+            switch (strategy) {
+                case ORDINAL_COUNTS:
+                    final EnumIndex<S, E> enumIndex = getEnumIndex();
+                    if (enumIndex == null || !ses.stream().allMatch(enumIndex::contains))
+                        throw new IllegalArgumentException("Counting by ordinal requires all states to be constants of one enum");
+                    final long[] counts = new long[enumIndex.states.length];
+                    for (S state : ses) counts[EnumIndex.ordinal(state)]++;
+                    return new EnumIndex.Multiset<>(enumIndex.states, counts);
+                case COUNTS:
+                    return CountedStates.of(ses);
+                default:
+                    return new ArrayList<>(ses);
+            }
         }
 
+        /**
+         * @return Strategy that this run was started with, or null if the strategy is picked adaptively
+         */
+        ExecutionStrategy getFixedStrategy() {
+            return fixedStrategy;
+        }
+
+        /**
+         * @return Strategy that the next step will use
+         */
+        public ExecutionStrategy getStrategy() {
+            if (states instanceof EnumIndex.Multiset) return ExecutionStrategy.ORDINAL_COUNTS;
+            if (states instanceof CountedStates) return ExecutionStrategy.COUNTS;
+            return ExecutionStrategy.PATHS;
+        }
+
+        @SuppressWarnings("unchecked")
         public StateContainer andThen(E e) {
-            states = states.stream()
-                    .flatMap(from -> getTransitions(from, e).stream()
-                            .peek(transition -> e.accept(transition.getFrom(), transition.getTo()))
-                    )
-                    .map(Transition::getTo)
-                    .collect(Collectors.toList());
+            final EngineMetrics metrics = getMetrics();
+            switch (getStrategy()) {
+                case ORDINAL_COUNTS:
+                    final EnumIndex.Multiset<S> ordinalCounts = andThenByOrdinal((EnumIndex.Multiset<S>) states, e);
+                    metrics.recordStep(ExecutionStrategy.ORDINAL_COUNTS, ordinalCounts.numberOfDistinctStates(), ordinalCounts.numberOfPaths());
+                    states = ordinalCounts;
+                    break;
+                case COUNTS:
+                    final CountedStates<S> counts = engine.counts((CountedStates<S>) states, e, effects);
+                    metrics.recordStep(ExecutionStrategy.COUNTS, counts.numberOfDistinctStates(), counts.numberOfPaths());
+                    // Back to a plain list once there is at most one path left
+                    states = fixedStrategy == null && counts.numberOfPaths() <= 1 ? switchTo(counts, ExecutionStrategy.PATHS) : counts;
+                    break;
+                default:
+                    if (isDeterministic() && states.size() <= 1) {
+                        states = andThenDeterministic(e);
+                        metrics.recordStep(ExecutionStrategy.PATHS, states.size(), states.size());
+                        break;
+                    }
+                    final List<S> paths = engine.paths(states, e, effects);
+                    metrics.recordStep(ExecutionStrategy.PATHS, paths.size(), paths.size());
+                    states = fixedStrategy == null && paths.size() > MAX_PATHS_TO_LIST ? switchTo(paths, ExecutionStrategy.COUNTS) : paths;
+            }
+            if (profile != null) profile.record(this);
             return this;
         }
 
+        private Collection<S> switchTo(Collection<S> ses, ExecutionStrategy strategy) {
+            getMetrics().recordSwitch();
+            return convert(ses, strategy);
+        }
+
+        /**
+         * Runs in O(1)
+         */
+        private List<S> andThenDeterministic(E e) {
+            if (states.isEmpty()) return Collections.emptyList();
+            final Collection<Transition<S, E>> transitions = getTransitions(states.iterator().next(), e);
+            if (transitions.isEmpty()) return Collections.emptyList();
+            final Transition<S, E> transition = transitions.iterator().next();
+            effects.accept(transition, 1L);
+            return Collections.singletonList(transition.to);
+        }
+
+        /**
+         * Runs in O(|enum constants| + |transitions for e|), apart from firing side effects
+         *
+         * @throws ArithmeticException If the number of paths overflows a long
+         */
+        private EnumIndex.Multiset<S> andThenByOrdinal(EnumIndex.Multiset<S> current, E e) {
+            final EnumIndex<S, E> enumIndex = getEnumIndex();
+            final long[] counts = current.getCounts();
+            final long[] next = new long[counts.length];
+            final List<Transition<S, E>>[] row = enumIndex.getRow(e);
+            if (row != null) for (int ordinal = 0; ordinal < counts.length; ordinal++) {
+                final long count = counts[ordinal];
+                final List<Transition<S, E>> transitions = row[ordinal];
+                if (count == 0L || transitions == null) continue;
+                for (int i = 0; i < transitions.size(); i++) {
+                    final Transition<S, E> transition = transitions.get(i);
+                    effects.accept(transition, count);
+                    final int to = EnumIndex.ordinal(transition.to);
+                    next[to] = Math.addExact(next[to], count);
+                }
+            }
+            return new EnumIndex.Multiset<>(enumIndex.states, next);
+        }
+
         public Stream<S> getState() {
             return states.stream();
         }
+
+        /**
+         * Tests every distinct state once, so runs that count paths take time in the number of states rather than
+         * the number of paths
+         *
+         * @return Whether any path of this run is in an accepting state
+         */
+        public boolean isAccepting() {
+            final Collection<S> current = states;
+            final boolean[] accepting = new boolean[1];
+            if (current instanceof CountedStates)
+                ((CountedStates<S>) current).forEachCount((state, count) -> accepting[0] |= NFA.this.isAccepting(state));
+            else if (current instanceof EnumIndex.Multiset)
+                ((EnumIndex.Multiset<S>) current).forEachCount((state, count) -> accepting[0] |= NFA.this.isAccepting(state));
+            else
+                accepting[0] = current.stream().anyMatch(NFA.this::isAccepting);
+            return accepting[0];
+        }
     }
 }
@@ -0,0 +1,113 @@
+package org.leibnizcenter.nfa;
+
+/**
+ * Cursor that walks the complete paths of a {@link PossibleStateTransitionPaths} depth-first, one path per call to
+ * {@link #next()}. The current path is kept as a stack of branch indices, one per input position, so advancing takes
+ * O(1) amortized work per transition and allocates nothing once every trellis node has been visited: each node turns
+ * its transitions into an array the first time a cursor visits it.
+ * <p>
+ * Accessors expose the current path by position, and return the states, events and transitions of the trellis itself.
+ * A cursor can be {@link #reset(PossibleStateTransitionPaths) reset} to walk another trellis, reusing its stack. Not
+ * thread-safe, but cursors over the same trellis may be used concurrently.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PathCursor<S extends State, E extends Event<S>> {
+    private PossibleStateTransitionPaths<S, E>[] nodes;
+    private int[] branches;
+    private int length;
+    /**
+     * -1 before the first path, 0 while on a path, 1 when exhausted
+     */
+    private int status;
+
+    public PathCursor(PossibleStateTransitionPaths<S, E> paths) {
+        reset(paths);
+    }
+
+    /**
+     * Starts over on the given paths. Runs in O(1), unless they are longer than any paths this cursor walked before.
+     */
+    @SuppressWarnings("unchecked")
+    public PathCursor<S, E> reset(PossibleStateTransitionPaths<S, E> paths) {
+        length = paths.path.size();
+        if (nodes == null || nodes.length < length) {
+            nodes = (PossibleStateTransitionPaths<S, E>[]) new PossibleStateTransitionPaths<?, ?>[length];
+            branches = new int[length];
+        }
+        nodes[0] = paths;
+        branches[0] = -1;
+        status = -1;
+        return this;
+    }
+
+    /**
+     * Runs in O(1) amortized per transition of the paths
+     *
+     * @return Whether the cursor moved to the next complete path; false once all paths have been visited
+     */
+    public boolean next() {
+        if (status > 0) return false;
+        int depth = status < 0 ? 0 : length - 1;
+        status = 0;
+        while (depth >= 0) {
+            final PossibleStateTransitionPaths.Row<S, E> row = nodes[depth].getRow();
+            if (++branches[depth] >= row.transitions.length) {
+                depth--;
+                continue;
+            }
+            if (depth == length - 1) return true;
+            final PossibleStateTransitionPaths<S, E> child = row.children[branches[depth]];
+            // Dead end: try the next branch at this depth
+            if (child == null) continue;
+            nodes[++depth] = child;
+            branches[depth] = -1;
+        }
+        status = 1;
+        return false;
+    }
+
+    /**
+     * @return Number of transitions on every path
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @param position Input position, from 0 (inclusive) to {@link #length()} (exclusive)
+     * @return Index of the transition taken at the position, among the possible transitions at that point
+     */
+    public int getBranch(int position) {
+        checkOnPath();
+        return branches[position];
+    }
+
+    /**
+     * @param position Input position, from 0 (inclusive) to {@link #length()} (exclusive)
+     */
+    public Transition<S, E> getTransition(int position) {
+        checkOnPath();
+        return nodes[position].getRow().transitions[branches[position]];
+    }
+
+    /**
+     * @param position Input position, from 0 (inclusive) to {@link #length()} (exclusive)
+     */
+    public E getEvent(int position) {
+        checkOnPath();
+        return nodes[position].e;
+    }
+
+    /**
+     * @param position Input position, from 0 to {@link #length()}, both inclusive
+     * @return State before the event at the position, or the end state if the position is the length
+     */
+    public S getState(int position) {
+        checkOnPath();
+        return position < length ? nodes[position].from : getTransition(length - 1).getTo();
+    }
+
+    private void checkOnPath() {
+        if (status != 0) throw new IllegalStateException(status < 0 ? "Call next() first" : "No more paths");
+    }
+}
@@ -22,6 +22,11 @@ public class PossibleStateTransitionPaths<S extends State, E extends Event<S>> i
     public final int numberOfTransitions;
     public final E e;
     public final S from;
+    /**
+     * Array view for {@link PathCursor}, created on first use. Racing cursors may both create it, but the result is the
+     * same, and final fields make it safe to publish without locking.
+     */
+    private Row<S, E> row;
 
     /**
      * This constructor has a complexity of O(possibleTransitions.size()) because it has to count the number of paths diverging
@@ -127,19 +132,19 @@ public class PossibleStateTransitionPaths<S extends State, E extends Event<S>> i
     @SuppressWarnings("unchecked")
     @Override
     public Transition<S, E>[] toArray() {
-        Transition<S, E>[] arr = new Transition[numberOfTransitions];
+        Transition<S, E>[] arr = (Transition<S, E>[]) new Transition<?, ?>[numberOfTransitions];
         Iterator<Transition<S, E>> iterator = iterator();
         for (int i = 0; i < numberOfTransitions; i++) arr[i] = iterator.next();
         return arr;
     }
 
 //    @NotNull
+    @SuppressWarnings("unchecked")
     @Override
     public <T> T[] toArray(T[] a) {
         //if (!(Transition.class.isInstance(new Class<T>()))) throw new InvalidParameterException();
         Iterator<Transition<S, E>> iterator = iterator();
         for (int i = 0; i < a.length; i++) {
-            //noinspection unchecked
             a[i] = (T) iterator.next();
             if (!iterator.hasNext()) break;
         }
@@ -188,14 +193,81 @@ public class PossibleStateTransitionPaths<S extends State, E extends Event<S>> i
         return new BranchesSpliterator<>(this);
     }
 
+    /**
+     * Runs in O(|distinct paths|). Paths are shared between branches that reach the same state at the same
+     * position, and are counted once.
+     *
+     * @return Estimated heap usage of this trellis, as in {@link Footprint}, excluding the transition sets that are
+     * shared with the NFA
+     */
+    public long estimateFootprint() {
+        final Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<PossibleStateTransitionPaths<S, E>> todo = new ArrayDeque<>();
+        todo.push(this);
+        long bytes = 0L;
+        while (!todo.isEmpty()) {
+            final PossibleStateTransitionPaths<S, E> paths = todo.pop();
+            if (!seen.add(paths)) continue;
+            bytes += Footprint.PATHS;
+            if (seen.add(paths.path)) bytes += Footprint.LIST_CELL;
+            if (paths.furtherPaths == null) continue;
+            if (seen.add(paths.furtherPaths)) bytes += Footprint.map(paths.furtherPaths.size());
+            for (Transition<S, E> transition : paths.possibleTransitions)
+                todo.push(paths.furtherPaths.get(transition.getTo()));
+        }
+        return bytes;
+    }
+
+    /**
+     * @return Cursor over the complete paths, see {@link PathCursor}
+     */
+    public PathCursor<S, E> cursor() {
+        return new PathCursor<>(this);
+    }
+
+    Row<S, E> getRow() {
+        Row<S, E> row = this.row;
+        if (row == null) {
+            row = new Row<>(possibleTransitions, furtherPaths);
+            this.row = row;
+        }
+        return row;
+    }
+
     public Stream<State> applyRecursive() {
+        return applyRecursive(t -> t.getEvent().accept(t.getFrom(), t.getTo()));
+    }
+
+    /**
+     * @param effects Fires the side effect of a transition
+     */
+    public Stream<State> applyRecursive(Consumer<Transition<S, E>> effects) {
         return possibleTransitions.stream().flatMap(t -> {
-            t.getEvent().accept(t.getFrom(), t.getTo());
+            effects.accept(t);
             if (furtherPaths == null) return Stream.of(t.getTo());
-            else return furtherPaths.get(t.getTo()).applyRecursive();
+            else return furtherPaths.get(t.getTo()).applyRecursive(effects);
         });
     }
 
+    /**
+     * Possible transitions in a fixed order, with the further paths from the target of each
+     */
+    static final class Row<S extends State, E extends Event<S>> {
+        final Transition<S, E>[] transitions;
+        /**
+         * Null entries at the end of the input, or where the target has no further paths
+         */
+        final PossibleStateTransitionPaths<S, E>[] children;
+
+        @SuppressWarnings("unchecked")
+        Row(Collection<Transition<S, E>> possibleTransitions, Map<S, PossibleStateTransitionPaths<S, E>> furtherPaths) {
+            this.transitions = (Transition<S, E>[]) possibleTransitions.toArray(new Transition<?, ?>[possibleTransitions.size()]);
+            this.children = (PossibleStateTransitionPaths<S, E>[]) new PossibleStateTransitionPaths<?, ?>[transitions.length];
+            if (furtherPaths != null)
+                for (int i = 0; i < transitions.length; i++) children[i] = furtherPaths.get(transitions[i].getTo());
+        }
+    }
+
     private static class BranchesSpliterator<S extends State, E extends Event<S>> implements Spliterator<Transition<S, E>> {
         private final LinkedList<Pair<PossibleStateTransitionPaths<S, E>, Iterator<Transition<S, E>>>> iteratorState;
 
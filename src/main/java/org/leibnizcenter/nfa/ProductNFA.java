@@ -0,0 +1,196 @@
+package org.leibnizcenter.nfa;
+
+import com.google.common.collect.ImmutableList;
+import org.leibnizcenter.nfa.util.WeakInterner;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Lazy intersection of a number of NFAs that run in lockstep on the same events. A product state is a tuple of
+ * component states, and it only exists if all components are alive. Product states are created on demand, as they are
+ * reached, and interned in a table so that every tuple is represented by exactly one {@link ProductState} while it is
+ * in use. The table only holds product states weakly, so over a long run it grows with the number of product states
+ * that are still referenced, for instance by live runs, rather than with all states ever reached.
+ * <p>
+ * Taking a product transition fires the side effects of each of the component transitions it consists of.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ProductNFA<S extends State, E extends Event<S>> {
+    public final List<NFA<S, E>> components;
+
+    private final WeakInterner<List<S>, ProductState<S>> internedStates = new WeakInterner<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final RunEngine<ProductState<S>, E, ProductTransition<S, E>> engine =
+            new RunEngine<>(this::getTransitions, ProductTransition::getTo);
+
+    public ProductNFA(List<NFA<S, E>> components) {
+        if (components.isEmpty()) throw new IllegalArgumentException("Product needs at least one component NFA");
+        this.components = ImmutableList.copyOf(components);
+    }
+
+    /**
+     * Runs in O(1) amortized
+     *
+     * @param componentStates One state for every component NFA
+     * @return The unique product state for the given tuple of states
+     */
+    public ProductState<S> getState(List<S> componentStates) {
+        if (componentStates.size() != components.size())
+            throw new IllegalArgumentException("Expected " + components.size() + " states, but got " + componentStates.size());
+        final ProductState<S> state = internedStates.get(componentStates);
+        if (state != null) return state;
+        return internedStates.intern(ImmutableList.copyOf(componentStates), key -> new ProductState<>(nextId.getAndIncrement(), key));
+    }
+
+    /**
+     * Runs in O(|interned states|)
+     *
+     * @return All product states that have been reached and are still in use
+     */
+    public List<ProductState<S>> getReachedStates() {
+        return internedStates.values();
+    }
+
+    /**
+     * @return Number of product states that have been created so far, including those that are no longer in use
+     */
+    public int numberOfCreatedStates() {
+        return nextId.get();
+    }
+
+    /**
+     * Runs in O(t), where t is the number of product transitions, which is the product of the number of transitions
+     * of every component.
+     *
+     * @return All product transitions from the given state through the given event. Empty if any of the components
+     * has no transition.
+     */
+    public List<ProductTransition<S, E>> getTransitions(ProductState<S> from, E event) {
+        final int n = components.size();
+        final List<List<Transition<S, E>>> componentTransitions = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            final Collection<Transition<S, E>> transitions = components.get(i).getTransitions(from.states.get(i), event);
+            if (transitions.isEmpty()) return Collections.emptyList();
+            componentTransitions.add(transitions instanceof List ? (List<Transition<S, E>>) transitions : new ArrayList<>(transitions));
+        }
+
+        // Enumerate the cartesian product of component transitions
+        final List<ProductTransition<S, E>> result = new ArrayList<>();
+        final int[] index = new int[n];
+        while (true) {
+            final List<Transition<S, E>> taken = new ArrayList<>(n);
+            final List<S> to = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                final Transition<S, E> transition = componentTransitions.get(i).get(index[i]);
+                taken.add(transition);
+                to.add(transition.getTo());
+            }
+            result.add(new ProductTransition<>(from, getState(to), taken));
+
+            int i = n - 1;
+            while (i >= 0 && ++index[i] >= componentTransitions.get(i).size()) index[i--] = 0;
+            if (i < 0) return result;
+        }
+    }
+
+    public StateContainer start(List<S> componentStates) {
+        return new StateContainer(Collections.singletonList(getState(componentStates)));
+    }
+
+    /**
+     * Walks all paths depth-first, firing side effects along the way. Paths on which any of the components dies are
+     * pruned as soon as they do.
+     *
+     * @return A stream of end states, one for every possible path
+     */
+    public Stream<ProductState<S>> apply(List<S> start, LinkedList<E> events) {
+        return applyRecursive(getState(start), new ArrayList<>(events), 0);
+    }
+
+    private Stream<ProductState<S>> applyRecursive(ProductState<S> from, List<E> events, int position) {
+        if (position >= events.size()) return Stream.of(from);
+        return getTransitions(from, events.get(position)).stream().flatMap(transition -> {
+            transition.accept();
+            return applyRecursive(transition.to, events, position + 1);
+        });
+    }
+
+    /**
+     * A tuple of component states
+     */
+    public static class ProductState<S extends State> implements State {
+        /**
+         * Unique among the product states of the same product; not reused once a state is no longer in use
+         */
+        public final int id;
+        public final List<S> states;
+
+        private ProductState(int id, List<S> states) {
+            this.id = id;
+            this.states = states;
+        }
+
+        @Override
+        public String toString() {
+            return states.toString();
+        }
+    }
+
+    /**
+     * A tuple of component transitions, one for each component NFA
+     */
+    public static class ProductTransition<S extends State, E extends Event<S>> {
+        public final ProductState<S> from;
+        public final ProductState<S> to;
+        public final List<Transition<S, E>> transitions;
+
+        public ProductTransition(ProductState<S> from, ProductState<S> to, List<Transition<S, E>> transitions) {
+            this.from = from;
+            this.to = to;
+            this.transitions = transitions;
+        }
+
+        public ProductState<S> getFrom() {
+            return from;
+        }
+
+        public ProductState<S> getTo() {
+            return to;
+        }
+
+        /**
+         * Fires the side effects of all component transitions
+         */
+        public void accept() {
+            for (Transition<S, E> transition : transitions)
+                transition.getEvent().accept(transition.getFrom(), transition.getTo());
+        }
+
+        @Override
+        public String toString() {
+            return from + "-" + transitions + "->" + to;
+        }
+    }
+
+    public class StateContainer {
+        public Collection<ProductState<S>> states;
+
+        /**
+         * @param states Initial states, one for every path; copied
+         */
+        public StateContainer(Collection<ProductState<S>> states) {
+            this.states = new ArrayList<>(states);
+        }
+
+        public StateContainer andThen(E e) {
+            states = engine.paths(states, e, (transition, times) -> transition.accept());
+            return this;
+        }
+
+        public Stream<ProductState<S>> getState() {
+            return states.stream();
+        }
+    }
+}
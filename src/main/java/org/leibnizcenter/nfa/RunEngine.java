@@ -0,0 +1,77 @@
+package org.leibnizcenter.nfa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Steps runs of an automaton whose transitions are looked up by a function, so that {@link NFA}, {@link ImplicitNFA},
+ * {@link ProductNFA} and {@link ComposedTransducer} share one implementation of a step. A run is either a collection
+ * with one entry per path, or {@link CountedStates} with one entry per distinct state.
+ *
+ * @param <Q> State type
+ * @param <I> Input type
+ * @param <T> Transition type
+ */
+final class RunEngine<Q, I, T> {
+    private final BiFunction<Q, I, ? extends Collection<T>> transitions;
+    private final Function<T, Q> target;
+
+    /**
+     * @param transitions Transitions from a state on an input
+     * @param target      State that a transition leads to
+     */
+    RunEngine(BiFunction<Q, I, ? extends Collection<T>> transitions, Function<T, Q> target) {
+        this.transitions = transitions;
+        this.target = target;
+    }
+
+    static <S extends State, E extends Event<S>> RunEngine<S, E, Transition<S, E>> of(TransitionFunction<S, E> function) {
+        return new RunEngine<>(function::getTransitions, Transition::getTo);
+    }
+
+    /**
+     * Runs in O(|paths| * |transitions per state|), apart from firing side effects
+     *
+     * @return One state for every path after the step, in path order
+     */
+    List<Q> paths(Collection<Q> paths, I input, ObjLongConsumer<? super T> effects) {
+        return paths(paths, input, effects, new ArrayList<>(paths.size()));
+    }
+
+    /**
+     * Runs in O(|paths| * |transitions per state|), apart from firing side effects
+     *
+     * @param next Collection to add the state of every path to after the step; a set merges paths that end in the
+     *             same state
+     * @return The given collection
+     */
+    <C extends Collection<Q>> C paths(Collection<Q> paths, I input, ObjLongConsumer<? super T> effects, C next) {
+        for (Q from : paths)
+            for (T transition : transitions.apply(from, input)) {
+                effects.accept(transition, 1L);
+                next.add(target.apply(transition));
+            }
+        return next;
+    }
+
+    /**
+     * Runs in O(|distinct states| * |transitions per state|), apart from firing side effects, which fire once per
+     * transition with the number of paths that take it
+     *
+     * @throws ArithmeticException If the number of paths overflows a long
+     */
+    CountedStates<Q> counts(CountedStates<Q> current, I input, ObjLongConsumer<? super T> effects) {
+        final CountedStates<Q> next = new CountedStates<>(current.numberOfDistinctStates());
+        current.forEachCount((from, count) -> {
+            for (T transition : transitions.apply(from, input)) {
+                effects.accept(transition, count);
+                next.add(target.apply(transition), count);
+            }
+        });
+        return next;
+    }
+}
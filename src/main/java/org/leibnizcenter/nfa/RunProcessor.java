@@ -0,0 +1,252 @@
+package org.leibnizcenter.nfa;
+
+import org.reactivestreams.Processor;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reactive Streams {@link Processor} that feeds events from a {@link Publisher} to a run of an NFA, and publishes the
+ * states of the run after every event to a single subscriber. On Java 9 and later, <code>FlowAdapters</code> from the
+ * reactive-streams library connects it to {@link java.util.concurrent.Flow}.
+ * <p>
+ * Events are requested from upstream in batches of at most {@code prefetch}, and only as far as the subscriber has
+ * requested updates, so a slow subscriber slows down the source instead of filling a buffer. No processor owns a
+ * thread: every signal schedules a drain task on the given executor, and drains of the same processor never overlap,
+ * so a small pool can serve many thousands of processors. Side effects fire on the executor threads, one event at a
+ * time, in the order in which events arrive.
+ * <p>
+ * An error from upstream is passed on after the events that arrived before it have been published, so, like those
+ * events, it waits for demand from the subscriber. An error while reading an event, or an invalid request, ends the
+ * stream at once and drops the events that are still buffered.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RunProcessor<S extends State, E extends Event<S>> implements Processor<E, RunProcessor.Update<S, E>> {
+    /**
+     * Subscription that ignores all signals; marks that upstream has been cancelled
+     */
+    private static final Subscription CANCELLED = new Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    };
+
+    private final NFA<S, E>.StateContainer run;
+    private final Executor executor;
+    private final int prefetch;
+
+    private final Queue<E> events = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingDrains = new AtomicInteger();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicReference<Subscription> upstream = new AtomicReference<>();
+    private final AtomicReference<Subscriber<? super Update<S, E>>> downstream = new AtomicReference<>();
+
+    /**
+     * Whether the subscriber's onSubscribe has returned; no other signal may reach it before that
+     */
+    private volatile boolean subscribed;
+    private volatile boolean done;
+    /**
+     * Error from upstream, signalled once the buffered events are published
+     */
+    private volatile Throwable error;
+    /**
+     * Invalid request from downstream, signalled at once
+     */
+    private volatile Throwable requestError;
+    private volatile boolean cancelled;
+
+    /**
+     * Only accessed by the drain task
+     */
+    private boolean requestedInitially;
+    private boolean terminated;
+    private int consumed;
+
+    /**
+     * @param prefetch Maximum number of events that are requested from upstream but not yet read
+     */
+    public RunProcessor(NFA<S, E>.StateContainer run, Executor executor, int prefetch) {
+        if (prefetch < 1) throw new IllegalArgumentException("Prefetch must be positive");
+        this.run = run;
+        this.executor = executor;
+        this.prefetch = prefetch;
+    }
+
+    public RunProcessor(NFA<S, E> nfa, S start, Executor executor) {
+        this(nfa.start(start), executor, 64);
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        if (!upstream.compareAndSet(null, subscription)) {
+            subscription.cancel();
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(E event) {
+        if (event == null) throw new NullPointerException();
+        events.offer(event);
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        done = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        done = true;
+        drain();
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Update<S, E>> subscriber) {
+        if (!downstream.compareAndSet(null, subscriber)) {
+            subscriber.onSubscribe(CANCELLED);
+            subscriber.onError(new IllegalStateException("A run can only be published to one subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    requestError = new IllegalArgumentException("Expected a positive number of items, but got " + n);
+                    cancelUpstream();
+                } else {
+                    requested.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                cancelUpstream();
+                drain();
+            }
+        });
+        subscribed = true;
+        drain();
+    }
+
+    private void cancelUpstream() {
+        final Subscription subscription = upstream.getAndSet(CANCELLED);
+        if (subscription != null && subscription != CANCELLED) subscription.cancel();
+    }
+
+    /**
+     * Schedules a drain task, unless one is pending, in which case that task will pick up the new signal
+     */
+    private void drain() {
+        if (pendingDrains.getAndIncrement() == 0) executor.execute(this::drainLoop);
+    }
+
+    private void drainLoop() {
+        int missed = 1;
+        do {
+            drainOnce();
+            missed = pendingDrains.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drainOnce() {
+        if (terminated) return;
+        if (cancelled) {
+            terminated = true;
+            events.clear();
+            return;
+        }
+        final Subscriber<? super Update<S, E>> subscriber = downstream.get();
+        final Subscription subscription = upstream.get();
+        if (subscriber == null || !subscribed || subscription == null) return;
+        if (!requestedInitially && subscription != CANCELLED) {
+            requestedInitially = true;
+            subscription.request(prefetch);
+        }
+
+        final Throwable failure = requestError;
+        if (failure != null) {
+            terminate();
+            subscriber.onError(failure);
+            return;
+        }
+
+        long emitted = 0L;
+        final long demand = requested.get();
+        while (emitted < demand && !cancelled) {
+            final E event = events.poll();
+            if (event == null) break;
+            try {
+                run.andThen(event);
+            } catch (RuntimeException e) {
+                cancelUpstream();
+                terminate();
+                subscriber.onError(e);
+                return;
+            }
+            subscriber.onNext(new Update<>(event, run.states, run.isAccepting()));
+            emitted++;
+            // Replenish once half of the prefetched events have been read
+            if (++consumed >= (prefetch + 1) / 2) {
+                final Subscription current = upstream.get();
+                if (current != CANCELLED) current.request(consumed);
+                consumed = 0;
+            }
+        }
+        if (emitted > 0L && demand != Long.MAX_VALUE) requested.addAndGet(-emitted);
+
+        if (done && events.isEmpty() && !cancelled) {
+            terminate();
+            final Throwable upstreamError = error;
+            if (upstreamError != null) subscriber.onError(upstreamError);
+            else subscriber.onComplete();
+        }
+    }
+
+    private void terminate() {
+        terminated = true;
+        events.clear();
+    }
+
+    /**
+     * States of a run after reading an event
+     */
+    public static final class Update<S extends State, E extends Event<S>> {
+        public final E event;
+        /**
+         * States of the run, one for every path, like {@link NFA.StateContainer#states}
+         */
+        public final Collection<S> states;
+        public final boolean accepting;
+
+        private Update(E event, Collection<S> states, boolean accepting) {
+            this.event = event;
+            this.states = states;
+            this.accepting = accepting;
+        }
+
+        @Override
+        public String toString() {
+            return event + " -> " + states + (accepting ? " (accepting)" : "");
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package org.leibnizcenter.nfa;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary snapshots of live runs of an NFA, so that runs survive a restart without replaying their events. A run is
+ * stored as its key, its strategy, and a list of (state id, count) entries: for a run that lists paths, consecutive
+ * paths in the same state share an entry, and for a run that counts, every distinct state has one entry. The size of
+ * a snapshot is therefore proportional to the number of distinct states, not to the number of paths.
+ * <p>
+ * Snapshots are taken in two phases. {@link #capture(Map)} only copies a reference to the current states of every run,
+ * which is cheap enough for the matching thread, and consistent because steps replace the states of a run rather than
+ * modify them. {@link Snapshot#writeTo(Path)} then encodes the runs one by one through a fixed-size buffer, which
+ * can be done on another thread while matching continues.
+ * <p>
+ * Runs that list paths are restored as lists with one element per path, as they were before capture, unless their
+ * strategy is picked adaptively and they have so many paths that the next step would switch to counting them: those are
+ * restored as counts right away.
+ * <p>
+ * Side effects are opaque, so pending effects are not stored: flush an {@link EffectPipeline} before capturing if its
+ * effects must not be lost. Restored runs fire their side effects inline.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RunSnapshots<S extends State, E extends Event<S>> {
+    private static final int MAGIC = 0x4E464153;
+    private static final int VERSION = 1;
+    private static final byte RUN = 1;
+    private static final byte END = 0;
+    private static final int END_OF_ENTRIES = -1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final NFA<S, E> nfa;
+    private final List<S> statesById;
+    private final Map<S, Integer> ids;
+
+    /**
+     * @param statesById States, indexed by the id under which they are stored. This list must be the same when
+     *                   restoring as when writing; for enum states, {@code Arrays.asList(MyStates.values())} will do.
+     */
+    public RunSnapshots(NFA<S, E> nfa, List<S> statesById) {
+        this.nfa = nfa;
+        this.statesById = new ArrayList<>(statesById);
+        this.ids = new HashMap<>(statesById.size() * 2);
+        for (int i = 0; i < statesById.size(); i++)
+            if (ids.put(statesById.get(i), i) != null)
+                throw new IllegalArgumentException("State occurs more than once: " + statesById.get(i));
+    }
+
+    /**
+     * Runs in O(|runs|)
+     *
+     * @param runs Runs by key; may be modified by other threads if the map is concurrent
+     */
+    public Snapshot capture(Map<Long, NFA<S, E>.StateContainer> runs) {
+        final List<CapturedRun<S>> captured = new ArrayList<>(runs.size());
+        runs.forEach((key, run) -> captured.add(new CapturedRun<>(key, run.getFixedStrategy(), run.states)));
+        return new Snapshot(captured);
+    }
+
+    /**
+     * Memory-maps the file and decodes the runs in it, in time proportional to its size, plus the number of paths of
+     * runs that are restored as lists
+     *
+     * @return Restored runs by key, in the order in which they were captured
+     * @throws IllegalArgumentException If the file is not a snapshot for as many states as this one, or is corrupt
+     */
+    public Map<Long, NFA<S, E>.StateContainer> restore(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Runs in O(|buffer|), plus the number of paths of runs that are restored as lists
+     *
+     * @throws IllegalArgumentException If the buffer does not hold a snapshot for as many states as this one, or is
+     *                                  corrupt
+     */
+    public Map<Long, NFA<S, E>.StateContainer> read(ByteBuffer buffer) {
+        try {
+            return readRuns(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Snapshot is truncated", e);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Snapshot is corrupt: path counts overflow", e);
+        }
+    }
+
+    private Map<Long, NFA<S, E>.StateContainer> readRuns(ByteBuffer buffer) {
+        if (buffer.remaining() < 12 || buffer.getInt() != MAGIC)
+            throw new IllegalArgumentException("Not a snapshot of runs");
+        final int version = buffer.getInt();
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported snapshot version: " + version);
+        final int numberOfStates = buffer.getInt();
+        if (numberOfStates != statesById.size())
+            throw new IllegalArgumentException("Snapshot has " + numberOfStates + " states, but expected " + statesById.size());
+
+        final Map<Long, NFA<S, E>.StateContainer> runs = new LinkedHashMap<>();
+        while (buffer.get() == RUN) {
+            final long key = buffer.getLong();
+            final byte fixed = buffer.get();
+            final ExecutionStrategy fixedStrategy = fixed == -1 ? null : getStrategy(fixed);
+            final ExecutionStrategy strategy = getStrategy(buffer.get());
+            runs.put(key, nfa.restore(readStates(buffer, strategy, fixedStrategy == null), fixedStrategy));
+        }
+        final long numberOfRuns = buffer.getLong();
+        if (numberOfRuns != runs.size())
+            throw new IllegalArgumentException("Snapshot is truncated: expected " + numberOfRuns + " runs, but got " + runs.size());
+        return runs;
+    }
+
+    private static ExecutionStrategy getStrategy(byte ordinal) {
+        if (ordinal < 0 || ordinal >= ExecutionStrategy.values().length)
+            throw new IllegalArgumentException("Unknown strategy: " + ordinal);
+        return ExecutionStrategy.values()[ordinal];
+    }
+
+    /**
+     * @param adaptive Whether the run picks its strategy adaptively, so that paths may be restored as counts
+     */
+    private Collection<S> readStates(ByteBuffer buffer, ExecutionStrategy strategy, boolean adaptive) {
+        switch (strategy) {
+            case ORDINAL_COUNTS:
+                final EnumIndex<S, E> enumIndex = nfa.getEnumIndex();
+                if (enumIndex == null)
+                    throw new IllegalArgumentException("Counting by ordinal requires all states to be constants of one enum");
+                final long[] counts = new long[enumIndex.states.length];
+                for (int id = buffer.getInt(); id != END_OF_ENTRIES; id = buffer.getInt()) {
+                    final int ordinal = EnumIndex.ordinal(getState(id));
+                    counts[ordinal] = Math.addExact(counts[ordinal], getCount(buffer));
+                }
+                return new EnumIndex.Multiset<>(enumIndex.states, counts);
+            case COUNTS:
+                final CountedStates<S> countedStates = new CountedStates<>(16);
+                for (int id = buffer.getInt(); id != END_OF_ENTRIES; id = buffer.getInt())
+                    countedStates.add(getState(id), getCount(buffer));
+                return countedStates;
+            default:
+                final CountedStates<S> entries = new CountedStates<>(16);
+                final List<S> order = new ArrayList<>();
+                final List<Long> entryCounts = new ArrayList<>();
+                for (int id = buffer.getInt(); id != END_OF_ENTRIES; id = buffer.getInt()) {
+                    final S state = getState(id);
+                    final long count = getCount(buffer);
+                    entries.add(state, count);
+                    order.add(state);
+                    entryCounts.add(count);
+                }
+                if (adaptive && entries.numberOfPaths() > NFA.MAX_PATHS_TO_LIST) return entries;
+                if (entries.numberOfPaths() > Integer.MAX_VALUE - 8)
+                    throw new IllegalArgumentException("Too many paths to list: " + entries.numberOfPaths());
+                final List<S> paths = new ArrayList<>((int) entries.numberOfPaths());
+                for (int i = 0; i < order.size(); i++)
+                    for (long c = entryCounts.get(i); c > 0L; c--) paths.add(order.get(i));
+                return paths;
+        }
+    }
+
+    private static long getCount(ByteBuffer buffer) {
+        final long count = buffer.getLong();
+        if (count <= 0L) throw new IllegalArgumentException("Snapshot is corrupt: count " + count);
+        return count;
+    }
+
+    private S getState(int id) {
+        if (id < 0 || id >= statesById.size()) throw new IllegalArgumentException("Unknown state id: " + id);
+        return statesById.get(id);
+    }
+
+    private int getId(S state) {
+        final Integer id = ids.get(state);
+        if (id == null) throw new IllegalArgumentException("State has no id: " + state);
+        return id;
+    }
+
+    private static final class CapturedRun<S> {
+        private final long key;
+        private final ExecutionStrategy fixedStrategy;
+        private final Collection<S> states;
+
+        CapturedRun(long key, ExecutionStrategy fixedStrategy, Collection<S> states) {
+            this.key = key;
+            this.fixedStrategy = fixedStrategy;
+            this.states = states;
+        }
+    }
+
+    /**
+     * States of a number of runs at the moment they were captured
+     */
+    public class Snapshot {
+        private final List<CapturedRun<S>> runs;
+
+        private Snapshot(List<CapturedRun<S>> runs) {
+            this.runs = runs;
+        }
+
+        public int numberOfRuns() {
+            return runs.size();
+        }
+
+        /**
+         * Writes to a temporary file next to the given path, and then moves it into place, so that the file at the
+         * path is always a complete snapshot
+         */
+        public void writeTo(Path path) {
+            final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    writeTo(channel);
+                    channel.force(true);
+                }
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Runs in O(|entries|), and uses a buffer of fixed size
+         */
+        public void writeTo(WritableByteChannel channel) throws IOException {
+            final Writer writer = new Writer(channel);
+            writer.ensure(12).putInt(MAGIC).putInt(VERSION).putInt(statesById.size());
+            for (CapturedRun<S> run : runs) {
+                final ExecutionStrategy strategy = getStrategy(run.states);
+                writer.ensure(11).put(RUN).putLong(run.key)
+                        .put(run.fixedStrategy == null ? -1 : (byte) run.fixedStrategy.ordinal())
+                        .put((byte) strategy.ordinal());
+                writeStates(writer, run.states, strategy);
+                writer.ensure(4).putInt(END_OF_ENTRIES);
+            }
+            writer.ensure(9).put(END).putLong(runs.size());
+            writer.flush();
+        }
+
+        private ExecutionStrategy getStrategy(Collection<S> states) {
+            if (states instanceof EnumIndex.Multiset) return ExecutionStrategy.ORDINAL_COUNTS;
+            if (states instanceof CountedStates) return ExecutionStrategy.COUNTS;
+            return ExecutionStrategy.PATHS;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void writeStates(Writer writer, Collection<S> states, ExecutionStrategy strategy) throws IOException {
+            switch (strategy) {
+                case ORDINAL_COUNTS:
+                    final long[] counts = ((EnumIndex.Multiset<S>) states).getCounts();
+                    final S[] enumStates = nfa.getEnumIndex().states;
+                    for (int ordinal = 0; ordinal < counts.length; ordinal++)
+                        if (counts[ordinal] > 0L) writer.ensure(12).putInt(getId(enumStates[ordinal])).putLong(counts[ordinal]);
+                    break;
+                case COUNTS:
+                    final IOException[] failure = new IOException[1];
+                    ((CountedStates<S>) states).forEachCount((state, count) -> {
+                        if (failure[0] != null) return;
+                        try {
+                            writer.ensure(12).putInt(getId(state)).putLong(count);
+                        } catch (IOException e) {
+                            failure[0] = e;
+                        }
+                    });
+                    if (failure[0] != null) throw failure[0];
+                    break;
+                default:
+                    // Consecutive paths in the same state share an entry
+                    S previous = null;
+                    long count = 0L;
+                    for (S state : states) {
+                        if (count > 0L && state.equals(previous)) {
+                            count++;
+                            continue;
+                        }
+                        if (count > 0L) writer.ensure(12).putInt(getId(previous)).putLong(count);
+                        previous = state;
+                        count = 1L;
+                    }
+                    if (count > 0L) writer.ensure(12).putInt(getId(previous)).putLong(count);
+            }
+        }
+    }
+
+    /**
+     * Writes through a fixed-size buffer, which is drained to the channel when it does not have enough room left
+     */
+    private static final class Writer {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        Writer(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        ByteBuffer ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) flush();
+            return buffer;
+        }
+
+        void flush() throws IOException {
+            // Casts to Buffer keep the byte code compatible with Java 8
+            ((Buffer) buffer).flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            ((Buffer) buffer).clear();
+        }
+    }
+}
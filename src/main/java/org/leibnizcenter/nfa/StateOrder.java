@@ -0,0 +1,166 @@
+package org.leibnizcenter.nfa;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Orders in which to number the states of an NFA for tables that index states by number, like {@link BitSetNFA} and
+ * the tables of graph queries; see {@link NFA.Builder#setStateOrder(List)}.
+ * States that are visited together should get nearby numbers, so that their rows share cache lines and their
+ * successor masks are short. Every order lists all states of the NFA: states that the order does not reach come last.
+ * <p>
+ * The order mostly pays off for {@link BitSetNFA}, whose masks get shorter. In StateOrderBenchmark, with 4096 states,
+ * breadth-first and clustered orders step about 1.5 times as fast as the default hash order, and ordering by frequency
+ * alone about 1.15 times. The rows of the graph query tables are compact, and for a few thousand states their order
+ * made no difference beyond noise.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class StateOrder {
+    private StateOrder() {
+    }
+
+    /**
+     * Runs in O(|states| + |transitions|)
+     *
+     * @return States in the order in which a breadth-first search from the start states discovers them, so that
+     * successors of a state are numbered close to each other
+     */
+    public static <S extends State, E extends Event<S>> List<S> breadthFirst(NFA<S, E> nfa, Collection<S> startStates) {
+        final Set<S> order = new LinkedHashSet<>(startStates);
+        final Deque<S> queue = new ArrayDeque<>(order);
+        while (!queue.isEmpty())
+            forEachSuccessor(nfa, queue.poll(), successor -> {
+                if (order.add(successor)) queue.add(successor);
+            });
+        return complete(nfa, order);
+    }
+
+    /**
+     * Runs in O(|states| + |transitions|)
+     *
+     * @return States in the order in which a depth-first search from the start states discovers them, so that states
+     * along a path are numbered close to each other
+     */
+    public static <S extends State, E extends Event<S>> List<S> depthFirst(NFA<S, E> nfa, Collection<S> startStates) {
+        final Set<S> order = new LinkedHashSet<>();
+        final Deque<S> stack = new ArrayDeque<>();
+        final List<S> starts = new ArrayList<>(startStates);
+        Collections.reverse(starts);
+        starts.forEach(stack::push);
+        final List<S> successors = new ArrayList<>();
+        while (!stack.isEmpty()) {
+            final S state = stack.pop();
+            if (!order.add(state)) continue;
+            successors.clear();
+            forEachSuccessor(nfa, state, successors::add);
+            // Push in reverse, so that the first successor is visited first
+            for (int i = successors.size() - 1; i >= 0; i--)
+                if (!order.contains(successors.get(i))) stack.push(successors.get(i));
+        }
+        return complete(nfa, order);
+    }
+
+    /**
+     * Runs in O(|states| log |states|)
+     *
+     * @param visits Number of visits per state, for instance from a {@link Profile}
+     * @return States from most to least visited, so that hot states share the first words of every bitset and table.
+     * The successors of a state may still be numbered far from it; {@link #clustered(NFA, Map)} also keeps them close.
+     */
+    public static <S extends State, E extends Event<S>> List<S> byFrequency(NFA<S, E> nfa, Map<S, Long> visits) {
+        // Copied, so that runs that still record do not change the order while sorting
+        final Map<S, Long> counts = new HashMap<>(visits);
+        final List<S> visited = new ArrayList<>(counts.keySet());
+        visited.sort((a, b) -> Long.compare(counts.get(b), counts.get(a)));
+        return complete(nfa, new LinkedHashSet<>(visited));
+    }
+
+    /**
+     * Runs in O(|states| log |states| + |transitions|)
+     *
+     * @param visits Number of visits per state, for instance from a {@link Profile}
+     * @return Visited states first, in clusters: starting from the most visited state that is not numbered yet, a
+     * breadth-first search over visited states numbers its successors, most visited first. Hot states therefore share
+     * the first words of every bitset and table, like in {@link #byFrequency(NFA, Map)}, and the successors of a state
+     * are also numbered close to it, like in {@link #breadthFirst(NFA, Collection)}.
+     */
+    public static <S extends State, E extends Event<S>> List<S> clustered(NFA<S, E> nfa, Map<S, Long> visits) {
+        final Map<S, Long> counts = new HashMap<>(visits);
+        final Comparator<S> byVisits = (a, b) -> Long.compare(counts.get(b), counts.get(a));
+        final List<S> visited = new ArrayList<>(counts.keySet());
+        visited.sort(byVisits);
+        final Set<S> order = new LinkedHashSet<>();
+        final Deque<S> queue = new ArrayDeque<>();
+        final List<S> successors = new ArrayList<>();
+        for (S seed : visited) {
+            if (!order.add(seed)) continue;
+            queue.add(seed);
+            while (!queue.isEmpty()) {
+                successors.clear();
+                forEachSuccessor(nfa, queue.poll(), successor -> {
+                    if (counts.containsKey(successor) && !order.contains(successor)) successors.add(successor);
+                });
+                successors.sort(byVisits);
+                for (S successor : successors) if (order.add(successor)) queue.add(successor);
+            }
+        }
+        return complete(nfa, order);
+    }
+
+    private static <S extends State, E extends Event<S>> void forEachSuccessor(NFA<S, E> nfa, S state, Consumer<S> action) {
+        final Map<E, ? extends Collection<Transition<S, E>>> eventMap = nfa.transitions.get(state);
+        if (eventMap != null)
+            eventMap.values().forEach(transitions -> transitions.forEach(transition -> action.accept(transition.getTo())));
+    }
+
+    private static <S extends State, E extends Event<S>> List<S> complete(NFA<S, E> nfa, Set<S> order) {
+        final Set<S> all = new LinkedHashSet<>(order);
+        all.addAll(nfa.states);
+        nfa.transitions.forEach((from, eventMap) -> {
+            all.add(from);
+            eventMap.values().forEach(transitions -> transitions.forEach(transition -> all.add(transition.getTo())));
+        });
+        return new ArrayList<>(all);
+    }
+
+    /**
+     * Counts how often every state is active in the runs that it records, for {@link #byFrequency(NFA, Map)}. Records
+     * every step of an NFA that it is set on with {@link NFA.Builder#setProfile(Profile)}, and may be shared by runs
+     * on several threads.
+     */
+    public static final class Profile<S extends State> {
+        private final Map<S, Long> visits = new ConcurrentHashMap<>();
+
+        /**
+         * Records the states of a run after a step, counting every distinct state once. Runs in O(|distinct states|)
+         * for runs that count paths, and in O(|paths|) otherwise.
+         */
+        @SuppressWarnings("unchecked")
+        public <E extends Event<S>> Profile<S> record(NFA<S, E>.StateContainer run) {
+            final Collection<S> states = run.states;
+            if (states instanceof CountedStates)
+                ((CountedStates<S>) states).forEachCount((state, count) -> visit(state));
+            else if (states instanceof EnumIndex.Multiset)
+                ((EnumIndex.Multiset<S>) states).forEachCount((state, count) -> visit(state));
+            else record(states);
+            return this;
+        }
+
+        /**
+         * Counts every distinct state in the collection once
+         */
+        public Profile<S> record(Collection<S> states) {
+            for (S state : states instanceof Set ? states : new HashSet<>(states)) visit(state);
+            return this;
+        }
+
+        void visit(S state) {
+            visits.merge(state, 1L, Long::sum);
+        }
+
+        public Map<S, Long> getVisits() {
+            return Collections.unmodifiableMap(visits);
+        }
+    }
+}
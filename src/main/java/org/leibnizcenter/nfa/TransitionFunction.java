@@ -0,0 +1,35 @@
+package org.leibnizcenter.nfa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Transition relation of an automaton that is computed on demand instead of stored, for state spaces that are too large
+ * to build with {@link NFA.Builder}
+ *
+ * @see ImplicitNFA
+ */
+@FunctionalInterface
+public interface TransitionFunction<S extends State, E extends Event<S>> {
+    /**
+     * Should always return the same states for the same arguments, because results are cached
+     *
+     * @return States that can be reached from the given state through the given event, without duplicates
+     */
+    Collection<S> getSuccessors(S from, E event);
+
+    /**
+     * @return Transitions from the given state through the given event, one for every successor
+     */
+    default Collection<Transition<S, E>> getTransitions(S from, E event) {
+        final Collection<S> successors = getSuccessors(from, event);
+        final List<Transition<S, E>> transitions = new ArrayList<>(successors.size());
+        for (S to : successors) transitions.add(new Transition<>(from, event, to));
+        return transitions;
+    }
+
+    default boolean isAccepting(S state) {
+        return false;
+    }
+}
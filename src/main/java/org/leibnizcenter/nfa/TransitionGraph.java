@@ -0,0 +1,237 @@
+package org.leibnizcenter.nfa;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Compact adjacency of an NFA for graph queries. States and events are numbered, and the transitions out of and into
+ * every state are stored in flat int arrays (compressed sparse rows), sorted by event number, so that the transitions
+ * of a state on an event are found by binary search. Queries allocate a few arrays of the number of states, and no
+ * objects per visited state. States are numbered in the order of {@link NFA.Builder#setStateOrder(List)}, so states
+ * that are visited together can get rows next to each other.
+ */
+final class TransitionGraph<S extends State, E extends Event<S>> {
+    private final S[] states;
+    private final Map<S, Integer> stateIds;
+    private final E[] events;
+    private final Map<E, Integer> eventIds;
+    private final Rows out;
+    private final Rows in;
+
+    TransitionGraph(NFA<S, E> nfa) {
+        this(nfa, Collections.emptyList());
+    }
+
+    /**
+     * @param order States in the order in which their rows are stored, for instance from {@link StateOrder}; states
+     *              that are not in the list are stored after those that are
+     */
+    @SuppressWarnings("unchecked")
+    TransitionGraph(NFA<S, E> nfa, List<S> order) {
+        final Set<S> allStates = new LinkedHashSet<>(order);
+        allStates.addAll(nfa.states);
+        nfa.transitions.forEach((from, eventMap) -> {
+            allStates.add(from);
+            eventMap.values().forEach(transitions -> transitions.forEach(transition -> allStates.add(transition.getTo())));
+        });
+        this.states = (S[]) allStates.toArray(new State[allStates.size()]);
+        this.stateIds = new HashMap<>(states.length * 2);
+        for (int i = 0; i < states.length; i++) stateIds.put(states[i], i);
+
+        this.events = (E[]) nfa.statesThatAllowEvent.keySet().toArray(new Event<?>[0]);
+        this.eventIds = new HashMap<>(events.length * 2);
+        for (int i = 0; i < events.length; i++) eventIds.put(events[i], i);
+
+        final List<int[]> edges = new ArrayList<>();
+        nfa.transitions.forEach((from, eventMap) -> eventMap.forEach((event, transitions) -> {
+            for (Transition<S, E> transition : transitions)
+                edges.add(new int[]{stateIds.get(from), eventIds.get(event), stateIds.get(transition.getTo())});
+        }));
+        this.out = new Rows(states.length, edges, 0, 2);
+        this.in = new Rows(states.length, edges, 2, 0);
+    }
+
+    /**
+     * Bidirectional breadth-first search: expands whichever of the forward frontier (from the start) and the backward
+     * frontier (from the target) is smaller, until they meet at the same input position. Runs in
+     * O(|events| * |transitions|) in the worst case.
+     */
+    boolean isReachable(S from, List<E> input, S to) {
+        final Integer fromId = stateIds.get(from);
+        final Integer toId = stateIds.get(to);
+        if (fromId == null || toId == null) return input.isEmpty() && from.equals(to);
+
+        final int[] eventIdsOfInput = new int[input.size()];
+        for (int i = 0; i < eventIdsOfInput.length; i++) {
+            final Integer id = eventIds.get(input.get(i));
+            if (id == null) return false;
+            eventIdsOfInput[i] = id;
+        }
+
+        final Frontier forward = new Frontier(states.length, fromId);
+        final Frontier backward = new Frontier(states.length, toId);
+        final int[] stamp = new int[states.length];
+        int generation = 0;
+        int i = 0;
+        int j = eventIdsOfInput.length;
+        while (i < j) {
+            if (forward.size <= backward.size) forward.expand(out, eventIdsOfInput[i++], stamp, ++generation);
+            else backward.expand(in, eventIdsOfInput[--j], stamp, ++generation);
+            if (forward.size == 0 || backward.size == 0) return false;
+        }
+
+        generation++;
+        for (int k = 0; k < forward.size; k++) stamp[forward.states[k]] = generation;
+        for (int k = 0; k < backward.size; k++) if (stamp[backward.states[k]] == generation) return true;
+        return false;
+    }
+
+    /**
+     * Breadth-first search that expands states in the order in which they are discovered, and the transitions of each
+     * state in the given order of events. The first sequence that is found is therefore the shortest, and among the
+     * shortest, the first in lexicographic order.
+     *
+     * @param order Order of events, or null for an arbitrary order
+     */
+    Optional<List<E>> findShortestSequence(S from, Predicate<S> target, Comparator<? super E> order) {
+        final Integer fromId = stateIds.get(from);
+        if (fromId == null) return target.test(from) ? Optional.of(Collections.emptyList()) : Optional.empty();
+
+        int[] rank = null;
+        if (order != null) {
+            final Integer[] sorted = new Integer[events.length];
+            for (int i = 0; i < sorted.length; i++) sorted[i] = i;
+            Arrays.sort(sorted, (a, b) -> order.compare(events[a], events[b]));
+            rank = new int[events.length];
+            for (int i = 0; i < sorted.length; i++) rank[sorted[i]] = i;
+        }
+
+        final int[] parent = new int[states.length];
+        final int[] parentEvent = new int[states.length];
+        Arrays.fill(parent, -1);
+        final int[] queue = new int[states.length];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = fromId;
+        parent[fromId] = fromId;
+        int[] scratch = new int[16];
+        while (head < tail) {
+            final int state = queue[head++];
+            if (target.test(states[state])) return Optional.of(trace(fromId, state, parent, parentEvent));
+
+            final int start = out.offsets[state];
+            final int end = out.offsets[state + 1];
+            if (scratch.length < end - start) scratch = new int[end - start];
+            for (int k = start; k < end; k++) scratch[k - start] = k;
+            if (rank != null) sortByRank(scratch, end - start, rank);
+            for (int k = 0; k < end - start; k++) {
+                final int edge = scratch[k];
+                final int next = out.targets[edge];
+                if (parent[next] < 0) {
+                    parent[next] = state;
+                    parentEvent[next] = out.events[edge];
+                    queue[tail++] = next;
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Insertion sort, because rows are short
+     */
+    private void sortByRank(int[] edges, int length, int[] rank) {
+        for (int i = 1; i < length; i++) {
+            final int edge = edges[i];
+            int j = i - 1;
+            while (j >= 0 && rank[out.events[edges[j]]] > rank[out.events[edge]]) {
+                edges[j + 1] = edges[j];
+                j--;
+            }
+            edges[j + 1] = edge;
+        }
+    }
+
+    private List<E> trace(int from, int to, int[] parent, int[] parentEvent) {
+        final LinkedList<E> sequence = new LinkedList<>();
+        for (int state = to; state != from; state = parent[state]) sequence.addFirst(events[parentEvent[state]]);
+        return new ArrayList<>(sequence);
+    }
+
+    /**
+     * Transitions grouped by one endpoint, sorted by event number within each group
+     */
+    private static final class Rows {
+        private final int[] offsets;
+        private final int[] events;
+        private final int[] targets;
+
+        /**
+         * @param key   Index of the grouping endpoint in an edge
+         * @param value Index of the other endpoint in an edge
+         */
+        Rows(int numberOfStates, List<int[]> edges, int key, int value) {
+            final List<int[]> sorted = new ArrayList<>(edges);
+            sorted.sort((a, b) -> a[key] != b[key] ? Integer.compare(a[key], b[key]) : Integer.compare(a[1], b[1]));
+            this.offsets = new int[numberOfStates + 1];
+            this.events = new int[sorted.size()];
+            this.targets = new int[sorted.size()];
+            for (int i = 0; i < sorted.size(); i++) {
+                final int[] edge = sorted.get(i);
+                offsets[edge[key] + 1]++;
+                events[i] = edge[1];
+                targets[i] = edge[value];
+            }
+            for (int i = 0; i < numberOfStates; i++) offsets[i + 1] += offsets[i];
+        }
+
+        /**
+         * @return Index of the first edge of the state on the event, or of the next event
+         */
+        int firstEdge(int state, int event) {
+            int low = offsets[state];
+            int high = offsets[state + 1];
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (events[mid] < event) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+    }
+
+    /**
+     * States that are active at one input position
+     */
+    private static final class Frontier {
+        private int[] states;
+        private int[] next;
+        private int size;
+
+        Frontier(int capacity, int initial) {
+            this.states = new int[capacity];
+            this.next = new int[capacity];
+            states[0] = initial;
+            size = 1;
+        }
+
+        void expand(Rows rows, int event, int[] stamp, int generation) {
+            int nextSize = 0;
+            for (int k = 0; k < size; k++) {
+                final int state = states[k];
+                final int end = rows.offsets[state + 1];
+                for (int edge = rows.firstEdge(state, event); edge < end && rows.events[edge] == event; edge++) {
+                    final int target = rows.targets[edge];
+                    if (stamp[target] != generation) {
+                        stamp[target] = generation;
+                        next[nextSize++] = target;
+                    }
+                }
+            }
+            final int[] swap = states;
+            states = next;
+            next = swap;
+            size = nextSize;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package org.leibnizcenter.nfa;
+
+import org.leibnizcenter.nfa.util.OffHeapIntStore;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * All transitions that lie on some path from a start state along a sequence of events, stored as one layer per input
+ * position in an {@link OffHeapIntStore}. A layer is an array of transition ids, so the heap only holds the distinct
+ * transitions and states that were used, and one offset per position. Older layers are spilled to a memory-mapped
+ * file, and are paged back in as they are traversed.
+ * <p>
+ * Unlike {@link PossibleStateTransitionPaths}, the trellis is pruned: transitions that lead into a dead end before the
+ * input ends are removed. Building takes a forward and a backward pass over the layers. Close the trellis to delete its
+ * temporary file.
+ */
+@SuppressWarnings("WeakerAccess")
+public class Trellis<S extends State, E extends Event<S>> implements AutoCloseable {
+    private final OffHeapIntStore layers;
+    private final int hotBufferBytes;
+
+    private final List<Transition<S, E>> transitions = new ArrayList<>();
+    private final Map<Transition<S, E>, Integer> transitionIds = new HashMap<>();
+    private int[] transitionFrom = new int[16];
+    private int[] transitionTo = new int[16];
+    private final List<S> states = new ArrayList<>();
+    private final Map<S, Integer> stateIds = new HashMap<>();
+
+    private final int startState;
+    private final int length;
+    /**
+     * Number of transitions in the layers before every position, up to and including the end; set by the build
+     */
+    private long[] transitionsBefore;
+
+    /**
+     * Runs in O(|events| * |transitions|)
+     *
+     * @param hotBufferBytes Bytes of the most recent layers to keep in memory before spilling to file
+     */
+    Trellis(NFA<S, E> nfa, S start, Iterable<E> events, int hotBufferBytes) {
+        this.hotBufferBytes = hotBufferBytes;
+        this.layers = new OffHeapIntStore(hotBufferBytes);
+        this.startState = getStateId(start);
+        try {
+            this.length = build(nfa, events);
+        } catch (RuntimeException | Error e) {
+            // The caller never gets the trellis to close
+            layers.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Number of input positions
+     */
+    private int build(NFA<S, E> nfa, Iterable<E> events) {
+        // Forward pass: all transitions from states that can be reached from the start state
+        int[] frontier = new int[]{startState};
+        int frontierSize = 1;
+        int[] nextFrontier = new int[16];
+        int[] reachedAt = new int[states.size()];
+        int[] layer = new int[16];
+        int position = 0;
+        for (E event : events) {
+            int layerSize = 0;
+            int nextFrontierSize = 0;
+            for (int i = 0; i < frontierSize; i++) {
+                for (Transition<S, E> transition : nfa.getTransitions(states.get(frontier[i]), event)) {
+                    final int id = getTransitionId(transition);
+                    if (layerSize >= layer.length) layer = Arrays.copyOf(layer, layerSize * 2);
+                    layer[layerSize++] = id;
+
+                    final int to = transitionTo[id];
+                    if (to >= reachedAt.length) reachedAt = Arrays.copyOf(reachedAt, Math.max(to + 1, reachedAt.length * 2));
+                    if (reachedAt[to] != position + 1) {
+                        reachedAt[to] = position + 1;
+                        if (nextFrontierSize >= nextFrontier.length) nextFrontier = Arrays.copyOf(nextFrontier, nextFrontierSize * 2);
+                        nextFrontier[nextFrontierSize++] = to;
+                    }
+                }
+            }
+            layers.append(layer, layerSize);
+            final int[] swap = frontier;
+            frontier = nextFrontier;
+            nextFrontier = swap;
+            frontierSize = nextFrontierSize;
+            position++;
+        }
+        final int length = position;
+
+        // Backward pass: remove transitions into states from which the rest of the input can't be read
+        final int[] kept = new int[length];
+        final int[] aliveAt = new int[states.size()];
+        Arrays.fill(aliveAt, -1);
+        for (int i = 0; i < frontierSize; i++) aliveAt[frontier[i]] = length;
+        for (position = length - 1; position >= 0; position--) {
+            final int layerSize = layers.read(position, layer);
+            int keptSize = 0;
+            for (int i = 0; i < layerSize; i++) {
+                final int id = layer[i];
+                if (aliveAt[transitionTo[id]] == position + 1) layer[keptSize++] = id;
+            }
+            // States that are alive at this position are only marked after filtering, so that self loops are judged
+            // by the next position
+            for (int i = 0; i < keptSize; i++) aliveAt[transitionFrom[layer[i]]] = position;
+            layers.rewrite(position, layer, keptSize);
+            kept[position] = keptSize;
+        }
+        transitionsBefore = new long[length + 1];
+        for (position = 0; position < length; position++)
+            transitionsBefore[position + 1] = transitionsBefore[position] + kept[position];
+        return length;
+    }
+
+    private int getStateId(S state) {
+        Integer id = stateIds.get(state);
+        if (id == null) {
+            id = states.size();
+            states.add(state);
+            stateIds.put(state, id);
+        }
+        return id;
+    }
+
+    private int getTransitionId(Transition<S, E> transition) {
+        Integer id = transitionIds.get(transition);
+        if (id == null) {
+            id = transitions.size();
+            transitions.add(transition);
+            transitionIds.put(transition, id);
+            if (id >= transitionFrom.length) {
+                transitionFrom = Arrays.copyOf(transitionFrom, id * 2);
+                transitionTo = Arrays.copyOf(transitionTo, id * 2);
+            }
+            transitionFrom[id] = getStateId(transition.getFrom());
+            transitionTo[id] = getStateId(transition.getTo());
+        }
+        return id;
+    }
+
+    /**
+     * @return Number of input positions
+     */
+    public int length() {
+        return length;
+    }
+
+    public long getBytesSpilled() {
+        return layers.getBytesSpilled();
+    }
+
+    /**
+     * Runs in O(layer size)
+     *
+     * @return Transitions at the given input position that lie on some complete path
+     */
+    public List<Transition<S, E>> getTransitionsAt(int position) {
+        final int[] layer = new int[layers.length(position)];
+        final int size = layers.read(position, layer);
+        final List<Transition<S, E>> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) result.add(transitions.get(layer[i]));
+        return result;
+    }
+
+    /**
+     * Counts paths with a forward pass over the layers, which are paged in one at a time.
+     *
+     * @return Number of complete paths through the trellis
+     * @throws ArithmeticException If the number of paths overflows a long
+     */
+    public long numberOfPaths() {
+        long[] current = new long[states.size()];
+        long[] next = new long[states.size()];
+        current[startState] = 1L;
+        int[] layer = new int[16];
+        for (int position = 0; position < length; position++) {
+            layer = ensureCapacity(layer, layers.length(position));
+            final int size = layers.read(position, layer);
+            for (int i = 0; i < size; i++) {
+                final int id = layer[i];
+                next[transitionTo[id]] = Math.addExact(next[transitionTo[id]], current[transitionFrom[id]]);
+            }
+            // Reset the entries that were used as sources
+            for (int i = 0; i < size; i++) current[transitionFrom[layer[i]]] = 0L;
+            if (position == 0) current[startState] = 0L;
+            final long[] swap = current;
+            current = next;
+            next = swap;
+        }
+        long total = 0L;
+        for (long count : current) total = Math.addExact(total, count);
+        return total;
+    }
+
+    /**
+     * Finds a path with maximal total weight using the Viterbi algorithm. Back pointers are stored in a temporary
+     * off-heap store, so heap usage is independent of the input length except for the resulting path itself.
+     *
+     * @param weight Weight of a transition
+     * @return A complete path whose sum of transition weights is maximal, or empty if there is no complete path
+     */
+    public Optional<List<Transition<S, E>>> bestPath(ToDoubleFunction<Transition<S, E>> weight) {
+        final double[] transitionWeights = new double[transitions.size()];
+        for (int id = 0; id < transitions.size(); id++) transitionWeights[id] = weight.applyAsDouble(transitions.get(id));
+
+        try (OffHeapIntStore backPointers = new OffHeapIntStore(hotBufferBytes)) {
+            double[] current = new double[states.size()];
+            double[] next = new double[states.size()];
+            final int[] pointer = new int[states.size()];
+            Arrays.fill(current, Double.NaN);
+            Arrays.fill(next, Double.NaN);
+            current[startState] = 0.0;
+            int[] layer = new int[16];
+            int[] touched = new int[16];
+            for (int position = 0; position < length; position++) {
+                layer = ensureCapacity(layer, layers.length(position));
+                final int size = layers.read(position, layer);
+                touched = ensureCapacity(touched, size);
+                int touchedSize = 0;
+                for (int i = 0; i < size; i++) {
+                    final int id = layer[i];
+                    final int to = transitionTo[id];
+                    final double score = current[transitionFrom[id]] + transitionWeights[id];
+                    if (Double.isNaN(next[to])) touched[touchedSize++] = to;
+                    if (Double.isNaN(next[to]) || score > next[to]) {
+                        next[to] = score;
+                        pointer[to] = id;
+                    }
+                }
+                for (int i = 0; i < touchedSize; i++) touched[i] = pointer[touched[i]];
+                backPointers.append(touched, touchedSize);
+
+                for (int i = 0; i < size; i++) current[transitionFrom[layer[i]]] = Double.NaN;
+                if (position == 0) current[startState] = Double.NaN;
+                final double[] swap = current;
+                current = next;
+                next = swap;
+            }
+
+            int best = -1;
+            for (int state = 0; state < current.length; state++)
+                if (!Double.isNaN(current[state]) && (best < 0 || current[state] > current[best])) best = state;
+            if (best < 0) return Optional.empty();
+
+            // Trace back
+            final Transition<S, E>[] path = newTransitionArray(length);
+            int state = best;
+            for (int position = length - 1; position >= 0; position--) {
+                layer = ensureCapacity(layer, backPointers.length(position));
+                final int size = backPointers.read(position, layer);
+                for (int i = 0; i < size; i++)
+                    if (transitionTo[layer[i]] == state) {
+                        path[position] = transitions.get(layer[i]);
+                        state = transitionFrom[layer[i]];
+                        break;
+                    }
+            }
+            return Optional.of(Arrays.asList(path));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Transition<S, E>[] newTransitionArray(int length) {
+        return (Transition<S, E>[]) new Transition<?, ?>[length];
+    }
+
+    private static int[] ensureCapacity(int[] array, int capacity) {
+        return array.length >= capacity ? array : new int[Math.max(capacity, array.length * 2)];
+    }
+
+    /**
+     * @return All transitions in the trellis, ordered by input position
+     */
+    public Spliterator<Transition<S, E>> spliterator() {
+        return new LayerSpliterator(0, length);
+    }
+
+    public Stream<Transition<S, E>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    @Override
+    public void close() {
+        layers.close();
+    }
+
+    /**
+     * Reads one layer at a time into a reusable buffer. Splits by input position.
+     */
+    private class LayerSpliterator implements Spliterator<Transition<S, E>> {
+        private int position;
+        private final int end;
+        private int[] layer = new int[16];
+        private int layerSize;
+        private int index;
+
+        LayerSpliterator(int position, int end) {
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Transition<S, E>> action) {
+            while (index >= layerSize) {
+                if (position >= end) return false;
+                layer = ensureCapacity(layer, layers.length(position));
+                layerSize = layers.read(position++, layer);
+                index = 0;
+            }
+            action.accept(transitions.get(layer[index++]));
+            return true;
+        }
+
+        /**
+         * Splits off a prefix of whole layers, but only if this spliterator is not in the middle of a layer
+         */
+        @Override
+        public Spliterator<Transition<S, E>> trySplit() {
+            if (index < layerSize || end - position < 2) return null;
+            final int mid = (position + end) >>> 1;
+            final LayerSpliterator prefix = new LayerSpliterator(position, mid);
+            position = mid;
+            return prefix;
+        }
+
+        /**
+         * @return Exact number of remaining transitions
+         */
+        @Override
+        public long estimateSize() {
+            return transitionsBefore[end] - transitionsBefore[position] + (layerSize - index);
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE | SIZED | SUBSIZED;
+        }
+    }
+}
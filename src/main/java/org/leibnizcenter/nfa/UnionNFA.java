@@ -0,0 +1,180 @@
+package org.leibnizcenter.nfa;
+
+import com.google.common.collect.ImmutableList;
+import org.leibnizcenter.nfa.util.MemoCache;
+import org.leibnizcenter.nfa.util.Pair;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Union of many NFAs ("patterns") that read the same events, so that one run replaces one run per pattern. Every state
+ * of a pattern is tagged with the id of the pattern, which is its index in the list of patterns, and a run is in a
+ * set of tagged states.
+ * <p>
+ * The union is determinized lazily: the successor of a set of tagged states on an event is computed once, in
+ * O(tagged states + their transitions), and then kept in a bounded {@link MemoCache}. Runs that read the same events
+ * share these sets, so common prefixes of the event stream are only computed once for all patterns, and a step that
+ * hits the cache takes a single lookup, however many patterns there are. Side effects are not fired.
+ */
+@SuppressWarnings("WeakerAccess")
+public class UnionNFA<S extends State, E extends Event<S>> {
+    public final List<NFA<S, E>> patterns;
+    private final StateSet initial;
+
+    private final Map<Map.Entry<Integer, S>, Integer> taggedIds = new ConcurrentHashMap<>();
+    /**
+     * (pattern, state) by tagged id. Read without locking; only inserts lock taggedIds, and grow the table by copying.
+     */
+    private volatile Map.Entry<Integer, S>[] taggedStates = newTable(16);
+    private int numberOfTaggedStates;
+    private final MemoCache<Map.Entry<StateSet, E>, StateSet> successors;
+
+    /**
+     * @param patterns        Pattern NFAs; the id of a pattern is its index
+     * @param startStates     Start state of every pattern
+     * @param maxCachedSteps  Maximum number of (state set, event) pairs whose successor is cached
+     */
+    public UnionNFA(List<NFA<S, E>> patterns, List<S> startStates, int maxCachedSteps) {
+        if (patterns.size() != startStates.size())
+            throw new IllegalArgumentException("Expected " + patterns.size() + " start states, but got " + startStates.size());
+        this.patterns = ImmutableList.copyOf(patterns);
+        this.successors = new MemoCache<>(maxCachedSteps);
+        final int[] ids = new int[patterns.size()];
+        for (int pattern = 0; pattern < ids.length; pattern++) ids[pattern] = getTaggedId(pattern, startStates.get(pattern));
+        this.initial = new StateSet(ids);
+    }
+
+    /**
+     * Runs in O(1) amortized, and only locks if the tagged state is new
+     */
+    @SuppressWarnings("unchecked")
+    private static <S> Map.Entry<Integer, S>[] newTable(int length) {
+        return (Map.Entry<Integer, S>[]) new Map.Entry<?, ?>[length];
+    }
+
+    private int getTaggedId(int pattern, S state) {
+        final Map.Entry<Integer, S> key = new Pair<>(pattern, state);
+        final Integer id = taggedIds.get(key);
+        if (id != null) return id;
+        synchronized (taggedIds) {
+            final Integer existing = taggedIds.get(key);
+            if (existing != null) return existing;
+            final int newId = numberOfTaggedStates++;
+            Map.Entry<Integer, S>[] table = taggedStates;
+            if (newId >= table.length) table = Arrays.copyOf(table, table.length * 2);
+            table[newId] = key;
+            // Publish the slot before the id can be looked up
+            taggedStates = table;
+            taggedIds.put(key, newId);
+            return newId;
+        }
+    }
+
+    /**
+     * Runs in O(|ids| + their transitions on the event)
+     */
+    private StateSet computeSuccessor(StateSet from, E event) {
+        int[] result = new int[Math.max(16, from.ids.length)];
+        int size = 0;
+        final Map.Entry<Integer, S>[] table = taggedStates;
+        for (int id : from.ids) {
+            final int pattern = table[id].getKey();
+            final S state = table[id].getValue();
+            for (Transition<S, E> transition : patterns.get(pattern).getTransitions(state, event)) {
+                if (size >= result.length) result = Arrays.copyOf(result, size * 2);
+                result[size++] = getTaggedId(pattern, transition.getTo());
+            }
+        }
+        return new StateSet(Arrays.copyOf(result, size));
+    }
+
+    public Run start() {
+        return new Run();
+    }
+
+    /**
+     * @return Cache of computed steps, with hit and eviction statistics
+     */
+    public MemoCache<Map.Entry<StateSet, E>, StateSet> getCache() {
+        return successors;
+    }
+
+    /**
+     * Set of tagged states, stored as sorted ids without duplicates
+     */
+    public final class StateSet {
+        private final int[] ids;
+        private final int hash;
+        private final List<Integer> alivePatterns;
+        private final List<Integer> matchedPatterns;
+
+        private StateSet(int[] ids) {
+            final int[] sorted = ids.clone();
+            Arrays.sort(sorted);
+            int size = 0;
+            for (int i = 0; i < sorted.length; i++) if (i == 0 || sorted[i] != sorted[i - 1]) sorted[size++] = sorted[i];
+            this.ids = Arrays.copyOf(sorted, size);
+            this.hash = Arrays.hashCode(this.ids);
+
+            final SortedSet<Integer> alive = new TreeSet<>();
+            final SortedSet<Integer> matched = new TreeSet<>();
+            final Map.Entry<Integer, S>[] table = taggedStates;
+            for (int id : this.ids) {
+                final int pattern = table[id].getKey();
+                final S state = table[id].getValue();
+                alive.add(pattern);
+                if (patterns.get(pattern).isAccepting(state)) matched.add(pattern);
+            }
+            this.alivePatterns = ImmutableList.copyOf(alive);
+            this.matchedPatterns = ImmutableList.copyOf(matched);
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof UnionNFA.StateSet && Arrays.equals(ids, ((UnionNFA<?, ?>.StateSet) o).ids);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Current set of tagged states of a run. Not thread-safe, but runs of the same union may be used concurrently.
+     */
+    public class Run {
+        private StateSet current = initial;
+
+        /**
+         * Runs in O(1) if the step is cached, and in O(live states + their transitions) otherwise
+         */
+        public Run andThen(E e) {
+            current = successors.get(new Pair<>(current, e), key -> computeSuccessor(key.getKey(), key.getValue()));
+            return this;
+        }
+
+        /**
+         * @return Ids of the patterns that are in an accepting state, in ascending order
+         */
+        public List<Integer> getMatchedPatterns() {
+            return current.matchedPatterns;
+        }
+
+        /**
+         * @return Ids of the patterns that have at least one state, in ascending order
+         */
+        public List<Integer> getAlivePatterns() {
+            return current.alivePatterns;
+        }
+
+        public int numberOfLiveStates() {
+            return current.size();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.leibnizcenter.nfa;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds matches of an NFA that occur within a sliding window over a stream of events, such as "the pattern occurred
+ * within the last 100 events or 5 seconds". A match is a non-empty run of consecutive events that leads from the start
+ * state to an accepting state.
+ * <p>
+ * Instead of starting a new run at every offset, the matcher keeps one start position per active state: the latest
+ * offset from which the state can be reached. A later start is always at least as good as an earlier one, because it
+ * leaves the window last and gives the shortest match. So every event costs O(active states + their transitions),
+ * and runs whose start has left the window are evicted as they are stepped. Side effects are not fired.
+ * <p>
+ * Not thread-safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public class WindowedMatcher<S extends State, E extends Event<S>> {
+    private final NFA<S, E> nfa;
+    private final S start;
+    private final long maxEvents;
+    private final long maxMillis;
+    private final MatchListener<S> listener;
+
+    /**
+     * Start offset and timestamp of the latest run that is in each state
+     */
+    private Map<S, long[]> runs = new HashMap<>();
+    private Map<S, long[]> next = new HashMap<>();
+    private long offset;
+
+    /**
+     * @param maxEvents Maximum number of events in a match
+     * @param maxMillis Maximum time between the first and the last event of a match
+     * @param listener  Called for every match, with the latest start for the state in which it ends
+     */
+    public WindowedMatcher(NFA<S, E> nfa, S start, long maxEvents, long maxMillis, MatchListener<S> listener) {
+        if (maxEvents < 1 || maxMillis < 0) throw new IllegalArgumentException();
+        this.nfa = nfa;
+        this.start = start;
+        this.maxEvents = maxEvents;
+        this.maxMillis = maxMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Window that is bounded by the number of events only
+     */
+    public WindowedMatcher(NFA<S, E> nfa, S start, long maxEvents, MatchListener<S> listener) {
+        this(nfa, start, maxEvents, Long.MAX_VALUE, listener);
+    }
+
+    /**
+     * Reads an event that has no timestamp
+     */
+    public void accept(E event) {
+        accept(event, 0L);
+    }
+
+    /**
+     * Runs in O(active states + their transitions on the event)
+     *
+     * @param timestampMillis Time of the event; should not decrease between calls
+     */
+    public void accept(E event, long timestampMillis) {
+        // A run may start at this event
+        final long[] own = runs.get(start);
+        if (own == null) runs.put(start, new long[]{offset, timestampMillis});
+        else {
+            own[0] = offset;
+            own[1] = timestampMillis;
+        }
+
+        final long end = offset + 1;
+        runs.forEach((from, run) -> {
+            // Evict runs that would be too long after this event
+            if (end - run[0] > maxEvents || timestampMillis - run[1] > maxMillis) return;
+            for (Transition<S, E> transition : nfa.getTransitions(from, event)) {
+                final long[] existing = next.get(transition.getTo());
+                if (existing == null) next.put(transition.getTo(), new long[]{run[0], run[1]});
+                else if (existing[0] < run[0]) {
+                    existing[0] = run[0];
+                    existing[1] = run[1];
+                }
+            }
+        });
+
+        final Map<S, long[]> swap = runs;
+        runs = next;
+        next = swap;
+        next.clear();
+        offset = end;
+
+        runs.forEach((state, run) -> {
+            if (nfa.isAccepting(state)) listener.onMatch(run[0], end, state);
+        });
+    }
+
+    /**
+     * @return Number of events read so far
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public int numberOfActiveStates() {
+        return runs.size();
+    }
+
+    /**
+     * Callback for matches
+     */
+    @FunctionalInterface
+    public interface MatchListener<S> {
+        /**
+         * @param start Offset of the first event of the match
+         * @param end   Offset after the last event of the match
+         * @param state Accepting state in which the match ends
+         */
+        void onMatch(long start, long end, S state);
+    }
+}
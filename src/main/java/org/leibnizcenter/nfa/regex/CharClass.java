@@ -0,0 +1,120 @@
+package org.leibnizcenter.nfa.regex;
+
+import org.leibnizcenter.nfa.Event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable set of code points, stored as sorted, disjoint ranges. As an {@link Event}, a character class labels all
+ * transitions into a {@link Regex.Position}; taking such a transition has no side effect.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class CharClass implements Event<Regex.Position> {
+    public static final CharClass ANY = range(0, Character.MAX_CODE_POINT);
+    public static final CharClass DIGIT = range('0', '9');
+    public static final CharClass WORD = range('a', 'z').union(range('A', 'Z')).union(DIGIT).union(of('_'));
+    public static final CharClass SPACE = of(' ').union(range('\t', '\r'));
+
+    /**
+     * Pairs of inclusive lower and upper bounds
+     */
+    private final int[] ranges;
+
+    private CharClass(int[] ranges) {
+        this.ranges = ranges;
+    }
+
+    public static CharClass of(int codePoint) {
+        return range(codePoint, codePoint);
+    }
+
+    public static CharClass range(int from, int to) {
+        if (from > to) throw new IllegalArgumentException("Illegal range: " + from + " > " + to);
+        return new CharClass(new int[]{from, to});
+    }
+
+    /**
+     * Runs in O(n log n) for n the number of ranges
+     */
+    public CharClass union(CharClass other) {
+        final List<int[]> all = new ArrayList<>((ranges.length + other.ranges.length) / 2);
+        for (int i = 0; i < ranges.length; i += 2) all.add(new int[]{ranges[i], ranges[i + 1]});
+        for (int i = 0; i < other.ranges.length; i += 2) all.add(new int[]{other.ranges[i], other.ranges[i + 1]});
+        all.sort(Comparator.comparingInt(range -> range[0]));
+
+        final int[] merged = new int[all.size() * 2];
+        int size = 0;
+        for (int[] range : all) {
+            // Merge ranges that overlap or are adjacent
+            if (size > 0 && range[0] <= merged[size - 1] + 1) merged[size - 1] = Math.max(merged[size - 1], range[1]);
+            else {
+                merged[size++] = range[0];
+                merged[size++] = range[1];
+            }
+        }
+        return new CharClass(Arrays.copyOf(merged, size));
+    }
+
+    /**
+     * Runs in O(n) for n the number of ranges
+     */
+    public CharClass complement() {
+        final int[] complement = new int[ranges.length + 2];
+        int size = 0;
+        int next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                complement[size++] = next;
+                complement[size++] = ranges[i] - 1;
+            }
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= Character.MAX_CODE_POINT) {
+            complement[size++] = next;
+            complement[size++] = Character.MAX_CODE_POINT;
+        }
+        return new CharClass(Arrays.copyOf(complement, size));
+    }
+
+    /**
+     * Runs in O(log n) for n the number of ranges
+     */
+    public boolean contains(int codePoint) {
+        int low = 0;
+        int high = ranges.length / 2 - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (codePoint < ranges[2 * mid]) high = mid - 1;
+            else if (codePoint > ranges[2 * mid + 1]) low = mid + 1;
+            else return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void accept(Regex.Position from, Regex.Position to) {
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof CharClass && Arrays.equals(ranges, ((CharClass) o).ranges));
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ranges);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < ranges.length; i += 2) {
+            sb.appendCodePoint(ranges[i]);
+            if (ranges[i + 1] != ranges[i]) sb.append('-').appendCodePoint(ranges[i + 1]);
+        }
+        return sb.append(']').toString();
+    }
+}
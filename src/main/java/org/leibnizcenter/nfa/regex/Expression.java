@@ -0,0 +1,132 @@
+package org.leibnizcenter.nfa.regex;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Regular expression syntax tree. Positions are only assigned when the Glushkov sets are computed, so a subtree may
+ * occur more than once in a tree (as for bounded repetition) and still get fresh positions for every occurrence.
+ */
+abstract class Expression {
+    /**
+     * Computes nullable, first and last for this expression, and adds the pairs of positions that may follow each
+     * other within this expression to follow.
+     *
+     * @param classes Character class of each position, indexed by position. New positions are appended.
+     * @param follow  Follow set of each position, indexed by position. New positions are appended.
+     */
+    abstract Glushkov compute(List<CharClass> classes, List<BitSet> follow);
+
+    static class Glushkov {
+        final boolean nullable;
+        final BitSet first;
+        final BitSet last;
+
+        Glushkov(boolean nullable, BitSet first, BitSet last) {
+            this.nullable = nullable;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    static class Empty extends Expression {
+        @Override
+        Glushkov compute(List<CharClass> classes, List<BitSet> follow) {
+            return new Glushkov(true, new BitSet(), new BitSet());
+        }
+    }
+
+    static class Leaf extends Expression {
+        private final CharClass charClass;
+
+        Leaf(CharClass charClass) {
+            this.charClass = charClass;
+        }
+
+        @Override
+        Glushkov compute(List<CharClass> classes, List<BitSet> follow) {
+            final int position = classes.size();
+            classes.add(charClass);
+            follow.add(new BitSet());
+            final BitSet singleton = new BitSet();
+            singleton.set(position);
+            return new Glushkov(false, singleton, (BitSet) singleton.clone());
+        }
+    }
+
+    static class Concatenation extends Expression {
+        private final Expression left;
+        private final Expression right;
+
+        Concatenation(Expression left, Expression right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Glushkov compute(List<CharClass> classes, List<BitSet> follow) {
+            final Glushkov l = left.compute(classes, follow);
+            final Glushkov r = right.compute(classes, follow);
+            for (int p = l.last.nextSetBit(0); p >= 0; p = l.last.nextSetBit(p + 1)) follow.get(p).or(r.first);
+
+            final BitSet first = l.first;
+            if (l.nullable) first.or(r.first);
+            final BitSet last = r.last;
+            if (r.nullable) last.or(l.last);
+            return new Glushkov(l.nullable && r.nullable, first, last);
+        }
+    }
+
+    static class Alternation extends Expression {
+        private final Expression left;
+        private final Expression right;
+
+        Alternation(Expression left, Expression right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Glushkov compute(List<CharClass> classes, List<BitSet> follow) {
+            final Glushkov l = left.compute(classes, follow);
+            final Glushkov r = right.compute(classes, follow);
+            l.first.or(r.first);
+            l.last.or(r.last);
+            return new Glushkov(l.nullable || r.nullable, l.first, l.last);
+        }
+    }
+
+    /**
+     * Kleene star (zero or more) or plus (one or more)
+     */
+    static class Repetition extends Expression {
+        private final Expression expression;
+        private final boolean allowZero;
+
+        Repetition(Expression expression, boolean allowZero) {
+            this.expression = expression;
+            this.allowZero = allowZero;
+        }
+
+        @Override
+        Glushkov compute(List<CharClass> classes, List<BitSet> follow) {
+            final Glushkov e = expression.compute(classes, follow);
+            for (int p = e.last.nextSetBit(0); p >= 0; p = e.last.nextSetBit(p + 1)) follow.get(p).or(e.first);
+            return new Glushkov(allowZero || e.nullable, e.first, e.last);
+        }
+    }
+
+    static class Optional extends Expression {
+        private final Expression expression;
+
+        Optional(Expression expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        Glushkov compute(List<CharClass> classes, List<BitSet> follow) {
+            final Glushkov e = expression.compute(classes, follow);
+            return new Glushkov(true, e.first, e.last);
+        }
+    }
+}
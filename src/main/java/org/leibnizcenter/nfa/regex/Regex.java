@@ -0,0 +1,233 @@
+package org.leibnizcenter.nfa.regex;
+
+import org.leibnizcenter.nfa.NFA;
+import org.leibnizcenter.nfa.State;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Regular expression compiled to an epsilon-free NFA using the Glushkov (position automaton) construction: there is one
+ * state for every occurrence of a character class in the pattern, plus a start state. All transitions into a state are
+ * labeled with the character class of that state, so there are at most (m + 1)<sup>2</sup> transitions for m
+ * positions, regardless of the size of the character classes.
+ * <p>
+ * Matching simulates the automaton on bit sets of positions, so it runs in time linear in the input and never
+ * backtracks. Input is read as code points directly from the {@link CharSequence}; characters are never boxed.
+ * Instances are immutable and can be shared between threads.
+ */
+@SuppressWarnings("WeakerAccess")
+public class Regex {
+    private static final int ASCII = 128;
+
+    public final String pattern;
+    private final Position[] positions;
+    private final int words;
+    /**
+     * Positions that may follow each position, as bit sets of 64-bit words
+     */
+    private final long[][] follow;
+    private final long[] accepting;
+    /**
+     * Positions whose character class contains a given ASCII character
+     */
+    private final long[][] asciiMasks;
+
+    private Regex(String pattern) {
+        this.pattern = pattern;
+
+        final List<CharClass> classes = new ArrayList<>();
+        final List<BitSet> followSets = new ArrayList<>();
+        // Position 0 is the start state
+        classes.add(null);
+        followSets.add(null);
+        final Expression.Glushkov glushkov = new RegexParser(pattern).parse().compute(classes, followSets);
+        followSets.set(0, glushkov.first);
+
+        final int size = classes.size();
+        this.words = (size + 63) >>> 6;
+        this.positions = new Position[size];
+        this.follow = new long[size][];
+        for (int p = 0; p < size; p++) {
+            positions[p] = new Position(p, classes.get(p));
+            follow[p] = toWords(followSets.get(p));
+        }
+
+        final BitSet accepting = glushkov.last;
+        if (glushkov.nullable) accepting.set(0);
+        this.accepting = toWords(accepting);
+
+        this.asciiMasks = new long[ASCII][words];
+        for (int p = 1; p < size; p++)
+            for (int c = 0; c < ASCII; c++)
+                if (positions[p].charClass.contains(c)) asciiMasks[c][p >>> 6] |= 1L << p;
+    }
+
+    /**
+     * Runs in O(m<sup>2</sup>) for m the number of character class occurrences in the pattern
+     *
+     * @throws java.util.regex.PatternSyntaxException If the pattern is malformed
+     */
+    public static Regex compile(String pattern) {
+        return new Regex(pattern);
+    }
+
+    private long[] toWords(BitSet set) {
+        final long[] result = new long[words];
+        final long[] array = set.toLongArray();
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    /**
+     * Runs in O(n * m<sup>2</sup> / 64) for n the length of the input and m the number of positions
+     *
+     * @return Whether the entire input matches the pattern
+     */
+    public boolean matches(CharSequence input) {
+        long[] current = new long[words];
+        long[] next = new long[words];
+        final long[] scratch = new long[words];
+        current[0] = 1L;
+
+        for (int i = 0; i < input.length(); ) {
+            final int codePoint = Character.codePointAt(input, i);
+            i += Character.charCount(codePoint);
+            if (!step(current, next, codePoint, scratch)) return false;
+            final long[] swap = current;
+            current = next;
+            next = swap;
+        }
+        return intersects(current, accepting);
+    }
+
+    /**
+     * Runs in O(n * m<sup>2</sup> / 64) for n the length of the input and m the number of positions
+     *
+     * @return Whether some substring of the input matches the pattern
+     */
+    public boolean find(CharSequence input) {
+        long[] current = new long[words];
+        long[] next = new long[words];
+        final long[] scratch = new long[words];
+        current[0] = 1L;
+        if (intersects(current, accepting)) return true;
+
+        for (int i = 0; i < input.length(); ) {
+            final int codePoint = Character.codePointAt(input, i);
+            i += Character.charCount(codePoint);
+            step(current, next, codePoint, scratch);
+            // A match may start at any offset, so the start state is always active
+            next[0] |= 1L;
+            if (intersects(next, accepting)) return true;
+            final long[] swap = current;
+            current = next;
+            next = swap;
+        }
+        return false;
+    }
+
+    /**
+     * @param current Active positions
+     * @param next    Will be filled with the positions that are active after reading the code point
+     * @return Whether any position is active after reading the code point
+     */
+    private boolean step(long[] current, long[] next, int codePoint, long[] scratch) {
+        for (int w = 0; w < words; w++) next[w] = 0L;
+        for (int w = 0; w < words; w++) {
+            long word = current[w];
+            while (word != 0L) {
+                final int p = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                final long[] followP = follow[p];
+                for (int v = 0; v < words; v++) next[v] |= followP[v];
+            }
+        }
+
+        final long[] mask = codePoint < ASCII ? asciiMasks[codePoint] : maskFor(codePoint, next, scratch);
+        boolean alive = false;
+        for (int w = 0; w < words; w++) {
+            next[w] &= mask[w];
+            alive |= next[w] != 0L;
+        }
+        return alive;
+    }
+
+    /**
+     * @return Mask of the candidate positions whose character class contains the given code point
+     */
+    private long[] maskFor(int codePoint, long[] candidates, long[] scratch) {
+        for (int w = 0; w < words; w++) {
+            scratch[w] = 0L;
+            long word = candidates[w];
+            while (word != 0L) {
+                final int p = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                if (positions[p].charClass.contains(codePoint)) scratch[w] |= 1L << p;
+            }
+        }
+        return scratch;
+    }
+
+    private static boolean intersects(long[] a, long[] b) {
+        for (int w = 0; w < a.length; w++) if ((a[w] & b[w]) != 0L) return true;
+        return false;
+    }
+
+    public Position getStartState() {
+        return positions[0];
+    }
+
+    public int numberOfPositions() {
+        return positions.length;
+    }
+
+    /**
+     * Runs in O(m<sup>2</sup>) for m the number of positions
+     *
+     * @return The position automaton as an NFA over character classes, with {@link #getStartState()} as start state
+     */
+    public NFA<Position, CharClass> toNFA() {
+        final NFA.Builder<Position, CharClass> builder = new NFA.Builder<>();
+        builder.addState(positions[0]);
+        for (int p = 0; p < positions.length; p++) {
+            for (int w = 0; w < words; w++) {
+                long word = follow[p][w];
+                while (word != 0L) {
+                    final int q = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    builder.addTransition(positions[p], positions[q].charClass, positions[q]);
+                }
+            }
+            if ((accepting[p >>> 6] & (1L << p)) != 0L) builder.addAcceptingState(positions[p]);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    /**
+     * A state of the position automaton: the start state, or an occurrence of a character class in the pattern
+     */
+    public static final class Position implements State {
+        public final int id;
+        /**
+         * Null for the start state
+         */
+        public final CharClass charClass;
+
+        private Position(int id, CharClass charClass) {
+            this.id = id;
+            this.charClass = charClass;
+        }
+
+        @Override
+        public String toString() {
+            return id == 0 ? "start" : id + ":" + charClass;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.leibnizcenter.nfa.regex;
+
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Recursive descent parser for regular expressions. Supports literals, escapes, <code>.</code>, character classes
+ * (<code>[a-z]</code>, <code>[^0-9]</code>, <code>\d \w \s</code> and their negations), groups (<code>(...)</code>
+ * and <code>(?:...)</code>), alternation and the quantifiers <code>* + ? {n} {n,} {n,m}</code>.
+ * <p>
+ * Grammar:
+ * <pre>
+ * alternation := concatenation ('|' concatenation)*
+ * concatenation := quantified*
+ * quantified := atom quantifier*
+ * atom := '(' ('?:')? alternation ')' | '[' class ']' | '.' | '\' escape | literal
+ * </pre>
+ */
+class RegexParser {
+    private static final String META_CHARACTERS = "\\|()[]{}.*+?^$";
+    private static final String SHORTHANDS = "dDwWsS";
+    private final String pattern;
+    private int index;
+
+    RegexParser(String pattern) {
+        this.pattern = pattern;
+    }
+
+    Expression parse() {
+        final Expression expression = parseAlternation();
+        if (index < pattern.length()) throw error("Unmatched closing ')'");
+        return expression;
+    }
+
+    private Expression parseAlternation() {
+        Expression expression = parseConcatenation();
+        while (peek('|')) {
+            index++;
+            expression = new Expression.Alternation(expression, parseConcatenation());
+        }
+        return expression;
+    }
+
+    private Expression parseConcatenation() {
+        Expression expression = null;
+        while (index < pattern.length() && !peek('|') && !peek(')')) {
+            final Expression quantified = parseQuantified();
+            expression = expression == null ? quantified : new Expression.Concatenation(expression, quantified);
+        }
+        return expression == null ? new Expression.Empty() : expression;
+    }
+
+    private Expression parseQuantified() {
+        Expression expression = parseAtom();
+        while (index < pattern.length()) {
+            final char c = pattern.charAt(index);
+            if (c == '*') expression = new Expression.Repetition(expression, true);
+            else if (c == '+') expression = new Expression.Repetition(expression, false);
+            else if (c == '?') expression = new Expression.Optional(expression);
+            else if (c == '{') {
+                expression = parseBounds(expression);
+                continue;
+            } else break;
+            index++;
+        }
+        return expression;
+    }
+
+    /**
+     * Bounded repetition is expanded into copies of the repeated expression; the same subtree is reused because
+     * positions are assigned per occurrence anyway.
+     */
+    private Expression parseBounds(Expression expression) {
+        final int start = index++;
+        final int min = parseNumber();
+        int max = min;
+        if (peek(',')) {
+            index++;
+            max = peek('}') ? -1 : parseNumber();
+        }
+        if (!peek('}')) throw error("Expected '}'", start);
+        index++;
+        if (max >= 0 && max < min) throw error("Illegal repetition range", start);
+
+        Expression result = new Expression.Empty();
+        for (int i = 0; i < min; i++) result = new Expression.Concatenation(result, expression);
+        if (max < 0) return new Expression.Concatenation(result, new Expression.Repetition(expression, true));
+
+        // x{n,m} = x^n (x (x ...)?)?
+        Expression optionalTail = new Expression.Empty();
+        for (int i = min; i < max; i++)
+            optionalTail = new Expression.Optional(new Expression.Concatenation(expression, optionalTail));
+        return new Expression.Concatenation(result, optionalTail);
+    }
+
+    private int parseNumber() {
+        final int start = index;
+        while (index < pattern.length() && Character.isDigit(pattern.charAt(index))) index++;
+        if (start == index) throw error("Expected number");
+        try {
+            return Integer.parseInt(pattern.substring(start, index));
+        } catch (NumberFormatException e) {
+            throw error("Number too large", start);
+        }
+    }
+
+    private Expression parseAtom() {
+        final int c = pattern.codePointAt(index);
+        switch (c) {
+            case '(':
+                final int start = index++;
+                if (pattern.startsWith("?:", index)) index += 2;
+                final Expression group = parseAlternation();
+                if (!peek(')')) throw error("Unclosed group", start);
+                index++;
+                return group;
+            case '[':
+                return new Expression.Leaf(parseClass());
+            case '.':
+                index++;
+                return new Expression.Leaf(CharClass.ANY);
+            case '\\':
+                return new Expression.Leaf(parseEscape());
+            default:
+                if (META_CHARACTERS.indexOf(c) >= 0) throw error("Dangling meta character '" + (char) c + "'");
+                index += Character.charCount(c);
+                return new Expression.Leaf(CharClass.of(c));
+        }
+    }
+
+    private CharClass parseClass() {
+        final int start = index++;
+        final boolean negated = peek('^');
+        if (negated) index++;
+
+        CharClass result = null;
+        boolean first = true;
+        while (index < pattern.length() && (first || !peek(']'))) {
+            first = false;
+            final CharClass item;
+            if (peekShorthand()) item = parseEscape();
+            else {
+                final int from = parseCodePoint();
+                if (peek('-') && index + 1 < pattern.length() && pattern.charAt(index + 1) != ']') {
+                    index++;
+                    if (peekShorthand()) throw error("Illegal character range");
+                    final int to = parseCodePoint();
+                    if (to < from) throw error("Illegal character range");
+                    item = CharClass.range(from, to);
+                } else item = CharClass.of(from);
+            }
+            result = result == null ? item : result.union(item);
+        }
+        if (!peek(']')) throw error("Unclosed character class", start);
+        index++;
+        if (result == null) throw error("Empty character class", start);
+        return negated ? result.complement() : result;
+    }
+
+    /**
+     * @return Whether the pattern continues with an escape that stands for a class of characters, like <code>\d</code>
+     */
+    private boolean peekShorthand() {
+        return peek('\\') && index + 1 < pattern.length() && SHORTHANDS.indexOf(pattern.charAt(index + 1)) >= 0;
+    }
+
+    private CharClass parseEscape() {
+        if (peekShorthand()) {
+            final char c = pattern.charAt(index + 1);
+            index += 2;
+            switch (c) {
+                case 'd':
+                    return CharClass.DIGIT;
+                case 'D':
+                    return CharClass.DIGIT.complement();
+                case 'w':
+                    return CharClass.WORD;
+                case 'W':
+                    return CharClass.WORD.complement();
+                case 's':
+                    return CharClass.SPACE;
+                default:
+                    return CharClass.SPACE.complement();
+            }
+        }
+        return CharClass.of(parseCodePoint());
+    }
+
+    /**
+     * @return A single, possibly escaped, code point
+     */
+    private int parseCodePoint() {
+        final boolean escaped = peek('\\');
+        if (escaped) index++;
+        if (index >= pattern.length()) throw error("Unexpected end of pattern");
+        final int c = pattern.codePointAt(index);
+        index += Character.charCount(c);
+        if (!escaped) return c;
+        switch (c) {
+            case 't':
+                return '\t';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            default:
+                if (Character.isLetterOrDigit(c)) throw error("Unsupported escape sequence", index - 2);
+                return c;
+        }
+    }
+
+    private boolean peek(char c) {
+        return index < pattern.length() && pattern.charAt(index) == c;
+    }
+
+    private PatternSyntaxException error(String description) {
+        return error(description, index);
+    }
+
+    private PatternSyntaxException error(String description, int index) {
+        return new PatternSyntaxException(description, pattern, index);
+    }
+}
@@ -0,0 +1,253 @@
+package org.leibnizcenter.nfa.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Bounded cache of computed values, safe for concurrent use. Keys are spread over a number of segments by hash, and
+ * each segment evicts its least recently used entries when it is full, so threads only contend when they use the same
+ * segment.
+ * <p>
+ * Entries are bounded by number, or by total weight if a weigher is given, for instance to bound a cache by estimated
+ * bytes. A weighted cache has one segment, so that its bound holds for the whole cache and a heavy entry only evicts
+ * what it needs to.
+ * <p>
+ * Values are computed outside of the segment lock, so a value may be computed more than once when threads miss on the
+ * same key at the same time. The compute function should therefore be free of side effects. Only one of the computed
+ * values is cached and returned to all of those threads.
+ */
+@SuppressWarnings("WeakerAccess")
+public class MemoCache<K, V> {
+    private final Segment<K, V>[] segments;
+    private final long maxWeight;
+    private final ToLongBiFunction<? super K, ? super V> weigher;
+    private final BiConsumer<? super K, ? super V> onEviction;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize Maximum number of entries; the actual bound is rounded up to a multiple of the number of segments
+     */
+    public MemoCache(int maxSize) {
+        this(maxSize, Math.min(16, Integer.highestOneBit(Math.max(1, maxSize))), (key, value) -> 1L, (key, value) -> {
+        });
+        if (maxSize < 1) throw new IllegalArgumentException("Cache must hold at least one entry");
+    }
+
+    /**
+     * @param maxWeight  Maximum total weight of the entries
+     * @param weigher    Weight of an entry, which must not change while the entry is cached. An entry that weighs more
+     *                   than the maximum is evicted right after it is put.
+     * @param onEviction Called with every entry that is evicted to stay within the bound, and with every value that is
+     *                   replaced by {@link #put(Object, Object)}, after the cache has released its lock, so it may use
+     *                   the cache; not called for entries that are removed
+     */
+    public MemoCache(long maxWeight, ToLongBiFunction<? super K, ? super V> weigher, BiConsumer<? super K, ? super V> onEviction) {
+        this(maxWeight, 1, weigher, onEviction);
+        if (maxWeight < 1L) throw new IllegalArgumentException("Cache must hold a positive weight");
+    }
+
+    @SuppressWarnings("unchecked")
+    private MemoCache(long maxWeight, int numberOfSegments, ToLongBiFunction<? super K, ? super V> weigher,
+                      BiConsumer<? super K, ? super V> onEviction) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.onEviction = onEviction;
+        this.segments = (Segment<K, V>[]) new Segment<?, ?>[numberOfSegments];
+        final long segmentWeight = (maxWeight + numberOfSegments - 1) / numberOfSegments;
+        for (int i = 0; i < numberOfSegments; i++) segments[i] = new Segment<>(segmentWeight);
+    }
+
+    /**
+     * Runs in O(1), plus the cost of computing the value on a miss
+     *
+     * @return Cached value for the key, or the computed value, which is then cached
+     */
+    public V get(K key, Function<K, V> compute) {
+        final Segment<K, V> segment = segmentFor(key);
+        V value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value != null) {
+            hits.increment();
+            return value;
+        }
+        misses.increment();
+        value = compute.apply(key);
+        final V existing = putIfAbsent(key, value);
+        return existing != null ? existing : value;
+    }
+
+    /**
+     * Runs in O(1)
+     *
+     * @return Cached value for the key, or null if there is none
+     */
+    public V getIfPresent(K key) {
+        final Segment<K, V> segment = segmentFor(key);
+        final V value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        (value != null ? hits : misses).increment();
+        return value;
+    }
+
+    /**
+     * Runs in O(1) amortized
+     *
+     * @return The value that is already cached for the key, in which case the given value is not cached, or null if the
+     * given value was put
+     */
+    public V putIfAbsent(K key, V value) {
+        final Segment<K, V> segment = segmentFor(key);
+        final V existing;
+        final List<Map.Entry<K, V>> evicted;
+        synchronized (segment) {
+            existing = segment.get(key);
+            evicted = existing != null ? Collections.emptyList() : put(segment, key, value);
+        }
+        notifyEvicted(evicted);
+        return existing;
+    }
+
+    /**
+     * Runs in O(1) amortized. A value that is replaced counts as evicted.
+     */
+    public void put(K key, V value) {
+        final Segment<K, V> segment = segmentFor(key);
+        final List<Map.Entry<K, V>> evicted;
+        synchronized (segment) {
+            evicted = put(segment, key, value);
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Runs in O(1)
+     *
+     * @return The value that was removed, or null if there was none
+     */
+    public V remove(K key) {
+        final Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            final V value = segment.remove(key);
+            if (value != null) segment.weight -= weigher.applyAsLong(key, value);
+            return value;
+        }
+    }
+
+    /**
+     * Puts the entry, and then evicts the least recently used entries until the segment is within its bound
+     *
+     * @return Replaced entry, if any, followed by the evicted entries
+     */
+    private List<Map.Entry<K, V>> put(Segment<K, V> segment, K key, V value) {
+        final V previous = segment.put(key, value);
+        List<Map.Entry<K, V>> evicted = Collections.emptyList();
+        if (previous != null) {
+            segment.weight -= weigher.applyAsLong(key, previous);
+            if (previous != value) {
+                evicted = new ArrayList<>();
+                evicted.add(new AbstractMap.SimpleImmutableEntry<>(key, previous));
+            }
+        }
+        segment.weight += weigher.applyAsLong(key, value);
+        if (segment.weight <= segment.maxWeight) return evicted;
+
+        if (evicted.isEmpty()) evicted = new ArrayList<>();
+        final int replaced = evicted.size();
+        final Iterator<Map.Entry<K, V>> eldest = segment.entrySet().iterator();
+        while (segment.weight > segment.maxWeight && eldest.hasNext()) {
+            final Map.Entry<K, V> entry = eldest.next();
+            evicted.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            segment.weight -= weigher.applyAsLong(entry.getKey(), entry.getValue());
+            eldest.remove();
+        }
+        evictions.add(evicted.size() - replaced);
+        return evicted;
+    }
+
+    private void notifyEvicted(List<Map.Entry<K, V>> evicted) {
+        for (Map.Entry<K, V> entry : evicted) onEviction.accept(entry.getKey(), entry.getValue());
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        final int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * @return Maximum number of entries, or the maximum total weight if entries are weighed
+     */
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return Total weight of the cached entries, which is their number unless entries are weighed
+     */
+    public long weight() {
+        long weight = 0L;
+        for (Segment<K, V> segment : segments)
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        return weight;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments)
+            synchronized (segment) {
+                size += segment.size();
+            }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return Fraction of lookups that were hits
+     */
+    public double getHitRate() {
+        final long hits = getHits();
+        final long lookups = hits + getMisses();
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "MemoCache{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + '}';
+    }
+
+    /**
+     * Entries in access order, so that the eldest entry is the least recently used one
+     */
+    @SuppressWarnings("serial")
+    private static class Segment<K, V> extends LinkedHashMap<K, V> {
+        private final long maxWeight;
+        private long weight;
+
+        Segment(long maxWeight) {
+            super(16, 0.75f, true);
+            this.maxWeight = maxWeight;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.leibnizcenter.nfa.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Append-only list of int arrays ("records") that lives outside the Java heap. Recent records are kept in a direct
+ * buffer of fixed capacity. When that buffer is full, its contents are spilled to a memory-mapped temporary file, so
+ * the operating system decides which records are paged in. The only heap memory used per record is one long for its
+ * offset.
+ * <p>
+ * Appending and rewriting are not thread-safe, but reading is once all records have been written. Closing unmaps the
+ * file and frees the in-memory buffer right away where the JVM allows it, and otherwise leaves that to the garbage
+ * collector; a closed store can no longer be used, and must not be closed while other threads read from it.
+ */
+@SuppressWarnings("WeakerAccess")
+public class OffHeapIntStore implements AutoCloseable {
+    private static final int CHUNK_SHIFT = 26;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+    /**
+     * Frees the memory of a direct or mapped buffer, or null if the JVM offers no way to do so
+     */
+    private static final Consumer<ByteBuffer> UNMAPPER = findUnmapper();
+
+    private final ByteBuffer hot;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private FileChannel file;
+    private boolean closed;
+    /**
+     * Number of bytes that have been spilled to file. Offsets below this are in the file, offsets above are in the
+     * hot buffer.
+     */
+    private long spilled;
+    private long[] offsets = new long[16];
+    private int size;
+
+    /**
+     * @param hotCapacityBytes Capacity of the in-memory buffer for the most recent records
+     */
+    public OffHeapIntStore(int hotCapacityBytes) {
+        this.hot = ByteBuffer.allocateDirect(Math.max(4, hotCapacityBytes & ~3));
+    }
+
+    /**
+     * Runs in O(length)
+     *
+     * @return Index of the new record
+     */
+    public int append(int[] values, int length) {
+        ensureOpen();
+        final long bytes = 4L * (length + 1);
+        if (bytes > hot.remaining()) spill();
+
+        if (size >= offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        if (bytes > hot.capacity()) {
+            // Too large to ever fit in memory: write straight to file
+            offsets[size] = spilled;
+            putFileInt(spilled, length);
+            for (int i = 0; i < length; i++) putFileInt(spilled + 4L * (i + 1), values[i]);
+            spilled += bytes;
+        } else {
+            offsets[size] = spilled + hot.position();
+            hot.putInt(length);
+            for (int i = 0; i < length; i++) hot.putInt(values[i]);
+        }
+        return size++;
+    }
+
+    public int length(int record) {
+        ensureOpen();
+        return getInt(offsets[record]);
+    }
+
+    /**
+     * Runs in O(length)
+     *
+     * @param into Must be able to hold {@link #length(int)} values
+     * @return Number of values read
+     */
+    public int read(int record, int[] into) {
+        ensureOpen();
+        final long offset = offsets[record];
+        final int length = getInt(offset);
+        for (int i = 0; i < length; i++) into[i] = getInt(offset + 4L * (i + 1));
+        return length;
+    }
+
+    /**
+     * Overwrites a record in place. Runs in O(length).
+     *
+     * @param length May not be more than the current length of the record
+     */
+    public void rewrite(int record, int[] values, int length) {
+        ensureOpen();
+        final long offset = offsets[record];
+        if (length > getInt(offset)) throw new IllegalArgumentException("Can't grow a record in place");
+        putInt(offset, length);
+        for (int i = 0; i < length; i++) putInt(offset + 4L * (i + 1), values[i]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getBytesSpilled() {
+        return spilled;
+    }
+
+    public long getBytesInMemory() {
+        return hot.position();
+    }
+
+    private void ensureOpen() {
+        if (closed) throw new IllegalStateException("Store is closed");
+    }
+
+    /**
+     * Moves the contents of the hot buffer to file
+     */
+    private void spill() {
+        final int end = hot.position();
+        int position = 0;
+        while (position < end) {
+            final long target = spilled + position;
+            final ByteBuffer destination = chunk(target).duplicate();
+            // Casts to Buffer keep the byte code compatible with Java 8
+            ((Buffer) destination).position((int) (target & CHUNK_MASK));
+            final int length = Math.min(end - position, destination.remaining());
+
+            final ByteBuffer source = hot.duplicate();
+            ((Buffer) source).position(position).limit(position + length);
+            destination.put(source);
+            position += length;
+        }
+        spilled += end;
+        ((Buffer) hot).clear();
+    }
+
+    private int getInt(long offset) {
+        if (offset >= spilled) return hot.getInt((int) (offset - spilled));
+        return chunk(offset).getInt((int) (offset & CHUNK_MASK));
+    }
+
+    private void putInt(long offset, int value) {
+        if (offset >= spilled) hot.putInt((int) (offset - spilled), value);
+        else putFileInt(offset, value);
+    }
+
+    private void putFileInt(long offset, int value) {
+        chunk(offset).putInt((int) (offset & CHUNK_MASK), value);
+    }
+
+    private MappedByteBuffer chunk(long offset) {
+        final int index = (int) (offset >>> CHUNK_SHIFT);
+        try {
+            if (file == null) {
+                final Path path = Files.createTempFile("nfa-", ".layers");
+                file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            while (chunks.size() <= index)
+                chunks.add(file.map(FileChannel.MapMode.READ_WRITE, chunks.size() * CHUNK_SIZE, CHUNK_SIZE));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return chunks.get(index);
+    }
+
+    /**
+     * Unmaps and deletes the temporary file, if any, and frees the in-memory buffer. Idempotent.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (UNMAPPER != null) {
+            for (MappedByteBuffer chunk : chunks) UNMAPPER.accept(chunk);
+            UNMAPPER.accept(hot);
+        }
+        chunks.clear();
+        if (file != null) try {
+            file.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Uses sun.misc.Unsafe#invokeCleaner on Java 9 and later, and the cleaner of the buffer on Java 8
+     */
+    private static Consumer<ByteBuffer> findUnmapper() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            // Not Java 9 or later
+        }
+        try {
+            final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                final Object bufferCleaner = invoke(cleaner, buffer);
+                if (bufferCleaner != null) invoke(clean, bufferCleaner);
+            };
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... arguments) {
+        try {
+            return method.invoke(target, arguments);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not free buffer", e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.leibnizcenter.nfa.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Function;
+
+/**
+ * Table that maps keys to unique values, safe for concurrent use. Entries are only held weakly: once a value is no
+ * longer referenced from outside the table, the garbage collector may drop its entry, so the table only grows with the
+ * number of values that are in use. While a value is in use, every lookup of an equal key returns that same value.
+ * <p>
+ * Every value must hold a strong reference to the key that it was created for, so that the entry lives as long as the
+ * value does.
+ */
+@SuppressWarnings("WeakerAccess")
+public class WeakInterner<K, V> {
+    private final Map<K, WeakReference<V>> table = new WeakHashMap<>();
+
+    /**
+     * Runs in O(1)
+     *
+     * @return Value for a key that is equal to the given key, or null if there is none in use
+     */
+    public synchronized V get(Object key) {
+        final WeakReference<V> reference = table.get(key);
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * Runs in O(1), plus the cost of creating the value on a miss
+     *
+     * @param key    Key to store on a miss; must not be modified afterwards
+     * @param create Creates the value for the given key, which it must reference
+     * @return The value for a key that is equal to the given key, or the created value
+     */
+    public synchronized V intern(K key, Function<? super K, ? extends V> create) {
+        final V existing = get(key);
+        if (existing != null) return existing;
+        final V value = create.apply(key);
+        table.put(key, new WeakReference<>(value));
+        return value;
+    }
+
+    /**
+     * Runs in O(|entries|)
+     *
+     * @return All values that are still in use
+     */
+    public synchronized List<V> values() {
+        final List<V> values = new ArrayList<>(table.size());
+        for (WeakReference<V> reference : table.values()) {
+            final V value = reference.get();
+            if (value != null) values.add(value);
+        }
+        return values;
+    }
+
+    /**
+     * @return Number of entries, including entries whose value was collected but that have not been dropped yet
+     */
+    public synchronized int size() {
+        return table.size();
+    }
+}
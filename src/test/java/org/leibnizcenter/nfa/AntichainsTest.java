@@ -0,0 +1,68 @@
+package org.leibnizcenter.nfa;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+import static org.leibnizcenter.nfa.TEvents.eventA;
+import static org.leibnizcenter.nfa.TEvents.eventB;
+import static org.leibnizcenter.nfa.TStates.*;
+
+public class AntichainsTest {
+    private static final List<TStates> START = Collections.singletonList(S0);
+
+    /**
+     * Accepts all sequences that end in a
+     */
+    private final NFA<TStates, TEvents> endsInA = new NFA.Builder<TStates, TEvents>()
+            .addTransition(S0, eventA, S0)
+            .addTransition(S0, eventB, S0)
+            .addTransition(S0, eventA, S1)
+            .addAcceptingState(S1)
+            .build();
+
+    /**
+     * Accepts all sequences that contain an a
+     */
+    private final NFA<TStates, TEvents> containsA = new NFA.Builder<TStates, TEvents>()
+            .addTransition(S0, eventA, S0)
+            .addTransition(S0, eventB, S0)
+            .addTransition(S0, eventA, S1)
+            .addTransition(S1, eventA, S1)
+            .addTransition(S1, eventB, S1)
+            .addAcceptingState(S1)
+            .build();
+
+    @Test
+    public void isEmpty() {
+        assertFalse(endsInA.isEmpty(START));
+        assertEquals(Optional.of(Collections.singletonList(eventA)), endsInA.findAcceptedSequence(START));
+        assertFalse(endsInA.isEmpty(Collections.singletonList(S1)));
+        assertTrue(new NFA.Builder<TStates, TEvents>()
+                .addTransition(S0, eventA, S1)
+                .addAcceptingState(S3)
+                .build()
+                .isEmpty(START));
+    }
+
+    @Test
+    public void isUniversal() {
+        assertFalse(containsA.isUniversal(START));
+        assertEquals(Optional.of(Collections.emptyList()), containsA.findRejectedSequence(START, Arrays.asList(eventA, eventB)));
+        assertFalse(containsA.isUniversal(Collections.singletonList(S1), Arrays.asList(eventA, eventB, TEvents.eventC)));
+        assertTrue(containsA.isUniversal(Collections.singletonList(S1)));
+    }
+
+    @Test
+    public void includes() {
+        assertTrue(containsA.includes(START, endsInA, START));
+        assertFalse(endsInA.includes(START, containsA, START));
+        assertEquals(Optional.of(Arrays.asList(eventA, eventB)), endsInA.findSequenceNotIncluded(START, containsA, START));
+        assertTrue(endsInA.isEquivalent(START, endsInA, START));
+        assertFalse(endsInA.isEquivalent(START, containsA, START));
+    }
+}
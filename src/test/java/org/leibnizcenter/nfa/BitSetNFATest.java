@@ -0,0 +1,126 @@
+package org.leibnizcenter.nfa;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class BitSetNFATest {
+    @Test
+    public void sameStatesAsNFA() {
+        // Ring of 200 states, spanning several words; NEXT moves one ahead, JUMP moves one or 70 ahead
+        final List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) nodes.add(new Node());
+        final NFA.Builder<Node, Step> builder = new NFA.Builder<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            builder.addTransition(nodes.get(i), Step.NEXT, nodes.get((i + 1) % nodes.size()));
+            builder.addTransition(nodes.get(i), Step.JUMP, nodes.get((i + 1) % nodes.size()));
+            builder.addTransition(nodes.get(i), Step.JUMP, nodes.get((i + 70) % nodes.size()));
+        }
+        builder.addAcceptingState(nodes.get(150));
+        final NFA<Node, Step> nfa = builder.build();
+        final BitSetNFA<Node, Step> bitSetNFA = new BitSetNFA<>(nfa);
+        assertEquals(200, bitSetNFA.numberOfStates());
+
+        final BitSetNFA<Node, Step>.Run run = bitSetNFA.start(nodes.get(0));
+        Set<Node> expected = Collections.singleton(nodes.get(0));
+        final Random random = new Random(43);
+        for (int i = 0; i < 30; i++) {
+            final Step step = random.nextBoolean() ? Step.NEXT : Step.JUMP;
+            run.andThen(step);
+            expected = expected.stream()
+                    .flatMap(state -> nfa.getTransitions(state, step).stream())
+                    .map(Transition::getTo)
+                    .collect(Collectors.toSet());
+            assertEquals(expected, run.getStates());
+            assertEquals(expected.size(), run.numberOfActiveStates());
+            assertEquals(expected.contains(nodes.get(150)), run.isAccepting());
+        }
+    }
+
+    @Test
+    public void renumbering() {
+        // Ring of 1000 states; NEXT moves one ahead, JUMP moves one or two ahead
+        final List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) nodes.add(new Node());
+        final NFA.Builder<Node, Step> builder = new NFA.Builder<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            builder.addTransition(nodes.get(i), Step.NEXT, nodes.get((i + 1) % nodes.size()));
+            builder.addTransition(nodes.get(i), Step.JUMP, nodes.get((i + 1) % nodes.size()));
+            builder.addTransition(nodes.get(i), Step.JUMP, nodes.get((i + 2) % nodes.size()));
+        }
+        final NFA<Node, Step> nfa = builder.build();
+        final List<Node> breadthFirst = StateOrder.breadthFirst(nfa, Collections.singleton(nodes.get(0)));
+        // Successors may be discovered in either order, so a state can swap places with a neighbour
+        for (int i = 0; i < nodes.size(); i++) assertTrue(Math.abs(breadthFirst.indexOf(nodes.get(i)) - i) <= 1);
+        final List<Node> depthFirst = StateOrder.depthFirst(nfa, Collections.singleton(nodes.get(0)));
+        assertEquals(nodes.get(0), depthFirst.get(0));
+        assertEquals(new HashSet<>(nodes), new HashSet<>(depthFirst));
+
+        final List<Node> shuffled = new ArrayList<>(nodes);
+        Collections.shuffle(shuffled, new Random(48));
+        final BitSetNFA<Node, Step> scattered = new BitSetNFA<>(nfa, shuffled);
+        final BitSetNFA<Node, Step> local = new BitSetNFA<>(nfa, breadthFirst);
+        assertEquals(breadthFirst, local.getStates());
+        // Successors are in the same word as their state, or the next
+        assertTrue(local.numberOfMaskWords() <= 4 * nodes.size());
+        assertTrue(scattered.numberOfMaskWords() > 2 * local.numberOfMaskWords());
+
+        final BitSetNFA<Node, Step>.Run a = scattered.start(nodes.get(0));
+        final BitSetNFA<Node, Step>.Run b = local.start(nodes.get(0));
+        for (int i = 0; i < 50; i++) assertEquals(a.andThen(Step.JUMP).getStates(), b.andThen(Step.JUMP).getStates());
+
+        // Profiled order puts the states that are active most often first: {1, 2}, {2, 3, 4}, {3, 4, 5, 6}
+        final StateOrder.Profile<Node> profile = new StateOrder.Profile<>();
+        final NFA<Node, Step>.StateContainer run = nfa.start(nodes.get(0));
+        for (int i = 0; i < 3; i++) profile.record(run.andThen(Step.JUMP));
+        assertEquals(2L, (long) profile.getVisits().get(nodes.get(2)));
+        assertEquals(new HashSet<>(Arrays.asList(nodes.get(2), nodes.get(3), nodes.get(4))),
+                new HashSet<>(StateOrder.byFrequency(nfa, profile.getVisits()).subList(0, 3)));
+        assertEquals(nodes.size(), StateOrder.byFrequency(nfa, profile.getVisits()).size());
+        final List<Node> clustered = StateOrder.clustered(nfa, profile.getVisits());
+        assertEquals(new HashSet<>(nodes.subList(1, 7)), new HashSet<>(clustered.subList(0, 6)));
+        assertEquals(nodes.size(), new HashSet<>(clustered).size());
+
+        // An NFA with a profile records its runs, runs of bitset NFAs built from it, and applies
+        final StateOrder.Profile<Node> hooked = new StateOrder.Profile<>();
+        final NFA<Node, Step> profiling = builder.setProfile(hooked).setStateOrder(shuffled).build();
+        final NFA<Node, Step>.StateContainer profiledRun = profiling.start(nodes.get(0));
+        for (int i = 0; i < 3; i++) profiledRun.andThen(Step.JUMP);
+        assertEquals(profile.getVisits(), hooked.getVisits());
+        final BitSetNFA<Node, Step>.Run bitSetRun = new BitSetNFA<>(profiling).start(nodes.get(0));
+        for (int i = 0; i < 3; i++) bitSetRun.andThen(Step.JUMP);
+        profiling.apply(nodes.get(0), new LinkedList<>(Arrays.asList(Step.JUMP, Step.JUMP, Step.JUMP))).count();
+        assertEquals(6L, (long) hooked.getVisits().get(nodes.get(2)));
+
+        // The state order numbers states of bitset NFAs and graph queries, without changing results
+        assertEquals(shuffled, new BitSetNFA<>(profiling).getStates());
+        assertTrue(profiling.isReachable(nodes.get(0), Arrays.asList(Step.JUMP, Step.NEXT), nodes.get(3)));
+        assertFalse(profiling.isReachable(nodes.get(0), Arrays.asList(Step.JUMP, Step.NEXT), nodes.get(4)));
+        assertEquals(Optional.of(Arrays.asList(Step.JUMP, Step.JUMP)), profiling.findShortestSequence(nodes.get(0), nodes.get(4)));
+    }
+
+    @Test
+    public void unknownEventEmptiesRun() {
+        final NFA<TStates, TEvents> nfa = new NFA.Builder<TStates, TEvents>()
+                .addTransition(TStates.S0, TEvents.eventA, TStates.S1)
+                .addAcceptingState(TStates.S1)
+                .build();
+        final BitSetNFA<TStates, TEvents>.Run run = new BitSetNFA<>(nfa).start(TStates.S0).andThen(TEvents.eventA);
+        assertTrue(run.isAccepting());
+        assertTrue(run.andThen(TEvents.eventB).isEmpty());
+    }
+
+    private static final class Node implements State {
+    }
+
+    private enum Step implements Event<Node> {
+        NEXT, JUMP;
+
+        @Override
+        public void accept(Node from, Node to) {
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.leibnizcenter.nfa;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.leibnizcenter.nfa.TEvents.eventA;
+import static org.leibnizcenter.nfa.TEvents.eventB;
+import static org.leibnizcenter.nfa.TStates.*;
+
+public class ComposedTransducerTest {
+    /**
+     * a outputs "x x", b outputs nothing
+     */
+    private static final NFA<TStates, TEvents> FIRST = new NFA.Builder<TStates, TEvents>()
+            .addTransition(S0, eventA, S0)
+            .addTransition(S0, eventB, S0)
+            .build();
+    /**
+     * Counts x modulo 2, and may also stop in S3 on an x from S1
+     */
+    private static final NFA<TStates, Out> SECOND = new NFA.Builder<TStates, Out>()
+            .addTransition(S0, Out.X, S1)
+            .addTransition(S1, Out.X, S0)
+            .addTransition(S1, Out.X, S3)
+            .build();
+
+    @Test
+    public void compose() {
+        Out.fired = 0;
+        final ComposedTransducer<TStates, TEvents> pipeline = ComposedTransducer.from(FIRST)
+                .then(transition -> transition.getEvent() == eventA ? Arrays.asList(Out.X, Out.X) : Collections.<Out>emptyList(), SECOND)
+                .build();
+        assertEquals(2, pipeline.numberOfStages());
+
+        final Set<List<State>> endStates = pipeline.start(Arrays.asList(S0, S0))
+                .andThen(eventB)
+                .andThen(eventA)
+                .getState().map(state -> state.states).collect(Collectors.toSet());
+        // x x from S0: S0 S1 S0 or S0 S1 S3
+        assertEquals(new HashSet<>(Arrays.asList(Arrays.<State>asList(S0, S0), Arrays.<State>asList(S0, S3))), endStates);
+        assertEquals(3, Out.fired);
+
+        // S3 is a dead end for the second stage
+        assertEquals(2, pipeline.start(Arrays.asList(S0, S0)).andThen(eventA).andThen(eventA).getState().count());
+    }
+
+    @Test
+    public void mergePaths() {
+        // Number of paths grows like the Fibonacci sequence, but there are only two states
+        final NFA<TStates, Out> fibonacci = new NFA.Builder<TStates, Out>()
+                .addTransition(S0, Out.X, S0)
+                .addTransition(S0, Out.X, S1)
+                .addTransition(S1, Out.X, S0)
+                .build();
+        final ComposedTransducer<TStates, TEvents> pipeline = ComposedTransducer.from(FIRST)
+                .then(transition -> Collections.singletonList(Out.X), fibonacci)
+                .build();
+        final ComposedTransducer<TStates, TEvents>.StateContainer merged = pipeline.start(Arrays.asList(S0, S0), true);
+        final ComposedTransducer<TStates, TEvents>.StateContainer unmerged = pipeline.start(Arrays.asList(S0, S0));
+        Out.fired = 0;
+        for (int i = 0; i < 6; i++) unmerged.andThen(eventA);
+        final int firedUnmerged = Out.fired;
+        Out.fired = 0;
+        for (int i = 0; i < 6; i++) merged.andThen(eventA);
+        assertEquals(new HashSet<>(unmerged.states), new HashSet<>(merged.states));
+        assertEquals(2, merged.states.size());
+        assertEquals(21, unmerged.states.size());
+        // Within a step, effects fire once per path from every distinct state
+        assertEquals(2 + 3 + 5 + 8 + 13 + 21, firedUnmerged);
+        assertEquals(2 + 3 + 3 + 3 + 3 + 3, Out.fired);
+        assertTrue(pipeline.getReachedStates().containsAll(merged.states));
+    }
+
+    @Test
+    public void longOutput() {
+        // Toggles between S0 and S1 on every x
+        final NFA<TStates, Out> toggle = new NFA.Builder<TStates, Out>()
+                .addTransition(S0, Out.X, S1)
+                .addTransition(S1, Out.X, S0)
+                .build();
+        final List<Out> xs = Collections.nCopies(100_000, Out.X);
+        final ComposedTransducer<TStates, TEvents> pipeline = ComposedTransducer.from(FIRST)
+                .then(transition -> transition.getEvent() == eventA ? xs : Collections.<Out>emptyList(), toggle)
+                .then(transition -> Collections.singletonList(Out.X), toggle)
+                .build();
+        Out.fired = 0;
+        final List<List<State>> endStates = pipeline.start(Arrays.asList(S0, S0, S0))
+                .andThen(eventA)
+                .getState().map(state -> state.states).collect(Collectors.toList());
+        assertEquals(Collections.singletonList(Arrays.<State>asList(S0, S0, S0)), endStates);
+        assertEquals(2 * xs.size(), Out.fired);
+    }
+
+    private enum Out implements Event<TStates> {
+        X;
+        static int fired;
+
+        @Override
+        public void accept(TStates from, TStates to) {
+            fired++;
+        }
+    }
+}
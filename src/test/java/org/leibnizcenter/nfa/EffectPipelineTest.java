@@ -0,0 +1,137 @@
+package org.leibnizcenter.nfa;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.leibnizcenter.nfa.TStates.S0;
+import static org.leibnizcenter.nfa.TStates.S1;
+
+public class EffectPipelineTest {
+    private static final TEvents A = new TEvents("a");
+    private static final TEvents B = new TEvents("b");
+    private static final NFA<TStates, TEvents> ALTERNATING = new NFA.Builder<TStates, TEvents>()
+            .addTransition(S0, A, S1)
+            .addTransition(S1, B, S0)
+            .build();
+
+    @Test
+    public void sessionsKeepOrder() throws InterruptedException {
+        final Map<String, List<Transition<TStates, TEvents>>> executedByLane = new HashMap<>();
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        try (EffectPipeline<TStates, TEvents> pipeline = new EffectPipeline<>(4, 2, 3, batch -> {
+            batchSizes.add(batch.size());
+            synchronized (executedByLane) {
+                executedByLane.computeIfAbsent(Thread.currentThread().getName(), ignored -> new ArrayList<>()).addAll(batch);
+            }
+        })) {
+            // Sessions are assigned to lanes round-robin
+            final NFA<TStates, TEvents>.StateContainer run = ALTERNATING.start(S0, pipeline.newSession());
+            final EffectPipeline<TStates, TEvents>.Session other = pipeline.newSession();
+            final List<Transition<TStates, TEvents>> expected = new ArrayList<>();
+            final List<Transition<TStates, TEvents>> expectedOther = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                run.andThen(A).andThen(B);
+                expected.add(new Transition<>(S0, A, S1));
+                expected.add(new Transition<>(S1, B, S0));
+                final Transition<TStates, TEvents> transition = new Transition<>(S0, new TEvents("c" + i), S1);
+                other.submit(transition);
+                expectedOther.add(transition);
+            }
+            pipeline.flush();
+
+            assertEquals(Collections.singletonList(S0), run.getState().collect(Collectors.toList()));
+            assertEquals(expected, executedByLane.get("nfa-effects-0"));
+            assertEquals(expectedOther, executedByLane.get("nfa-effects-1"));
+            int total = 0;
+            for (int size : batchSizes) {
+                assertTrue(size <= 3);
+                total += size;
+            }
+            assertEquals(150, total);
+        }
+    }
+
+    @Test
+    public void applyWithSession() throws InterruptedException {
+        final List<Transition<TStates, TEvents>> executed = Collections.synchronizedList(new ArrayList<>());
+        try (EffectPipeline<TStates, TEvents> pipeline = new EffectPipeline<>(1, 1, 16, executed::addAll)) {
+            final LinkedList<TEvents> events = new LinkedList<>(Arrays.asList(A, B, A));
+            assertEquals(Collections.singletonList(S1),
+                    ALTERNATING.apply(S0, events, pipeline.newSession()).collect(Collectors.toList()));
+            pipeline.flush();
+            assertEquals(Arrays.asList(new Transition<>(S0, A, S1), new Transition<>(S1, B, S0), new Transition<>(S0, A, S1)), executed);
+        }
+    }
+
+    @Test(expected = CompletionException.class)
+    public void failuresSurfaceOnFlush() throws InterruptedException {
+        try (EffectPipeline<TStates, TEvents> pipeline = new EffectPipeline<>(8, 1, 8, batch -> {
+            throw new IllegalStateException();
+        })) {
+            ALTERNATING.start(S0, pipeline.newSession()).andThen(A);
+            pipeline.flush();
+        }
+    }
+
+    @Test
+    public void failuresSurfaceOnSubmit() throws InterruptedException {
+        final EffectPipeline<TStates, TEvents> pipeline = new EffectPipeline<>(8, 1, 8, batch -> {
+            throw new IllegalStateException();
+        });
+        final EffectPipeline<TStates, TEvents>.Session session = pipeline.newSession();
+        session.submit(new Transition<>(S0, A, S1));
+        assertThrows(CompletionException.class, pipeline::flush);
+        assertThrows(CompletionException.class, () -> session.submit(new Transition<>(S1, B, S0)));
+        assertThrows(CompletionException.class, pipeline::close);
+    }
+
+    @Test
+    public void submitAfterClose() {
+        final List<Transition<TStates, TEvents>> executed = Collections.synchronizedList(new ArrayList<>());
+        final EffectPipeline<TStates, TEvents> pipeline = new EffectPipeline<>(4, 1, 4, executed::addAll);
+        final NFA<TStates, TEvents>.StateContainer run = ALTERNATING.start(S0, pipeline.newSession()).andThen(A);
+        pipeline.close();
+        assertEquals(Collections.singletonList(new Transition<>(S0, A, S1)), executed);
+        assertThrows(IllegalStateException.class, () -> run.andThen(B));
+        assertThrows(IllegalStateException.class, () -> pipeline.newSession().submit(new Transition<>(S0, A, S1)));
+        pipeline.close();
+    }
+
+    @Test
+    public void interruptedSubmit() throws InterruptedException {
+        final CountDownLatch executing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Transition<TStates, TEvents>> executed = Collections.synchronizedList(new ArrayList<>());
+        try (EffectPipeline<TStates, TEvents> pipeline = new EffectPipeline<>(1, 1, 1, batch -> {
+            executing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executed.addAll(batch);
+        })) {
+            final EffectPipeline<TStates, TEvents>.Session session = pipeline.newSession();
+            session.submit(new Transition<>(S0, A, S1));
+            assertTrue(executing.await(10, TimeUnit.SECONDS));
+            // Fills the buffer, so the next submission has to wait
+            session.submit(new Transition<>(S1, B, S0));
+            Thread.currentThread().interrupt();
+            assertThrows(CancellationException.class, () -> session.submit(new Transition<>(S0, A, S1)));
+            assertTrue(Thread.interrupted());
+
+            release.countDown();
+            pipeline.flush();
+            assertEquals(Arrays.asList(new Transition<>(S0, A, S1), new Transition<>(S1, B, S0)), executed);
+        }
+    }
+}
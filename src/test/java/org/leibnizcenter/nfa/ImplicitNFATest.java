@@ -0,0 +1,107 @@
+package org.leibnizcenter.nfa;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.leibnizcenter.nfa.TEvents.eventA;
+import static org.leibnizcenter.nfa.TEvents.eventB;
+
+public class ImplicitNFATest {
+    /**
+     * Counter modulo a billion: a adds one or doubles, b only adds one to even values
+     */
+    private static final TransitionFunction<Counter, Op> COUNTER = (from, event) -> {
+        if (event == Op.A) return new HashSet<>(Arrays.asList(from.plus(1), from.times(2)));
+        if (event == Op.B && from.value % 2 == 0) return Collections.singletonList(from.plus(1));
+        return Collections.emptyList();
+    };
+
+    @Test
+    public void apply() {
+        final ImplicitNFA<Counter, Op> nfa = new ImplicitNFA<>(COUNTER, 1024);
+        final List<Op> events = Arrays.asList(Op.A, Op.A, Op.B);
+
+        // 1 -a-> {2} -a-> {3, 4} -b-> {5}; 2 is reached twice from 1, but is one state
+        final List<State> endStates = nfa.apply(new Counter(1), events).collect(Collectors.toList());
+        assertEquals(Collections.singletonList(new Counter(5)), endStates);
+        // Paths through 3 die on b and are pruned
+        assertFalse(nfa.apply(new Counter(1), Arrays.asList(Op.A, Op.A, Op.B, Op.B)).findAny().isPresent());
+
+        final List<Counter> stepped = nfa.start(new Counter(1)).andThen(Op.A).andThen(Op.A).andThen(Op.B)
+                .getState().collect(Collectors.toList());
+        assertEquals(Collections.singletonList(new Counter(5)), stepped);
+        assertTrue(nfa.getCache().getHits() > 0);
+    }
+
+    @Test
+    public void cacheIsBounded() {
+        final ImplicitNFA<Counter, Op> nfa = new ImplicitNFA<>(COUNTER, 16);
+        final ImplicitNFA<Counter, Op>.StateContainer run = nfa.start(new Counter(1));
+        for (int i = 0; i < 12; i++) run.andThen(Op.A);
+
+        assertTrue(run.getState().distinct().count() > 16);
+        assertTrue(nfa.getCache().size() <= 16);
+        assertTrue(nfa.getCache().getEvictions() > 0);
+    }
+
+    @Test
+    public void explicitNFA() {
+        final NFA<TStates, TEvents> explicit = new NFA.Builder<TStates, TEvents>()
+                .addTransition(TStates.S0, eventA, TStates.S1)
+                .addTransition(TStates.S0, eventA, TStates.S0)
+                .addTransition(TStates.S1, eventB, TStates.S3)
+                .build();
+        final ImplicitNFA<TStates, TEvents> implicit = new ImplicitNFA<>(explicit, 8);
+        // The explicit NFA would throw on the dead end S0 -b->
+        assertEquals(Collections.singletonList(TStates.S3),
+                implicit.apply(TStates.S0, Arrays.asList(eventA, eventA, eventB)).collect(Collectors.toList()));
+        // The explicit NFA's own transitions are used, not rebuilt from its successors
+        assertEquals(new HashSet<>(explicit.getTransitions(TStates.S0, eventA)), new HashSet<>(implicit.getTransitions(TStates.S0, eventA)));
+        assertEquals(new HashSet<>(Arrays.asList(TStates.S0, TStates.S1)), new HashSet<>(implicit.getSuccessors(TStates.S0, eventA)));
+    }
+
+    private enum Op implements Event<Counter> {
+        A, B;
+
+        @Override
+        public void accept(Counter from, Counter to) {
+        }
+    }
+
+    private static final class Counter implements State {
+        private static final long MODULUS = 1_000_000_000L;
+        final long value;
+
+        Counter(long value) {
+            this.value = value % MODULUS;
+        }
+
+        Counter plus(long n) {
+            return new Counter(value + n);
+        }
+
+        Counter times(long n) {
+            return new Counter(value * n);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Counter && ((Counter) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(value);
+        }
+    }
+}
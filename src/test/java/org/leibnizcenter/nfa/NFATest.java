@@ -5,14 +5,20 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import org.junit.Test;
 
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.leibnizcenter.nfa.TEvents.eventA;
 import static org.leibnizcenter.nfa.TEvents.eventB;
+import static org.leibnizcenter.nfa.TEvents.eventC;
 import static org.leibnizcenter.nfa.TStates.S0;
 import static org.leibnizcenter.nfa.TStates.S1;
 
@@ -90,5 +96,517 @@ public class NFATest {
         assertEquals(new HashSet<>(nfa.getTransitions(S1, eventB)), Sets.newHashSet());
     }
 
+    @Test
+    public void withTransition() {
+        final NFA<TStates, TEvents> nfa = new NFA.Builder<TStates, TEvents>()
+                .addTransition(TRANSITION_S0_A_S0)
+                .build();
+        final NFA<TStates, TEvents> added = nfa.withTransition(TRANSITION_S0_A_S1).withTransition(S1, eventB, S1);
+
+        assertEquals(Sets.newHashSet(TRANSITION_S0_A_S0, TRANSITION_S0_A_S1), new HashSet<>(added.getTransitions(S0, eventA)));
+        assertEquals(Sets.newHashSet(S0, S1), added.getStates());
+        assertEquals(Sets.newHashSet(S1), new HashSet<>(added.getStatesThatAllowEvent(eventB)));
+
+        // Index and metrics are patched rather than rebuilt
+        assertNotNull(added.getEnumIndex());
+        assertEquals(Sets.newHashSet(TRANSITION_S0_A_S0, TRANSITION_S0_A_S1), new HashSet<>(added.getEnumIndex().getTransitions(S0, eventA)));
+        assertFalse(added.isDeterministic());
+        assertEquals(0.5, added.getMetrics().getDeterminismRatio(), 0.0);
+        assertTrue(nfa.isDeterministic());
+
+        // Old snapshot is left untouched
+        assertEquals(Sets.newHashSet(TRANSITION_S0_A_S0), new HashSet<>(nfa.getTransitions(S0, eventA)));
+        assertEquals(Sets.newHashSet(S0), nfa.getStates());
+        assertEquals(Sets.newHashSet(), new HashSet<>(nfa.getStatesThatAllowEvent(eventB)));
+    }
+
+    @Test
+    public void withoutTransition() {
+        final NFA<TStates, TEvents> nfa = new NFA.Builder<TStates, TEvents>()
+                .addTransition(TRANSITION_S0_A_S0)
+                .addTransition(TRANSITION_S0_A_S1)
+                .addTransition(TRANSITION_S1_A_S1)
+                .build();
+        final NFA<TStates, TEvents> removed = nfa.withoutTransition(TRANSITION_S0_A_S1).withoutTransition(TRANSITION_S1_A_S1);
+
+        assertEquals(Sets.newHashSet(TRANSITION_S0_A_S0), new HashSet<>(removed.getTransitions(S0, eventA)));
+        assertEquals(Sets.newHashSet(), new HashSet<>(removed.getTransitions(S1, eventA)));
+        assertEquals(Sets.newHashSet(S0), new HashSet<>(removed.getStatesThatAllowEvent(eventA)));
+        assertEquals(Sets.newHashSet(S0, S1), removed.getStates());
+        assertTrue(removed.getEnumIndex().getTransitions(S1, eventA).isEmpty());
+        assertTrue(removed.isDeterministic());
+        assertFalse(nfa.isDeterministic());
+
+        // Old snapshot is left untouched
+        assertEquals(Sets.newHashSet(S0, S1), new HashSet<>(nfa.getStatesThatAllowEvent(eventA)));
+        assertEquals(2, nfa.getTransitions(S0, eventA).size());
+    }
+
+    @Test
+    public void getEndStateMultiplicities() {
+        final NFA<TStates, TEvents> nfa = new NFA.Builder<TStates, TEvents>()
+                .addTransition(TRANSITION_S0_A_S0)
+                .addTransition(TRANSITION_S1_A_S1)
+                .addTransition(TRANSITION_S0_A_S1)
+                .build();
+        final List<TEvents> events = Collections.nCopies(13, eventA);
+
+        final Map<TStates, Long> multiplicities = nfa.getEndStateMultiplicities(S0, events);
+        assertEquals(2, multiplicities.size());
+        assertEquals(1L, (long) multiplicities.get(S0));
+        assertEquals(13L, (long) multiplicities.get(S1));
+        assertEquals(
+                nfa.apply(S0, new LinkedList<>(events)).collect(Collectors.groupingBy(Function.identity(), Collectors.counting())),
+                new HashMap<State, Long>(multiplicities)
+        );
+
+        // Probability of ending up in each state when taking every transition from S0 with probability 1/2
+        final Map<TStates, Double> probabilities = nfa.getEndStateWeights(S0, Collections.nCopies(2, eventA), 1.0,
+                (p, transition) -> transition.getFrom() == S0 ? p / 2 : p, Double::sum);
+        assertEquals(0.25, probabilities.get(S0), 0.0);
+        assertEquals(0.75, probabilities.get(S1), 0.0);
+        assertEquals(Collections.emptyMap(), nfa.getEndStateMultiplicities(S0, Collections.singletonList(eventB)));
+    }
+
+    @Test
+    public void precomputePathsInParallel() {
+        NFA.Builder<TStates, TEvents> b = new NFA.Builder<>();
+        b.addTransition(S0, eventA, S0);
+        b.addTransition(S1, eventA, S1);
+        b.addTransition(S0, eventA, S1);
+        final NFA<TStates, TEvents> nfa = b.build();
+
+        final List<TEvents> events = Collections.nCopies(13, eventA);
+        final Map<TStates, Map<List<TEvents>, PossibleStateTransitionPaths<TStates, TEvents>>> sequential = nfa.precomputePaths(new LinkedList<>(events));
+        final Map<TStates, Map<List<TEvents>, PossibleStateTransitionPaths<TStates, TEvents>>> parallel = nfa.precomputePathsInParallel(events, new ForkJoinPool(4));
+
+        assertEquals(13, events.size());
+        assertEquals(sequential.keySet(), parallel.keySet());
+        for (TStates state : sequential.keySet()) {
+            assertEquals(sequential.get(state).keySet(), parallel.get(state).keySet());
+            sequential.get(state).forEach((path, paths) -> {
+                assertEquals(paths.numberOfBranches(), parallel.get(state).get(path).numberOfBranches());
+                assertEquals(paths.size(), parallel.get(state).get(path).size());
+            });
+        }
+        assertEquals(104, parallel.get(S0).get(events).size());
+    }
 
-}
\ No newline at end of file
+    @Test
+    public void enumStatesAndEvents() {
+        final NFA<TStates, EnumEvent> nfa = new NFA.Builder<TStates, EnumEvent>()
+                .addTransition(S0, EnumEvent.A, S0)
+                .addTransition(S0, EnumEvent.A, S1)
+                .addTransition(S1, EnumEvent.A, S1)
+                .addTransition(S1, EnumEvent.B, TStates.S3)
+                .build();
+        EnumEvent.fired = 0;
+
+        final List<TStates> endStates = nfa.start(S0)
+                .andThen(EnumEvent.A)
+                .andThen(EnumEvent.A)
+                .andThen(EnumEvent.B)
+                .getState().collect(Collectors.toList());
+
+        // Paths S0 S0 S1 S3 and S0 S1 S1 S3
+        assertEquals(Arrays.asList(TStates.S3, TStates.S3), endStates);
+        // Transitions per step: 2, then 3, then 2
+        assertEquals(7, EnumEvent.fired);
+        assertEquals(0, nfa.start(S0).andThen(EnumEvent.B).getState().count());
+        assertEquals(Sets.newHashSet(new Transition<>(S0, EnumEvent.A, S0), new Transition<>(S0, EnumEvent.A, S1)),
+                new HashSet<>(nfa.getTransitions(S0, EnumEvent.A)));
+
+        // Derived NFAs keep counting by ordinal on a patched index
+        final NFA<TStates, EnumEvent> derived = nfa.withTransition(S0, EnumEvent.B, S0);
+        assertEquals(ExecutionStrategy.ORDINAL_COUNTS, derived.start(S0).getStrategy());
+        assertEquals(Collections.singletonList(S0), derived.start(S0).andThen(EnumEvent.B).getState().collect(Collectors.toList()));
+        final NFA<TStates, EnumEvent> removed = derived.withoutTransition(S0, EnumEvent.A, S0);
+        assertTrue(removed.isDeterministic());
+        assertEquals(Collections.singletonList(new Transition<>(S0, EnumEvent.A, S1)), new ArrayList<>(removed.getTransitions(S0, EnumEvent.A)));
+        assertEquals(2, nfa.getTransitions(S0, EnumEvent.A).size());
+    }
+
+    @Test
+    public void countedEffects() {
+        final Node n0 = new Node();
+        final Node n1 = new Node();
+        final PathCountingEvent a = new PathCountingEvent();
+        // Every step doubles the number of paths
+        final NFA<Node, PathCountingEvent> nfa = new NFA.Builder<Node, PathCountingEvent>()
+                .addTransition(n0, a, n0)
+                .addTransition(n0, a, n1)
+                .addTransition(n1, a, n0)
+                .addTransition(n1, a, n1)
+                .build();
+        final NFA<Node, PathCountingEvent>.StateContainer run = nfa.start(n0, ExecutionStrategy.COUNTS);
+        for (int step = 0; step < 62; step++) run.andThen(a);
+        assertEquals(ExecutionStrategy.COUNTS, run.getStrategy());
+        assertEquals(Integer.MAX_VALUE, run.states.size());
+        // One call per transition and step, however many paths take it
+        assertEquals(2 + 61 * 4, a.calls);
+        assertEquals((1L << 63) - 2, a.paths);
+        try {
+            run.andThen(a);
+            fail("Expected the number of paths to overflow");
+        } catch (ArithmeticException expected) {
+            // 2^63 paths
+        }
+    }
+
+    @Test
+    public void adaptiveStrategy() {
+        final Node n0 = new Node();
+        final Node n1 = new Node();
+        final CountingEvent a = new CountingEvent();
+        final CountingEvent c = new CountingEvent();
+        final NFA<Node, CountingEvent> nfa = new NFA.Builder<Node, CountingEvent>()
+                .addTransition(n0, a, n0)
+                .addTransition(n0, a, n1)
+                .addTransition(n1, a, n1)
+                .addTransition(n0, c, n0)
+                .build();
+        assertEquals(2.0 / 3.0, nfa.getMetrics().getDeterminismRatio(), 1e-9);
+
+        final NFA<Node, CountingEvent>.StateContainer run = nfa.start(n0);
+        assertEquals(ExecutionStrategy.PATHS, run.getStrategy());
+        for (int i = 0; i < 63; i++) run.andThen(a);
+        assertEquals(64, run.states.size());
+        assertEquals(ExecutionStrategy.PATHS, run.getStrategy());
+        run.andThen(a);
+        assertEquals(ExecutionStrategy.COUNTS, run.getStrategy());
+        // One path stays in n0, the others are in n1
+        assertEquals(64, run.getState().filter(n1::equals).count());
+        // Paths grow by one per step, and every path fires a side effect
+        assertEquals(64 * 65 / 2 + 64, a.fired);
+
+        run.andThen(c);
+        assertEquals(ExecutionStrategy.PATHS, run.getStrategy());
+        assertEquals(Collections.singletonList(n0), run.getState().collect(Collectors.toList()));
+        assertEquals(1, c.fired);
+
+        final EngineMetrics metrics = nfa.getMetrics();
+        assertEquals(2, metrics.getStrategySwitches());
+        assertEquals(64, metrics.getSteps(ExecutionStrategy.PATHS));
+        assertEquals(1, metrics.getSteps(ExecutionStrategy.COUNTS));
+
+        final NFA<Node, CountingEvent>.StateContainer fixed = nfa.start(n0, ExecutionStrategy.COUNTS);
+        for (int i = 0; i < 100; i++) fixed.andThen(c);
+        assertEquals(ExecutionStrategy.COUNTS, fixed.getStrategy());
+
+        // Once runs have taken enough steps, new runs start with what suited those runs: here, many paths that meet
+        final NFA<Node, CountingEvent>.StateContainer longRun = nfa.start(n0);
+        for (int i = 0; i < EngineMetrics.MIN_STEPS_TO_ADAPT; i++) longRun.andThen(a);
+        assertEquals(ExecutionStrategy.COUNTS, nfa.start(n0).getStrategy());
+
+        // Mostly nondeterministic, but runs only ever have one path
+        final NFA<Node, CountingEvent> branchy = new NFA.Builder<Node, CountingEvent>()
+                .addTransition(n0, a, n0)
+                .addTransition(n0, a, n1)
+                .addTransition(n1, a, n0)
+                .addTransition(n1, a, n1)
+                .addTransition(n0, c, n0)
+                .build();
+        assertEquals(ExecutionStrategy.COUNTS, branchy.start(n0).getStrategy());
+        final NFA<Node, CountingEvent>.StateContainer linear = branchy.start(n0);
+        for (int i = 0; i < EngineMetrics.MIN_STEPS_TO_ADAPT; i++) linear.andThen(c);
+        assertEquals(ExecutionStrategy.PATHS, branchy.start(n0).getStrategy());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ordinalCountsRequireEnumStates() {
+        final Node n0 = new Node();
+        new NFA.Builder<Node, CountingEvent>().addTransition(n0, new CountingEvent(), n0).build()
+                .start(n0, ExecutionStrategy.ORDINAL_COUNTS);
+    }
+
+    @Test
+    public void determinism() {
+        final Node n0 = new Node();
+        final Node n1 = new Node();
+        final CountingEvent a = new CountingEvent();
+        final NFA<Node, CountingEvent> deterministic = new NFA.Builder<Node, CountingEvent>()
+                .addTransition(n0, a, n1)
+                .addTransition(n1, a, n0)
+                .build();
+        assertTrue(deterministic.isDeterministic());
+        final LinkedList<CountingEvent> events = new LinkedList<>(Arrays.asList(a, a, a));
+        assertEquals(Collections.singletonList(n1), deterministic.apply(n0, events).collect(Collectors.toList()));
+        assertEquals(3, a.fired);
+        assertEquals(Collections.singletonList(n0), deterministic.start(n0).andThen(a).andThen(a).getState().collect(Collectors.toList()));
+        assertEquals(5, a.fired);
+
+        // Number of paths grows linearly
+        assertFalse(deterministic.withTransition(n0, a, n0).isDeterminizable(n0));
+        // Number of paths grows exponentially
+        assertFalse(deterministic.withTransition(n0, a, n0).withoutTransition(n1, a, n0).withTransition(n1, a, n1)
+                .withTransition(n1, a, n0).isDeterminizable(n0));
+    }
+
+    @Test
+    public void determinize() {
+        final Node n0 = new Node();
+        final Node n1 = new Node();
+        final Node n2 = new Node();
+        final CountingEvent a = new CountingEvent();
+        final CountingEvent b = new CountingEvent();
+        // Two paths that end in different states, of which only one survives an a
+        final NFA<Node, CountingEvent> nfa = new NFA.Builder<Node, CountingEvent>()
+                .addTransition(n0, a, n1)
+                .addTransition(n0, a, n2)
+                .addTransition(n1, b, n1)
+                .addTransition(n2, b, n2)
+                .addTransition(n1, a, n0)
+                .build();
+        assertFalse(nfa.isDeterministic());
+        assertTrue(nfa.isDeterminizable(n0));
+
+        final DeterministicTransducer<Node, CountingEvent> transducer = nfa.determinize(n0).orElseThrow(AssertionError::new);
+        // {n0} and {n1, n2}
+        assertEquals(2, transducer.numberOfStates());
+        assertFalse(nfa.withTransition(n2, a, n0).isDeterminizable(n0));
+
+        final List<CountingEvent> input = Arrays.asList(a, b, b, a, a, b);
+        final NFA<Node, CountingEvent>.StateContainer run = nfa.start(n0, ExecutionStrategy.COUNTS);
+        for (CountingEvent event : input) run.andThen(event);
+        final int firedA = a.fired;
+        final int firedB = b.fired;
+        final Map<Node, Long> expected = run.getState().collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+
+        final DeterministicTransducer<Node, CountingEvent>.Run deterministicRun = transducer.start();
+        for (CountingEvent event : input) deterministicRun.andThen(event);
+        assertEquals(expected, deterministicRun.getStateCounts());
+        assertEquals(2 * firedA, a.fired);
+        assertEquals(2 * firedB, b.fired);
+        assertEquals(0, transducer.start().andThen(b).getState().count());
+    }
+
+    @Test
+    public void isReachable() {
+        final NFA<TStates, TEvents> nfa = new NFA.Builder<TStates, TEvents>()
+                .addTransition(S0, eventA, S0)
+                .addTransition(S0, eventA, S1)
+                .addTransition(S1, eventB, TStates.S3)
+                .addTransition(TStates.S3, eventA, TStates.S3)
+                .build();
+        assertTrue(nfa.isReachable(S0, Arrays.asList(eventA, eventA, eventA, eventB, eventA), TStates.S3));
+        assertFalse(nfa.isReachable(S0, Arrays.asList(eventA, eventA, eventA, eventB, eventB), TStates.S3));
+        assertFalse(nfa.isReachable(S0, Arrays.asList(eventA, eventA), TStates.S3));
+        assertTrue(nfa.isReachable(S1, Collections.emptyList(), S1));
+        assertFalse(nfa.isReachable(S1, Collections.emptyList(), S0));
+    }
+
+    @Test
+    public void findShortestSequence() {
+        final NFA<TStates, TEvents> nfa = new NFA.Builder<TStates, TEvents>()
+                .addTransition(S0, eventB, S1)
+                .addTransition(S0, eventA, S1)
+                .addTransition(S1, eventB, TStates.S3)
+                .addTransition(S1, eventA, TStates.S3)
+                .addTransition(S0, eventC, S0)
+                .build();
+        assertEquals(2, nfa.findShortestSequence(S0, TStates.S3).get().size());
+        assertFalse(nfa.findShortestSequence(TStates.S3, S0).isPresent());
+
+        final Comparator<TEvents> alphabetical = Comparator.comparing(TEvents::toString);
+        assertEquals(Arrays.asList(eventA, eventA),
+                nfa.findShortestSequence(S0, TStates.S3::equals, alphabetical).get());
+        assertEquals(Arrays.asList(eventB, eventB),
+                nfa.findShortestSequence(S0, TStates.S3::equals, alphabetical.reversed()).get());
+    }
+
+    @Test
+    public void pathCache() {
+        final NFA.Builder<TStates, TEvents> builder = new NFA.Builder<TStates, TEvents>()
+                .addTransition(S0, eventA, S0)
+                .addTransition(S0, eventA, S1)
+                .addTransition(S1, eventA, S1)
+                .addTransition(S1, eventB, S0)
+                .addTransition(S0, eventB, S0);
+        final NFA<TStates, TEvents> uncached = builder.build();
+        final NFA<TStates, TEvents> cached = builder.setPathCacheBytes(1 << 20).build();
+        assertEquals(null, uncached.getPathCache());
+
+        final List<TEvents> input = Arrays.asList(eventA, eventB, eventA, eventA, eventB);
+        final LinkedList<TEvents> events = new LinkedList<>(input);
+        assertEquals(uncached.getTransitions(S0, events).numberOfBranches(),
+                cached.getTransitions(S0, new LinkedList<>(input)).numberOfBranches());
+        // Neither variant consumes the events
+        assertEquals(input, events);
+        assertEquals(0, cached.getPathCache().getHits());
+        assertEquals(5, cached.getPathCache().getMisses());
+
+        // Same input: every suffix hits
+        cached.getTransitions(S0, new LinkedList<>(input));
+        assertEquals(5, cached.getPathCache().getHits());
+
+        // Longer input with the same suffix: only the new prefix misses
+        final List<TEvents> longer = new ArrayList<>(Arrays.asList(eventB, eventA));
+        longer.addAll(input);
+        assertEquals(uncached.getTransitions(S0, new LinkedList<>(longer)).numberOfBranches(),
+                cached.getTransitions(S0, new LinkedList<>(longer)).numberOfBranches());
+        assertEquals(10, cached.getPathCache().getHits());
+        assertEquals(7, cached.getPathCache().getMisses());
+        assertTrue(cached.getPathCache().weight() <= 1 << 20);
+    }
+
+    @Test
+    public void pathCacheEvictsDependentLayers() {
+        final NFA.Builder<TStates, TEvents> builder = new NFA.Builder<TStates, TEvents>()
+                .addTransition(S0, eventA, S0)
+                .addTransition(S0, eventA, S1)
+                .addTransition(S1, eventA, S1)
+                .addTransition(S1, eventB, S0)
+                .addTransition(S0, eventB, S0);
+        // Room for about three layers of two states
+        final NFA<TStates, TEvents> cached = builder.setPathCacheBytes(3 * Footprint.layer(2)).build();
+        final List<TEvents> input = Arrays.asList(eventA, eventB, eventA, eventA, eventB);
+        cached.getTransitions(S0, new LinkedList<>(input));
+        // Evicting the layers for the shortest suffixes drops the layers built on them
+        assertEquals(0, cached.getPathCache().size());
+        assertTrue(cached.getPathCache().getEvictions() > 0);
+
+        final List<TEvents> shortInput = Arrays.asList(eventB, eventA, eventB);
+        assertEquals(builder.setPathCacheBytes(0).build().getTransitions(S0, new LinkedList<>(shortInput)).numberOfBranches(),
+                cached.getTransitions(S0, new LinkedList<>(shortInput)).numberOfBranches());
+        assertEquals(3, cached.getPathCache().size());
+        assertTrue(cached.getPathCache().weight() <= 3 * Footprint.layer(2));
+    }
+
+    @Test
+    public void pathCacheConcurrentMisses() {
+        final NFA<TStates, TEvents> cached = new NFA.Builder<TStates, TEvents>()
+                .addTransition(S0, eventA, S0)
+                .addTransition(S0, eventA, S1)
+                .addTransition(S1, eventA, S1)
+                .addTransition(S1, eventB, S0)
+                .addTransition(S0, eventB, S0)
+                .setPathCacheBytes(1 << 20)
+                .build();
+        final List<TEvents> input = Arrays.asList(eventA, eventB, eventA, eventA, eventB, eventA, eventB, eventB);
+        IntStream.range(0, 64).parallel()
+                .forEach(i -> cached.getTransitions(S0, new LinkedList<>(input)));
+        // One layer per suffix: threads that miss at the same time build on the layer that was cached first
+        assertEquals(input.size(), cached.getPathCache().size());
+    }
+
+    @Test
+    public void pathCursor() {
+        final NFA<TStates, TEvents> nfa = new NFA.Builder<TStates, TEvents>()
+                .addTransition(TRANSITION_S0_A_S0)
+                .addTransition(TRANSITION_S1_A_S1)
+                .addTransition(TRANSITION_S0_A_S1)
+                .build();
+        final List<TEvents> events = Collections.nCopies(13, eventA);
+        final PossibleStateTransitionPaths<TStates, TEvents> paths = nfa.getTransitions(S0, new LinkedList<>(events));
+
+        final PathCursor<TStates, TEvents> cursor = paths.cursor();
+        final Map<State, Long> endStates = new HashMap<>();
+        int numberOfPaths = 0;
+        while (cursor.next()) {
+            numberOfPaths++;
+            assertEquals(13, cursor.length());
+            assertEquals(S0, cursor.getState(0));
+            for (int position = 0; position < cursor.length(); position++) {
+                assertEquals(eventA, cursor.getEvent(position));
+                assertEquals(cursor.getState(position), cursor.getTransition(position).getFrom());
+                assertEquals(cursor.getState(position + 1), cursor.getTransition(position).getTo());
+            }
+            endStates.merge(cursor.getState(cursor.length()), 1L, Long::sum);
+        }
+        assertEquals(paths.numberOfBranches(), numberOfPaths);
+        assertEquals(nfa.getEndStateMultiplicities(S0, events), endStates);
+        assertFalse(cursor.next());
+
+        // Reused on shorter paths
+        cursor.reset(nfa.getTransitions(S0, new LinkedList<>(Collections.nCopies(2, eventA))));
+        int shorter = 0;
+        while (cursor.next()) shorter++;
+        assertEquals(3, shorter);
+    }
+
+    @Test
+    public void memoryBudget() {
+        final NFA.Builder<TStates, TEvents> builder = new NFA.Builder<TStates, TEvents>()
+                .addTransition(S0, eventA, S0)
+                .addTransition(S0, eventA, S1)
+                .addTransition(S1, eventA, S0);
+        final NFA<TStates, TEvents> unlimited = builder.build();
+        final List<TEvents> input = Collections.nCopies(12, eventA);
+
+        final Footprint footprint = unlimited.estimateFootprint();
+        assertTrue(footprint.transitionsBytes > 3 * Footprint.TRANSITION);
+        assertTrue(footprint.getTotalBytes() > footprint.transitionsBytes);
+        final long trellisBytes = unlimited.getTransitions(S0, new LinkedList<>(input)).estimateFootprint();
+        assertTrue(trellisBytes > 0);
+
+        final NFA<TStates, TEvents> failing = builder.setMemoryBudget(trellisBytes / 2, BudgetPolicy.FAIL).build();
+        try {
+            failing.apply(S0, new LinkedList<>(input));
+            fail("Expected the budget to be exceeded");
+        } catch (MemoryBudgetExceededException e) {
+            assertEquals(trellisBytes / 2, e.getBudget());
+        }
+        assertEquals(1, failing.getMetrics().getBudgetExceeded());
+
+        final NFA<TStates, TEvents> streaming = builder.setMemoryBudget(trellisBytes / 2, BudgetPolicy.STREAM).build();
+        final Map<State, Long> expected = unlimited.apply(S0, new LinkedList<>(input))
+                .collect(Collectors.groupingBy(state -> state, Collectors.counting()));
+        assertEquals(expected, streaming.apply(S0, new LinkedList<>(input))
+                .collect(Collectors.groupingBy(state -> state, Collectors.counting())));
+        assertEquals(1, streaming.getMetrics().getStreamingFallbacks());
+
+        // Derived NFAs keep the budget
+        final NFA<TStates, TEvents> derived = streaming.withTransition(S1, eventA, S1);
+        assertTrue(derived.apply(S0, new LinkedList<>(input)).count() > 0);
+        assertEquals(1, derived.getMetrics().getStreamingFallbacks());
+
+        // Precomputed paths are also filed per state and suffix, which the budget includes
+        final NFA<TStates, TEvents> layersOnly = builder.setMemoryBudget(input.size() * Footprint.layer(2), BudgetPolicy.FAIL).build();
+        try {
+            layersOnly.precomputePaths(new LinkedList<>(input));
+            fail("Expected the maps per state to be charged");
+        } catch (MemoryBudgetExceededException e) {
+            assertEquals(1, layersOnly.getMetrics().getBudgetExceeded());
+        }
+        final NFA<TStates, TEvents> filed = builder.setMemoryBudget(input.size() * Footprint.precomputedLayer(2, 2), BudgetPolicy.FAIL).build();
+        assertEquals(2, filed.precomputePaths(new LinkedList<>(input)).size());
+    }
+
+    private static final class Node implements State {
+    }
+
+    private static final class CountingEvent implements Event<Node> {
+        int fired;
+
+        @Override
+        public void accept(Node from, Node to) {
+            fired++;
+        }
+    }
+
+    private static final class PathCountingEvent implements Event<Node> {
+        long calls;
+        long paths;
+
+        @Override
+        public void accept(Node from, Node to) {
+            accept(from, to, 1L);
+        }
+
+        @Override
+        public void accept(Node from, Node to, long times) {
+            calls++;
+            paths += times;
+        }
+    }
+
+    private enum EnumEvent implements Event<TStates> {
+        A, B;
+        static int fired;
+
+        @Override
+        public void accept(TStates from, TStates to) {
+            fired++;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.leibnizcenter.nfa;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.leibnizcenter.nfa.TEvents.eventA;
+import static org.leibnizcenter.nfa.TEvents.eventB;
+import static org.leibnizcenter.nfa.TStates.*;
+
+public class ProductNFATest {
+    private final NFA<TStates, TEvents> nfa1 = new NFA.Builder<TStates, TEvents>()
+            .addTransition(S0, eventA, S0)
+            .addTransition(S0, eventA, S1)
+            .addTransition(S1, eventB, S0)
+            .build();
+    private final NFA<TStates, TEvents> nfa2 = new NFA.Builder<TStates, TEvents>()
+            .addTransition(S0, eventA, S1)
+            .addTransition(S1, eventA, S3)
+            .addTransition(S1, eventB, S1)
+            .build();
+
+    @Test
+    public void andThen() {
+        final ProductNFA<TStates, TEvents> product = nfa1.intersect(nfa2);
+        final List<ProductNFA.ProductState<TStates>> endStates = product.start(Arrays.asList(S0, S0))
+                .andThen(eventA)
+                .andThen(eventB)
+                .getState().collect(Collectors.toList());
+
+        // (S0,S0) -a-> (S0,S1), (S1,S1) -b-> (S0,S1)
+        assertEquals(1, endStates.size());
+        assertSame(product.getState(Arrays.asList(S0, S1)), endStates.get(0));
+        assertEquals(3, product.numberOfCreatedStates());
+        assertTrue(product.getReachedStates().contains(endStates.get(0)));
+    }
+
+    @Test
+    public void apply() {
+        final ProductNFA<TStates, TEvents> product = nfa1.intersect(nfa2);
+        final List<ProductNFA.ProductState<TStates>> endStates = product.apply(
+                Arrays.asList(S0, S0),
+                new LinkedList<>(Arrays.asList(eventA, eventA))
+        ).collect(Collectors.toList());
+
+        // (S0,S0) -a-> {(S0,S1), (S1,S1)} -a-> {(S0,S3), (S1,S3)}
+        assertEquals(2, endStates.size());
+        assertEquals(
+                Arrays.asList(product.getState(Arrays.asList(S0, S3)), product.getState(Arrays.asList(S1, S3))),
+                endStates.stream().sorted((a, b) -> a.states.get(0).compareTo(b.states.get(0))).collect(Collectors.toList())
+        );
+    }
+}
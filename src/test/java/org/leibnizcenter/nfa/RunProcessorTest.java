@@ -0,0 +1,228 @@
+package org.leibnizcenter.nfa;
+
+import org.junit.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.leibnizcenter.nfa.TEvents.*;
+import static org.leibnizcenter.nfa.TStates.*;
+
+public class RunProcessorTest {
+    /**
+     * a b* c
+     */
+    private static final NFA<TStates, TEvents> A_B_STAR_C = new NFA.Builder<TStates, TEvents>()
+            .addTransition(S0, eventA, S1)
+            .addTransition(S1, eventB, S1)
+            .addTransition(S1, eventC, S3)
+            .addAcceptingState(S3)
+            .build();
+
+    @Test
+    public void backpressure() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final List<TEvents> input = new ArrayList<>(Collections.singletonList(eventA));
+            for (int i = 0; i < 100; i++) input.add(eventB);
+            input.add(eventC);
+            final ListPublisher source = new ListPublisher(input);
+            final RunProcessor<TStates, TEvents> processor = new RunProcessor<>(A_B_STAR_C.start(S0), executor, 8);
+            source.subscribe(processor);
+
+            final CollectingSubscriber subscriber = new CollectingSubscriber(1);
+            processor.subscribe(subscriber);
+            assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+            assertNull(subscriber.error);
+            assertEquals(input.size(), subscriber.updates.size());
+            assertTrue(subscriber.updates.get(subscriber.updates.size() - 1).accepting);
+            assertEquals(Collections.singletonList(S3), new ArrayList<>(subscriber.updates.get(subscriber.updates.size() - 1).states));
+            // Never more events outstanding than prefetched
+            assertTrue(source.maxOutstanding <= 8);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void manyRunsOnFewThreads() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final List<CollectingSubscriber> subscribers = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                final RunProcessor<TStates, TEvents> processor = new RunProcessor<>(A_B_STAR_C, S0, executor);
+                new ListPublisher(Arrays.asList(eventA, eventB, eventB, eventC)).subscribe(processor);
+                final CollectingSubscriber subscriber = new CollectingSubscriber(Long.MAX_VALUE);
+                processor.subscribe(subscriber);
+                subscribers.add(subscriber);
+            }
+            for (CollectingSubscriber subscriber : subscribers) {
+                assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+                assertEquals(4, subscriber.updates.size());
+                assertTrue(subscriber.updates.get(3).accepting);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void upstreamErrorAfterBufferedEvents() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final IllegalStateException failure = new IllegalStateException("Source failed");
+            final ListPublisher source = new ListPublisher(Arrays.asList(eventA, eventB, eventB, eventC), failure);
+            final RunProcessor<TStates, TEvents> processor = new RunProcessor<>(A_B_STAR_C.start(S0, ExecutionStrategy.COUNTS), executor, 8);
+            source.subscribe(processor);
+
+            final CollectingSubscriber subscriber = new CollectingSubscriber(1);
+            processor.subscribe(subscriber);
+            assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+            // The error follows every event that arrived before it
+            assertSame(failure, subscriber.error);
+            assertEquals(4, subscriber.updates.size());
+            assertFalse(subscriber.updates.get(2).accepting);
+            assertTrue(subscriber.updates.get(3).accepting);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Rule 1.9: onSubscribe is signalled before any other signal, even if upstream has completed already
+     */
+    @Test
+    public void subscribeAfterUpstreamComplete() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final RunProcessor<TStates, TEvents> processor = new RunProcessor<>(A_B_STAR_C, S0, executor);
+            new ListPublisher(Collections.emptyList()).subscribe(processor);
+            processor.onComplete();
+
+            final List<String> signals = new CopyOnWriteArrayList<>();
+            final CountDownLatch completed = new CountDownLatch(1);
+            processor.subscribe(new Subscriber<RunProcessor.Update<TStates, TEvents>>() {
+                @Override
+                public void onSubscribe(Subscription subscription) {
+                    subscription.request(1);
+                    try {
+                        // Give a drain on another thread the chance to signal too early
+                        completed.await(100, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    signals.add("onSubscribe");
+                }
+
+                @Override
+                public void onNext(RunProcessor.Update<TStates, TEvents> item) {
+                    signals.add("onNext");
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    signals.add("onError");
+                    completed.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                    signals.add("onComplete");
+                    completed.countDown();
+                }
+            });
+            assertTrue(completed.await(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("onSubscribe", "onComplete"), signals);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Emits a list on demand, on the thread that requests, then completes or fails
+     */
+    private static final class ListPublisher implements Publisher<TEvents> {
+        private final List<TEvents> items;
+        private final Throwable failure;
+        private int index;
+        private long outstanding;
+        private long maxOutstanding;
+
+        ListPublisher(List<TEvents> items) {
+            this(items, null);
+        }
+
+        ListPublisher(List<TEvents> items, Throwable failure) {
+            this.items = items;
+            this.failure = failure;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super TEvents> subscriber) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public synchronized void request(long n) {
+                    outstanding += n;
+                    maxOutstanding = Math.max(maxOutstanding, outstanding);
+                    while (outstanding > 0 && index < items.size()) {
+                        outstanding--;
+                        subscriber.onNext(items.get(index++));
+                    }
+                    if (index == items.size()) {
+                        index++;
+                        if (failure != null) subscriber.onError(failure);
+                        else subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+        }
+    }
+
+    /**
+     * Requests a fixed number of updates at a time
+     */
+    private static final class CollectingSubscriber implements Subscriber<RunProcessor.Update<TStates, TEvents>> {
+        private final long batch;
+        private final List<RunProcessor.Update<TStates, TEvents>> updates = new CopyOnWriteArrayList<>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private final AtomicLong received = new AtomicLong();
+        private Subscription subscription;
+        private volatile Throwable error;
+
+        CollectingSubscriber(long batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(batch);
+        }
+
+        @Override
+        public void onNext(RunProcessor.Update<TStates, TEvents> item) {
+            updates.add(item);
+            if (received.incrementAndGet() % batch == 0) subscription.request(batch);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            completed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.leibnizcenter.nfa;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.leibnizcenter.nfa.TEvents.*;
+import static org.leibnizcenter.nfa.TStates.*;
+
+public class RunSnapshotsTest {
+    private static final NFA<TStates, TEvents> NFA = new NFA.Builder<TStates, TEvents>()
+            .addTransition(S0, eventA, S0)
+            .addTransition(S0, eventA, S1)
+            .addTransition(S1, eventA, S0)
+            .addTransition(S1, eventB, S3)
+            .addAcceptingState(S3)
+            .build();
+
+    @Test
+    public void restoreContinuesRuns() throws IOException {
+        final Map<Long, org.leibnizcenter.nfa.NFA<TStates, TEvents>.StateContainer> runs = new LinkedHashMap<>();
+        for (ExecutionStrategy strategy : ExecutionStrategy.values())
+            runs.put((long) strategy.ordinal(), NFA.start(S0, strategy).andThen(eventA).andThen(eventA).andThen(eventA));
+        runs.put(7L, NFA.start(S0).andThen(eventA));
+
+        final RunSnapshots<TStates, TEvents> snapshots = new RunSnapshots<>(NFA, Arrays.asList(TStates.values()));
+        final RunSnapshots<TStates, TEvents>.Snapshot snapshot = snapshots.capture(runs);
+        // Matching continues after capture without affecting the snapshot
+        runs.values().forEach(run -> run.andThen(eventA));
+
+        final Path file = Files.createTempFile("runs", ".snapshot");
+        try {
+            snapshot.writeTo(file);
+            final Map<Long, org.leibnizcenter.nfa.NFA<TStates, TEvents>.StateContainer> restored = snapshots.restore(file);
+            assertEquals(Arrays.asList(0L, 1L, 2L, 7L), new ArrayList<>(restored.keySet()));
+            for (ExecutionStrategy strategy : ExecutionStrategy.values()) {
+                final org.leibnizcenter.nfa.NFA<TStates, TEvents>.StateContainer run = restored.get((long) strategy.ordinal());
+                assertEquals(strategy, run.getStrategy());
+                assertEquals(countStates(runs.get((long) strategy.ordinal())), countStates(run.andThen(eventA)));
+            }
+            assertEquals(countStates(runs.get(7L)), countStates(restored.get(7L).andThen(eventA)));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherStates() {
+        // Header of a snapshot with three states
+        new RunSnapshots<>(NFA, Arrays.asList(S0, S1)).read(ByteBuffer.wrap(new byte[]{0x4E, 0x46, 0x41, 0x53, 0, 0, 0, 1, 0, 0, 0, 3}));
+    }
+
+    @Test
+    public void rejectsCorruptSnapshots() throws IOException {
+        final Map<Long, org.leibnizcenter.nfa.NFA<TStates, TEvents>.StateContainer> runs = new LinkedHashMap<>();
+        runs.put(1L, NFA.start(S0, ExecutionStrategy.COUNTS).andThen(eventA));
+        final RunSnapshots<TStates, TEvents> snapshots = new RunSnapshots<>(NFA, Arrays.asList(TStates.values()));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshots.capture(runs).writeTo(Channels.newChannel(out));
+        final byte[] bytes = out.toByteArray();
+        assertEquals(1, snapshots.read(ByteBuffer.wrap(bytes)).size());
+
+        // Header, then the run tag and key; the fixed strategy follows
+        final int fixedStrategy = 12 + 1 + 8;
+        final byte[] unknownStrategy = bytes.clone();
+        unknownStrategy[fixedStrategy] = 42;
+        assertThrows(IllegalArgumentException.class, () -> snapshots.read(ByteBuffer.wrap(unknownStrategy)));
+        final byte[] negativeCount = bytes.clone();
+        // First count of the first entry, after both strategies and the state id
+        negativeCount[fixedStrategy + 2 + 4] = (byte) 0x80;
+        assertThrows(IllegalArgumentException.class, () -> snapshots.read(ByteBuffer.wrap(negativeCount)));
+        assertThrows(IllegalArgumentException.class, () -> snapshots.read(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 3))));
+    }
+
+    @Test
+    public void restoresManyAdaptivePathsAsCounts() throws IOException {
+        final List<TStates> paths = new ArrayList<>(Collections.nCopies(100, S0));
+        final Map<Long, org.leibnizcenter.nfa.NFA<TStates, TEvents>.StateContainer> runs = new LinkedHashMap<>();
+        runs.put(2L, NFA.new StateContainer(paths, ExecutionStrategy.PATHS));
+        // The run keeps its own copy
+        paths.clear();
+        assertEquals(100, runs.get(2L).states.size());
+        runs.put(3L, NFA.restore(new ArrayList<>(Collections.nCopies(100, S0)), null));
+
+        final RunSnapshots<TStates, TEvents> snapshots = new RunSnapshots<>(NFA, Arrays.asList(TStates.values()));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshots.capture(runs).writeTo(Channels.newChannel(out));
+        final Map<Long, org.leibnizcenter.nfa.NFA<TStates, TEvents>.StateContainer> restored = snapshots.read(ByteBuffer.wrap(out.toByteArray()));
+        // A fixed strategy is kept; an adaptive run with more paths than it lists is restored as counts
+        assertEquals(ExecutionStrategy.PATHS, restored.get(2L).getStrategy());
+        assertEquals(100, restored.get(2L).states.size());
+        assertEquals(ExecutionStrategy.COUNTS, restored.get(3L).getStrategy());
+        assertEquals(100, restored.get(3L).states.size());
+    }
+
+    private static Map<TStates, Long> countStates(org.leibnizcenter.nfa.NFA<TStates, TEvents>.StateContainer run) {
+        return run.getState().collect(Collectors.groupingBy(state -> state, TreeMap::new, Collectors.counting()));
+    }
+}
@@ -0,0 +1,160 @@
+package org.leibnizcenter.nfa;
+
+import java.util.*;
+
+/**
+ * Compares state orders by the locality of {@link BitSetNFA} steps, as the number of distinct 64-byte cache lines of
+ * successor masks that a step reads, and by the throughput of steps, of {@link NFA#isReachable(State, List, State)}
+ * and of {@link NFA#findShortestSequence(State, State)}, which use the same numbering. States are numbered in the
+ * default (hash) order, scattered order, breadth-first order, depth-first order, by frequency and clustered by
+ * frequency. Not a unit test; run its main method with the test classpath.
+ */
+public class StateOrderBenchmark {
+    private static final int STATES = 4096;
+    private static final int STEPS = 1_000_000;
+    private static final int QUERIES = 2_000;
+    private static final int QUERY_LENGTH = 1024;
+    private static final int SEARCHES = 500;
+    /**
+     * Mask words per 64-byte cache line
+     */
+    private static final int WORDS_PER_LINE = 8;
+
+    public static void main(String[] args) {
+        final Random random = new Random(48);
+        final List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < STATES; i++) nodes.add(new Node());
+        // Every state moves ahead by a few positions on most events, and sometimes branches, like a pattern that
+        // tolerates small gaps; runs die out on the other events
+        final NFA.Builder<Node, Step> builder = new NFA.Builder<>();
+        for (int i = 0; i < STATES; i++)
+            for (Step step : Step.values()) {
+                if (random.nextInt(10) == 0) continue;
+                builder.addTransition(nodes.get(i), step, nodes.get((i + 1 + random.nextInt(8)) % STATES));
+                if (random.nextInt(4) == 0)
+                    builder.addTransition(nodes.get(i), step, nodes.get((i + 1 + random.nextInt(8)) % STATES));
+            }
+        final NFA<Node, Step> nfa = builder.build();
+
+        final List<Step> input = new ArrayList<>();
+        for (int i = 0; i < STEPS; i++) input.add(Step.values()[random.nextInt(Step.values().length)]);
+
+        final List<Node> scattered = new ArrayList<>(nodes);
+        Collections.shuffle(scattered, random);
+        // Runs of an NFA with a profile record every step
+        final StateOrder.Profile<Node> profile = new StateOrder.Profile<>();
+        final BitSetNFA<Node, Step> profiling = new BitSetNFA<>(builder.setProfile(profile).build());
+        builder.setProfile(null);
+        BitSetNFA<Node, Step>.Run profiled = profiling.start(nodes.get(0));
+        for (int i = 0; i < 10_000; i++)
+            if (profiled.andThen(input.get(i)).isEmpty()) profiled = profiling.start(nodes.get(random.nextInt(STATES)));
+
+        final Map<String, List<Node>> orders = new LinkedHashMap<>();
+        orders.put("default", Collections.emptyList());
+        orders.put("scattered", scattered);
+        orders.put("breadth-first", StateOrder.breadthFirst(nfa, Collections.singleton(nodes.get(0))));
+        orders.put("depth-first", StateOrder.depthFirst(nfa, Collections.singleton(nodes.get(0))));
+        orders.put("profiled", StateOrder.byFrequency(nfa, profile.getVisits()));
+        orders.put("clustered", StateOrder.clustered(nfa, profile.getVisits()));
+
+        // Queries that hold, so that the search runs along the whole input
+        final BitSetNFA<Node, Step> unordered = new BitSetNFA<>(nfa);
+        final List<List<Step>> queries = new ArrayList<>();
+        final List<Node> queryEnds = new ArrayList<>();
+        while (queries.size() < QUERIES) {
+            final int start = random.nextInt(STEPS - QUERY_LENGTH);
+            final Node from = nodes.get(random.nextInt(STATES));
+            BitSetNFA<Node, Step>.Run run = unordered.start(from);
+            for (Step step : input.subList(start, start + QUERY_LENGTH)) run = run.andThen(step);
+            if (run.isEmpty()) continue;
+            queries.add(input.subList(start, start + QUERY_LENGTH));
+            queryEnds.add(from);
+            queryEnds.add(run.getStates().iterator().next());
+        }
+
+        for (int round = 0; round < 3; round++) {
+            System.out.println("Round " + (round + 1));
+            orders.forEach((name, order) -> {
+                final NFA<Node, Step> ordered = builder.setStateOrder(order).build();
+                final BitSetNFA<Node, Step> bitSetNFA = new BitSetNFA<>(ordered);
+                final Random restarts = new Random(48);
+                BitSetNFA<Node, Step>.Run run = bitSetNFA.start(nodes.get(0));
+                long activeStates = 0L;
+                long start = System.nanoTime();
+                for (Step step : input) {
+                    activeStates += run.andThen(step).numberOfActiveStates();
+                    if (run.isEmpty()) run = bitSetNFA.start(nodes.get(restarts.nextInt(STATES)));
+                }
+                final long stepNanos = System.nanoTime() - start;
+
+                // Same steps again, untimed, counting the cache lines they read
+                final LineCounter lineCounter = new LineCounter();
+                final BitSetNFA<Node, Step> counting = new BitSetNFA<>(ordered, order, lineCounter);
+                final Random countedRestarts = new Random(48);
+                BitSetNFA<Node, Step>.Run countedRun = counting.start(nodes.get(0));
+                for (Step step : input)
+                    if (countedRun.andThen(step).isEmpty())
+                        countedRun = counting.start(nodes.get(countedRestarts.nextInt(STATES)));
+
+                // The first query builds the tables
+                ordered.isReachable(nodes.get(0), queries.get(0), nodes.get(1));
+                int reachable = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < QUERIES; i++)
+                    if (ordered.isReachable(queryEnds.get(2 * i), queries.get(i), queryEnds.get(2 * i + 1)))
+                        reachable++;
+                final long queryNanos = System.nanoTime() - start;
+
+                final Random targets = new Random(48);
+                long sequenceLength = 0L;
+                start = System.nanoTime();
+                for (int i = 0; i < SEARCHES; i++)
+                    sequenceLength += ordered.findShortestSequence(nodes.get(targets.nextInt(STATES)),
+                            nodes.get(targets.nextInt(STATES))).map(List::size).orElse(0);
+                final long searchNanos = System.nanoTime() - start;
+                System.out.printf("  %-14s mask words %6d, %5.2f mask lines/step, %7.1f ns/step (%4.1f active), "
+                                + "%8.1f ns/reachability query (%d hold), "
+                                + "%8.1f ns/shortest sequence (%d events in all)%n",
+                        name, bitSetNFA.numberOfMaskWords(), (double) lineCounter.lines / STEPS,
+                        (double) stepNanos / STEPS, (double) activeStates / STEPS,
+                        (double) queryNanos / QUERIES, reachable, (double) searchNanos / SEARCHES, sequenceLength);
+            });
+        }
+    }
+
+    /**
+     * Scalar step that counts the distinct cache lines of successor masks it reads. Masks are packed in state order, so
+     * the masks of active states with nearby numbers share lines.
+     */
+    private static final class LineCounter implements BitSetNFA.MaskStep {
+        private long lines;
+
+        @Override
+        public void step(long[] words, int[] offsets, int[] firstWord, long[] active, long[] next) {
+            int lastLine = -1;
+            for (int word = 0; word < active.length; word++)
+                for (long bits = active[word]; bits != 0L; bits &= bits - 1) {
+                    final int state = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    if (offsets[state] == offsets[state + 1]) continue;
+                    final int firstLine = offsets[state] / WORDS_PER_LINE;
+                    final int endLine = (offsets[state + 1] - 1) / WORDS_PER_LINE;
+                    if (endLine > lastLine) {
+                        lines += endLine - Math.max(firstLine, lastLine + 1) + 1;
+                        lastLine = endLine;
+                    }
+                }
+            BitSetNFA.SCALAR_STEP.step(words, offsets, firstWord, active, next);
+        }
+    }
+
+    private static final class Node implements State {
+    }
+
+    private enum Step implements Event<Node> {
+        A, B;
+
+        @Override
+        public void accept(Node from, Node to) {
+        }
+    }
+}
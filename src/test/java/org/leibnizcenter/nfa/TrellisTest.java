@@ -0,0 +1,85 @@
+package org.leibnizcenter.nfa;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+
+import static org.junit.Assert.*;
+import static org.leibnizcenter.nfa.TEvents.eventA;
+import static org.leibnizcenter.nfa.TEvents.eventB;
+import static org.leibnizcenter.nfa.TStates.*;
+
+public class TrellisTest {
+    private final NFA<TStates, TEvents> nfa = new NFA.Builder<TStates, TEvents>()
+            .addTransition(S0, eventA, S0)
+            .addTransition(S0, eventA, S1)
+            .addTransition(S1, eventA, S1)
+            .addTransition(S0, eventA, S3) // Dead end
+            .addTransition(S1, eventB, S0)
+            .build();
+
+    @Test
+    public void numberOfPaths() {
+        try (Trellis<TStates, TEvents> trellis = nfa.buildTrellis(S0, Collections.nCopies(13, eventA))) {
+            assertEquals(13, trellis.length());
+            // Paths ending in S0 or S1; the final transition into S3 is a complete path as well
+            assertEquals(1 + 13 + 1, trellis.numberOfPaths());
+        }
+        try (Trellis<TStates, TEvents> trellis = nfa.buildTrellis(S0, Arrays.asList(eventA, eventA, eventB))) {
+            // S3 is pruned, because it can't read the rest of the input
+            assertEquals(2, trellis.numberOfPaths());
+            assertFalse(trellis.stream().anyMatch(transition -> transition.getTo() == S3));
+            assertEquals(Collections.singletonList(new Transition<>(S1, eventB, S0)), trellis.getTransitionsAt(2));
+        }
+        try (Trellis<TStates, TEvents> trellis = nfa.buildTrellis(S0, Arrays.asList(eventB, eventA))) {
+            assertEquals(0, trellis.numberOfPaths());
+            assertFalse(trellis.bestPath(transition -> 1.0).isPresent());
+        }
+    }
+
+    @Test
+    public void spill() {
+        // A tiny in-memory buffer forces nearly all layers to file
+        try (Trellis<TStates, TEvents> trellis = nfa.buildTrellis(S0, Collections.nCopies(10000, eventA), 64)) {
+            assertTrue(trellis.getBytesSpilled() > 0);
+            assertEquals(1 + 10000 + 1, trellis.numberOfPaths());
+            // Filtered, so that the transitions are counted rather than the reported size
+            assertEquals(3 * 10000, trellis.stream().filter(transition -> true).count());
+            assertEquals(3 * 10000, trellis.stream().parallel().filter(transition -> true).count());
+            // The reported size is the number of transitions, also after splitting and advancing
+            final Spliterator<Transition<TStates, TEvents>> suffix = trellis.spliterator();
+            final Spliterator<Transition<TStates, TEvents>> prefix = suffix.trySplit();
+            assertEquals(3 * 10000, prefix.estimateSize() + suffix.estimateSize());
+            assertTrue(prefix.tryAdvance(transition -> {
+            }));
+            assertEquals(3 * 10000 - 1, prefix.estimateSize() + suffix.estimateSize());
+        }
+    }
+
+    @Test
+    public void close() {
+        final Trellis<TStates, TEvents> trellis = nfa.buildTrellis(S0, Collections.nCopies(1000, eventA), 64);
+        assertTrue(trellis.getBytesSpilled() > 0);
+        trellis.close();
+        // Unmapped, so reading must fail rather than touch freed memory
+        assertThrows(IllegalStateException.class, () -> trellis.getTransitionsAt(0));
+        trellis.close();
+    }
+
+    @Test
+    public void bestPath() {
+        try (Trellis<TStates, TEvents> trellis = nfa.buildTrellis(S0, Arrays.asList(eventA, eventA, eventA, eventB))) {
+            // Staying in S0 as long as possible costs least
+            final List<Transition<TStates, TEvents>> path = trellis.bestPath(t -> t.getFrom() == S0 && t.getTo() == S0 ? 0.0 : -1.0).get();
+            assertEquals(Arrays.asList(
+                    new Transition<>(S0, eventA, S0),
+                    new Transition<>(S0, eventA, S0),
+                    new Transition<>(S0, eventA, S1),
+                    new Transition<>(S1, eventB, S0)
+            ), path);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.leibnizcenter.nfa;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.leibnizcenter.nfa.TEvents.*;
+import static org.leibnizcenter.nfa.TStates.*;
+
+public class UnionNFATest {
+    /**
+     * a b
+     */
+    private static final NFA<TStates, TEvents> A_B = new NFA.Builder<TStates, TEvents>()
+            .addTransition(S0, eventA, S1)
+            .addTransition(S1, eventB, S3)
+            .addAcceptingState(S3)
+            .build();
+    /**
+     * a b* c
+     */
+    private static final NFA<TStates, TEvents> A_B_STAR_C = new NFA.Builder<TStates, TEvents>()
+            .addTransition(S0, eventA, S1)
+            .addTransition(S1, eventB, S1)
+            .addTransition(S1, eventC, S3)
+            .addAcceptingState(S3)
+            .build();
+    /**
+     * b
+     */
+    private static final NFA<TStates, TEvents> B = new NFA.Builder<TStates, TEvents>()
+            .addTransition(S0, eventB, S3)
+            .addAcceptingState(S3)
+            .build();
+
+    @Test
+    public void matchedAndAlivePatterns() {
+        final UnionNFA<TStates, TEvents> union = new UnionNFA<>(Arrays.asList(A_B, A_B_STAR_C, B), Arrays.asList(S0, S0, S0), 64);
+        final UnionNFA<TStates, TEvents>.Run run = union.start();
+        assertEquals(Arrays.asList(0, 1, 2), run.getAlivePatterns());
+        assertEquals(Collections.emptyList(), run.getMatchedPatterns());
+
+        run.andThen(eventA);
+        assertEquals(Arrays.asList(0, 1), run.getAlivePatterns());
+        assertEquals(2, run.numberOfLiveStates());
+
+        run.andThen(eventB);
+        assertEquals(Arrays.asList(0, 1), run.getAlivePatterns());
+        assertEquals(Collections.singletonList(0), run.getMatchedPatterns());
+
+        run.andThen(eventC);
+        assertEquals(Collections.singletonList(1), run.getAlivePatterns());
+        assertEquals(Collections.singletonList(1), run.getMatchedPatterns());
+
+        run.andThen(eventC);
+        assertEquals(Collections.emptyList(), run.getAlivePatterns());
+    }
+
+    @Test
+    public void sharedSteps() {
+        final UnionNFA<TStates, TEvents> union = new UnionNFA<>(Arrays.asList(A_B, A_B_STAR_C, B), Arrays.asList(S0, S0, S0), 64);
+        for (int i = 0; i < 10; i++) {
+            final UnionNFA<TStates, TEvents>.Run run = union.start().andThen(eventA).andThen(eventB).andThen(eventB).andThen(eventC);
+            assertEquals(Collections.singletonList(1), run.getMatchedPatterns());
+        }
+        // Only the steps of the first run are computed
+        assertEquals(4, union.getCache().getMisses());
+        assertEquals(36, union.getCache().getHits());
+    }
+
+    @Test
+    public void concurrentRuns() throws Exception {
+        final List<NFA<TStates, TEvents>> patterns = new ArrayList<>();
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            patterns.add(i % 2 == 0 ? A_B : A_B_STAR_C);
+            if (i % 2 == 1) expected.add(i);
+        }
+        // A tiny cache makes threads compute steps, and tag new states, at the same time
+        final UnionNFA<TStates, TEvents> union = new UnionNFA<>(patterns, Collections.nCopies(40, S0), 2);
+        final ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<List<Integer>>> matched = new ArrayList<>();
+            for (int i = 0; i < 64; i++)
+                matched.add(threads.submit(() -> union.start().andThen(eventA).andThen(eventB).andThen(eventB).andThen(eventC).getMatchedPatterns()));
+            for (Future<List<Integer>> result : matched) assertEquals(expected, result.get());
+        } finally {
+            threads.shutdown();
+        }
+    }
+}
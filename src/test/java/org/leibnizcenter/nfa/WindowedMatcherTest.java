@@ -0,0 +1,51 @@
+package org.leibnizcenter.nfa;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.leibnizcenter.nfa.TEvents.*;
+import static org.leibnizcenter.nfa.TStates.*;
+
+public class WindowedMatcherTest {
+    /**
+     * a b* c
+     */
+    private static final NFA<TStates, TEvents> A_B_STAR_C = new NFA.Builder<TStates, TEvents>()
+            .addTransition(S0, eventA, S1)
+            .addTransition(S1, eventB, S1)
+            .addTransition(S1, eventC, S3)
+            .addAcceptingState(S3)
+            .build();
+
+    @Test
+    public void eventWindow() {
+        final List<List<Long>> matches = new ArrayList<>();
+        final WindowedMatcher<TStates, TEvents> matcher = new WindowedMatcher<>(A_B_STAR_C, S0, 4,
+                (start, end, state) -> matches.add(Arrays.asList(start, end)));
+        for (TEvents event : Arrays.asList(eventA, eventA, eventB, eventC, eventA, eventB, eventB, eventB, eventC))
+            matcher.accept(event);
+
+        // The second a is the latest start; the match from offset 4 is five events long
+        assertEquals(Arrays.asList(Arrays.asList(1L, 4L)), matches);
+        assertEquals(9, matcher.getOffset());
+        assertEquals(0, matcher.numberOfActiveStates());
+    }
+
+    @Test
+    public void timeWindow() {
+        final List<List<Long>> matches = new ArrayList<>();
+        final WindowedMatcher<TStates, TEvents> matcher = new WindowedMatcher<>(A_B_STAR_C, S0, Long.MAX_VALUE, 1000L,
+                (start, end, state) -> matches.add(Arrays.asList(start, end)));
+        matcher.accept(eventA, 0L);
+        matcher.accept(eventB, 500L);
+        matcher.accept(eventC, 1000L);
+        matcher.accept(eventA, 2000L);
+        matcher.accept(eventC, 3001L);
+
+        assertEquals(Arrays.asList(Arrays.asList(0L, 3L)), matches);
+    }
+}
@@ -0,0 +1,64 @@
+package org.leibnizcenter.nfa.regex;
+
+import org.junit.Test;
+import org.leibnizcenter.nfa.NFA;
+
+import java.util.Collections;
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.Assert.*;
+
+public class RegexTest {
+    @Test
+    public void matches() {
+        final Regex regex = Regex.compile("(a|b)*abb");
+        assertTrue(regex.matches("abb"));
+        assertTrue(regex.matches("babaabb"));
+        assertFalse(regex.matches("abba"));
+        assertFalse(regex.matches(""));
+        assertEquals(6, regex.numberOfPositions());
+
+        assertTrue(Regex.compile("").matches(""));
+        assertTrue(Regex.compile("a?").matches(""));
+        assertTrue(Regex.compile("[a-c]+\\d{2,3}").matches("cab12"));
+        assertTrue(Regex.compile("[a-c]+\\d{2,3}").matches("a123"));
+        assertFalse(Regex.compile("[a-c]+\\d{2,3}").matches("a1234"));
+        assertFalse(Regex.compile("[^a-c]").matches("b"));
+        assertTrue(Regex.compile("x{2,}").matches("xxxxx"));
+        assertTrue(Regex.compile("\\w+\\s\\.").matches("h_1 ."));
+        assertTrue(Regex.compile("caf.").matches("café"));
+        assertTrue(Regex.compile("😀+").matches("😀😀"));
+    }
+
+    @Test
+    public void find() {
+        final Regex regex = Regex.compile("ab+c");
+        assertTrue(regex.find("xxabbbcxx"));
+        assertFalse(regex.find("xxacxx"));
+        assertTrue(Regex.compile("x*").find("abc"));
+    }
+
+    @Test
+    public void manyPositions() {
+        // More than 64 positions, so the bit sets span several words
+        final Regex regex = Regex.compile("a{100}");
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) sb.append('a');
+        assertTrue(regex.matches(sb));
+        assertFalse(regex.matches(sb.append('a')));
+    }
+
+    @Test
+    public void toNFA() {
+        final Regex regex = Regex.compile("a[0-9]*");
+        final NFA<Regex.Position, CharClass> nfa = regex.toNFA();
+        assertEquals(3, nfa.getStates().size());
+        assertEquals(Collections.singletonList(CharClass.of('a')),
+                nfa.findAcceptedSequence(Collections.singletonList(regex.getStartState())).get());
+    }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void syntaxError() {
+        Regex.compile("(a|b");
+    }
+}
@@ -0,0 +1,32 @@
+package org.leibnizcenter.nfa.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MemoCacheTest {
+    @Test
+    public void replacedValuesAreEvicted() {
+        final List<String> evicted = new ArrayList<>();
+        final MemoCache<Integer, String> cache = new MemoCache<>(2L, (key, value) -> 1L,
+                (key, value) -> evicted.add(key + "=" + value));
+        assertNull(cache.putIfAbsent(1, "a"));
+        assertEquals("a", cache.putIfAbsent(1, "b"));
+        assertEquals("a", cache.get(1, key -> "c"));
+        assertEquals(0, evicted.size());
+
+        cache.put(1, "d");
+        assertEquals(Arrays.asList("1=a"), evicted);
+        cache.put(2, "e");
+        cache.put(3, "f");
+        assertEquals(Arrays.asList("1=a", "1=d"), evicted);
+        // Replacing is not counted as evicting to stay within the bound
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+    }
+}